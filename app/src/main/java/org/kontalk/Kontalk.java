@@ -31,9 +31,12 @@ import android.util.Log;
 
 import org.apache.http.impl.conn.IdleConnectionHandler;
 import org.kontalk.authenticator.Authenticator;
+import org.kontalk.crypto.BulkOperators;
+import org.kontalk.crypto.CryptoLog;
 import org.kontalk.crypto.PGP;
 import org.kontalk.crypto.PRNGFixes;
 import org.kontalk.crypto.PersonalKey;
+import org.kontalk.data.Contact;
 import org.kontalk.provider.MessagesProvider;
 import org.kontalk.service.DownloadService;
 import org.kontalk.service.NetworkStateReceiver;
@@ -47,6 +50,7 @@ import org.kontalk.sync.SyncAdapter;
 import org.kontalk.ui.ComposeMessage;
 import org.kontalk.ui.MessagingNotification;
 import org.kontalk.ui.SearchActivity;
+import org.kontalk.util.BackgroundThreadFactory;
 import org.kontalk.util.Preferences;
 
 import org.spongycastle.openpgp.PGPException;
@@ -99,6 +103,19 @@ public class Kontalk extends Application {
         // apply RNG fixes
         PRNGFixes.apply();
 
+        // crypto classes don't log by themselves
+        CryptoLog.setLogger(new CryptoLog.Logger() {
+            @Override
+            public void log(int priority, String tag, String msg, Throwable tr) {
+                if (tr != null)
+                    msg += '\n' + Log.getStackTraceString(tr);
+                Log.println(priority, tag, msg);
+            }
+        });
+
+        // choose operators for bulk encryption
+        BulkOperators.init(new BackgroundThreadFactory(BulkOperators.class.getSimpleName()));
+
         // init preferences
         Preferences.init(this);
 
@@ -146,6 +163,9 @@ public class Kontalk extends Application {
             if (!Authenticator.hasPersonalKey(am, account))
                 xmppUpgrade();
 
+            // load contacts in background
+            Contact.init(this);
+
             // update notifications from locally unread messages
             MessagingNotification.updateMessagesNotification(this, false);
 
@@ -21,8 +21,11 @@ package org.kontalk.client;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.security.GeneralSecurityException;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
@@ -39,7 +42,9 @@ import java.util.regex.Pattern;
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
 import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
 import javax.net.ssl.X509TrustManager;
 
 import org.apache.http.Header;
@@ -49,20 +54,14 @@ import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpRequestBase;
-import org.apache.http.client.params.ClientPNames;
-import org.apache.http.conn.ClientConnectionManager;
-import org.apache.http.conn.scheme.PlainSocketFactory;
-import org.apache.http.conn.scheme.Scheme;
-import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.conn.ssl.SSLSocketFactory;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.SingleClientConnManager;
-import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
 import org.apache.http.util.EntityUtils;
+import org.kontalk.crypto.Coder;
+import org.kontalk.service.DownloadJournal;
 import org.kontalk.service.DownloadListener;
 import org.kontalk.util.InternalTrustStore;
-import org.kontalk.util.Preferences;
 import org.kontalk.util.ProgressOutputStreamEntity;
 
 import android.content.Context;
@@ -80,13 +79,24 @@ public class ClientHTTPConnection {
     private static final Pattern CONTENT_DISPOSITION_PATTERN = Pattern
             .compile("attachment;\\s*filename\\s*=\\s*\"([^\"]*)\"");
 
+    /** Regex used to parse the first byte position of content-range headers */
+    private static final Pattern CONTENT_RANGE_PATTERN = Pattern
+            .compile("bytes\\s+(\\d+)-", Pattern.CASE_INSENSITIVE);
+
+    /** Suffix of the file keeping encrypted data of partial downloads. */
+    private static final String PARTIAL_SUFFIX = ".part";
+    /** Minimum length of encrypted downloads to be resumable. */
+    private static final long RESUME_MIN_ENCRYPTED_LENGTH = 1024 * 1024;
+
+    /** Timeout of cached TLS sessions in seconds. */
+    private static final int SSL_SESSION_TIMEOUT = 3600;
+
     private final Context mContext;
 
     private final PrivateKey mPrivateKey;
     private final X509Certificate mCertificate;
 
     private HttpRequestBase currentRequest;
-    private HttpClient mConnection;
 
     public ClientHTTPConnection(Context context, PrivateKey privateKey, X509Certificate bridgeCert) {
         mContext = context;
@@ -126,10 +136,10 @@ public class ClientHTTPConnection {
         KeyStore truststore = InternalTrustStore.getTrustStore(context);
 
         if (acceptAnyCertificate)
-            return new BlackholeSSLSocketFactory(keystore, null, truststore);
+            return new BlackholeSSLSocketFactory(keystore, truststore);
 
         else
-            return new SSLSocketFactory(keystore, null, truststore);
+            return new SessionSSLSocketFactory(keystore, truststore, null);
     }
 
     /**
@@ -141,33 +151,9 @@ public class ClientHTTPConnection {
     private HttpResponse execute(HttpRequestBase request) throws IOException {
         // execute!
         try {
-            if (mConnection == null) {
-                SchemeRegistry registry = new SchemeRegistry();
-                try {
-                    registry.register(new Scheme("http",  PlainSocketFactory.getSocketFactory(), 80));
-
-                    boolean acceptAnyCertificate = Preferences.getAcceptAnyCertificate(mContext);
-                    registry.register(new Scheme("https", setupSSLSocketFactory(mContext,
-                        mPrivateKey, mCertificate, acceptAnyCertificate), 443));
-                }
-                catch (Exception e) {
-                    IOException ie = new IOException("unable to create keystore");
-                    ie.initCause(e);
-                    throw ie;
-                }
-
-                HttpParams params = new BasicHttpParams();
-                // handle redirects :)
-                params.setBooleanParameter(ClientPNames.HANDLE_REDIRECTS, true);
-                // HttpClient bug caused by Lighttpd
-                params.setBooleanParameter("http.protocol.expect-continue", false);
-
-                // create connection manager
-                ClientConnectionManager connMgr = new SingleClientConnManager(params, registry);
-
-                mConnection = new DefaultHttpClient(connMgr, params);
-            }
-            return mConnection.execute(request);
+            HttpClient client = HttpClientPool.getClient(mContext,
+                request.getURI().toString(), mPrivateKey, mCertificate);
+            return client.execute(request);
         }
         catch (ClientProtocolException e) {
             IOException ie = new IOException("client protocol error");
@@ -180,33 +166,130 @@ public class ClientHTTPConnection {
     /** Downloads to a directory represented by a {@link File} object,
      * determining the file name from the Content-Disposition header. */
     public void downloadAutofilename(String url, File base, DownloadListener listener) throws IOException {
-        _download(url, base, listener);
+        _download(url, base, null, null, listener);
+    }
+
+    /**
+     * Downloads to a directory represented by a {@link File} object,
+     * determining the file name from the Content-Disposition header and
+     * decrypting the content while it's being downloaded. Decryption
+     * failures are reported to {@link DownloadListener#error}.
+     * @param decoder the coder for decrypting the content, null if not encrypted
+     * @param journal the journal entry of the download: if it has partial
+     *                data the download will be resumed from there; it will
+     *                be filled with resume data before the download starts
+     */
+    public void downloadAutofilename(String url, File base, Coder decoder,
+            DownloadJournal.Entry journal, DownloadListener listener) throws IOException {
+        _download(url, base, decoder, journal, listener);
     }
 
-    private void _download(String url, File base, DownloadListener listener) throws IOException {
+    private void _download(String url, File base, Coder decoder,
+            DownloadJournal.Entry journal, DownloadListener listener) throws IOException {
         currentRequest = prepareURLDownload(url);
+
+        // resume from partial data if any
+        File partial = (journal != null && journal.partial != null && journal.destination != null) ?
+            new File(journal.partial) : null;
+        // resume only if the server can tell us whether the content has changed
+        long offset = (partial != null && partial.isFile() && journal.validator != null) ?
+            partial.length() : 0;
+        if (offset > 0) {
+            currentRequest.addHeader("Range", "bytes=" + offset + "-");
+            currentRequest.addHeader("If-Range", journal.validator);
+        }
+
         HttpResponse response = execute(currentRequest);
 
         int code = response.getStatusLine().getStatusCode();
+        File destination = null;
+
+        // HTTP/1.1 206 Partial Content -- resuming
+        if (code == 206 && offset > 0) {
+            if (getContentRangeStart(response) != offset) {
+                // not the range we asked for - start from the beginning
+                Log.w(TAG, "unexpected content range, restarting download");
+                currentRequest.abort();
+                partial.delete();
+                journal.partial = null;
+                _download(url, base, decoder, journal, listener);
+                return;
+            }
+
+            destination = new File(journal.destination);
+        }
         // HTTP/1.1 200 OK -- other codes should throw Exceptions
-        if (code == 200) {
+        else if (code == 200) {
+            // starting from the beginning
+            offset = 0;
+            if (partial != null)
+                partial.delete();
+
             Header disp = response.getFirstHeader("Content-Disposition");
             if (disp != null) {
                 String name = parseContentDisposition(disp.getValue());
                 // TODO should check for content-disposition parsing here
                 // and choose another filename if necessary
+                if (name != null)
+                    destination = new File(base, name);
+            }
+        }
 
-                HttpEntity _entity = response.getEntity();
-                if (name != null && _entity != null) {
-                    // we need to wrap the entity to monitor the download progress
-                    File destination = new File(base, name);
-                    ProgressOutputStreamEntity entity = new ProgressOutputStreamEntity(_entity, url, destination, listener);
-                    FileOutputStream out = new FileOutputStream(destination);
-                    entity.writeTo(out);
-                    out.close();
+        HttpEntity _entity = response.getEntity();
+        if (destination != null && _entity != null) {
+            // when resuming, the journaled partial data is kept in use
+            if (offset == 0) {
+                partial = null;
+                if (journal != null && isResumable(response, decoder)) {
+                    // encrypted data must be kept apart from decrypted data
+                    partial = (decoder != null) ? new File(destination.getPath() + PARTIAL_SUFFIX) : destination;
+                    journal.validator = getValidator(response);
+                }
+            }
+
+            if (journal != null) {
+                journal.destination = destination.getPath();
+                journal.partial = (partial != null) ? partial.getPath() : null;
+                journal.length = offset;
+            }
+
+            // we need to wrap the entity to monitor the download progress
+            ProgressOutputStreamEntity entity = new ProgressOutputStreamEntity(_entity,
+                url, destination, decoder, listener);
+            entity.setResume(offset, decoder != null ? partial : null);
+
+            // decrypted data is always written from the beginning
+            FileOutputStream out = new FileOutputStream(destination, decoder == null && offset > 0);
+            try {
+                entity.writeTo(out);
+            }
+            catch (IOException e) {
+                // release the pooled connection
+                currentRequest.abort();
+                out.close();
+
+                Throwable cause = e.getCause();
+                if (cause instanceof GeneralSecurityException &&
+                        !(cause.getCause() instanceof IOException)) {
+                    // do not leave unverified data around
+                    destination.delete();
+                    if (partial != null)
+                        partial.delete();
+
+                    listener.error(url, destination, cause);
                     return;
                 }
+
+                // keep partial data for resuming
+                if (partial != destination)
+                    destination.delete();
+                throw e;
             }
+            out.close();
+
+            if (partial != null && partial != destination)
+                partial.delete();
+            return;
         }
 
         Log.d(TAG, "invalid response: " + code);
@@ -218,6 +301,55 @@ public class ClientHTTPConnection {
         listener.error(url, null, new IOException("invalid response: " + code));
     }
 
+    /**
+     * Returns true if a download starting from the beginning can be resumed
+     * later. The server must provide a validator for checking that the
+     * content didn't change. Encrypted data must be kept aside while
+     * decrypting, so small encrypted files are just downloaded again.
+     */
+    private static boolean isResumable(HttpResponse response, Coder decoder) {
+        Header ranges = response.getFirstHeader("Accept-Ranges");
+        if (ranges == null || !"bytes".equalsIgnoreCase(ranges.getValue()))
+            return false;
+
+        if (getValidator(response) == null)
+            return false;
+
+        return decoder == null ||
+            response.getEntity().getContentLength() >= RESUME_MIN_ENCRYPTED_LENGTH;
+    }
+
+    /**
+     * Returns a validator for the If-Range header: the strong entity tag of
+     * the content if available, its last modification date otherwise.
+     */
+    private static String getValidator(HttpResponse response) {
+        Header etag = response.getFirstHeader("ETag");
+        // weak entity tags can't be used for ranges
+        if (etag != null && !etag.getValue().startsWith("W/"))
+            return etag.getValue();
+
+        Header lastModified = response.getFirstHeader("Last-Modified");
+        return (lastModified != null) ? lastModified.getValue() : null;
+    }
+
+    /** Returns the first byte position of a partial response, -1 if not available. */
+    private static long getContentRangeStart(HttpResponse response) {
+        Header range = response.getFirstHeader("Content-Range");
+        if (range != null) {
+            Matcher m = CONTENT_RANGE_PATTERN.matcher(range.getValue());
+            if (m.find()) {
+                try {
+                    return Long.parseLong(m.group(1));
+                }
+                catch (NumberFormatException e) {
+                    // out of range
+                }
+            }
+        }
+        return -1;
+    }
+
     /*
      * Parse the Content-Disposition HTTP Header. The format of the header
      * is defined here: http://www.w3.org/Protocols/rfc2616/rfc2616-sec19.html
@@ -237,25 +369,16 @@ public class ClientHTTPConnection {
         return null;
     }
 
-    /** A socket factory for accepting any SSL certificate. */
-    private static final class BlackholeSSLSocketFactory extends SSLSocketFactory {
-        SSLContext sslContext = SSLContext.getInstance("TLS");
+    /**
+     * An SSL socket factory creating sockets bound to host and port, so that
+     * cached TLS sessions can be resumed on new connections.
+     */
+    private static class SessionSSLSocketFactory extends SSLSocketFactory {
+        private final SSLContext sslContext = SSLContext.getInstance("TLS");
 
-        public BlackholeSSLSocketFactory(KeyStore keystore, String keystorePassword, KeyStore truststore)
+        public SessionSSLSocketFactory(KeyStore keystore, KeyStore truststore, TrustManager[] trustManagers)
                 throws NoSuchAlgorithmException, KeyManagementException, KeyStoreException, UnrecoverableKeyException {
-            super(keystore, keystorePassword, truststore);
-
-            TrustManager tm = new X509TrustManager() {
-                public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
-                }
-
-                public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
-                }
-
-                public X509Certificate[] getAcceptedIssuers() {
-                    return null;
-                }
-            };
+            super(keystore, null, truststore);
 
             // key managers
             KeyManager[] km;
@@ -263,17 +386,78 @@ public class ClientHTTPConnection {
             kmFactory.init(keystore, null);
             km = kmFactory.getKeyManagers();
 
-            sslContext.init(km, new TrustManager[] { tm }, null);
+            // trust managers
+            if (trustManagers == null) {
+                TrustManagerFactory tmFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+                tmFactory.init(truststore);
+                trustManagers = tmFactory.getTrustManagers();
+            }
+
+            sslContext.init(km, trustManagers, null);
+            sslContext.getClientSessionContext().setSessionTimeout(SSL_SESSION_TIMEOUT);
         }
 
         @Override
-        public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException, UnknownHostException {
-            return sslContext.getSocketFactory().createSocket(socket, host, port, autoClose);
+        public Socket createSocket() throws IOException {
+            // SSL will be layered over the socket once connected
+            return new Socket();
         }
 
         @Override
-        public Socket createSocket() throws IOException {
-            return sslContext.getSocketFactory().createSocket();
+        public Socket connectSocket(Socket sock, String host, int port,
+                InetAddress localAddress, int localPort, HttpParams params) throws IOException {
+            if (sock == null)
+                sock = createSocket();
+
+            if (localAddress != null || localPort > 0) {
+                if (localPort < 0)
+                    localPort = 0;
+                sock.bind(new InetSocketAddress(localAddress, localPort));
+            }
+
+            sock.connect(new InetSocketAddress(host, port),
+                HttpConnectionParams.getConnectionTimeout(params));
+            sock.setSoTimeout(HttpConnectionParams.getSoTimeout(params));
+
+            return createSocket(sock, host, port, true);
+        }
+
+        @Override
+        public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException, UnknownHostException {
+            SSLSocket sslSocket = (SSLSocket) sslContext.getSocketFactory()
+                .createSocket(socket, host, port, autoClose);
+            try {
+                getHostnameVerifier().verify(host, sslSocket);
+            }
+            catch (IOException e) {
+                try {
+                    sslSocket.close();
+                }
+                catch (IOException ignored) {
+                }
+                throw e;
+            }
+            return sslSocket;
+        }
+    }
+
+    /** A socket factory for accepting any SSL certificate. */
+    private static final class BlackholeSSLSocketFactory extends SessionSSLSocketFactory {
+
+        public BlackholeSSLSocketFactory(KeyStore keystore, KeyStore truststore)
+                throws NoSuchAlgorithmException, KeyManagementException, KeyStoreException, UnrecoverableKeyException {
+            super(keystore, truststore, new TrustManager[] { new X509TrustManager() {
+                public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+                }
+
+                public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+                }
+
+                public X509Certificate[] getAcceptedIssuers() {
+                    return null;
+                }
+            } });
+            setHostnameVerifier(SSLSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER);
         }
     }
 
@@ -0,0 +1,228 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.io.IOException;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.params.ClientPNames;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpParams;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+import org.kontalk.util.Preferences;
+
+
+/**
+ * Process-wide pool of HTTP clients, one per endpoint. Clients share the
+ * same SSL socket factory, so the keystore is built only once and TLS
+ * sessions are resumed on new connections to the same server. Idle
+ * connections are closed periodically. When the client certificate
+ * changes, old clients are retired and shut down as soon as the transfers
+ * still using them are done.
+ * @author Daniele Ricci
+ */
+public final class HttpClientPool {
+    private static final String TAG = HttpClientPool.class.getSimpleName();
+
+    /** Maximum number of connections to an endpoint. */
+    private static final int MAX_CONNECTIONS = 4;
+
+    /** Connections idle for longer than this will be closed. */
+    private static final long IDLE_TIMEOUT = TimeUnit.SECONDS.toMillis(60);
+    /** Interval between checks for idle connections. */
+    private static final long IDLE_CHECK_INTERVAL = TimeUnit.SECONDS.toMillis(30);
+
+    /** Clients by endpoint. */
+    private static final Map<String, HttpClient> sClients = new HashMap<String, HttpClient>();
+    /** Clients replaced by new ones, waiting for their connections to be released. */
+    private static final List<HttpClient> sRetiredClients = new ArrayList<HttpClient>();
+
+    /** SSL socket factory shared by all clients. */
+    private static SSLSocketFactory sSocketFactory;
+    /** Client certificate used by the socket factory. */
+    private static X509Certificate sCertificate;
+    private static boolean sAcceptAnyCertificate;
+
+    private static Timer sIdleTimer;
+
+    private HttpClientPool() {
+    }
+
+    /**
+     * Returns the HTTP client for the endpoint of the given URL. Clients are
+     * thread-safe and keep connections alive between requests.
+     */
+    public static synchronized HttpClient getClient(Context context, String url,
+            PrivateKey privateKey, X509Certificate certificate) throws IOException {
+
+        boolean acceptAnyCertificate = Preferences.getAcceptAnyCertificate(context);
+
+        // personal key or preferences changed - start over
+        if (sSocketFactory != null && (sAcceptAnyCertificate != acceptAnyCertificate ||
+                !certificate.equals(sCertificate)))
+            retireClients();
+
+        if (sSocketFactory == null) {
+            try {
+                sSocketFactory = ClientHTTPConnection.setupSSLSocketFactory(context,
+                    privateKey, certificate, acceptAnyCertificate);
+            }
+            catch (Exception e) {
+                IOException ie = new IOException("unable to create keystore");
+                ie.initCause(e);
+                throw ie;
+            }
+
+            sCertificate = certificate;
+            sAcceptAnyCertificate = acceptAnyCertificate;
+        }
+
+        String endpoint = getEndpoint(url);
+        HttpClient client = sClients.get(endpoint);
+        if (client == null) {
+            Log.v(TAG, "creating HTTP client for " + endpoint);
+            client = createClient();
+            sClients.put(endpoint, client);
+        }
+
+        if (sIdleTimer == null) {
+            sIdleTimer = new Timer("HttpClientPool", true);
+            sIdleTimer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    closeIdleConnections();
+                }
+            }, IDLE_CHECK_INTERVAL, IDLE_CHECK_INTERVAL);
+        }
+
+        return client;
+    }
+
+    /** Closes all connections and discards all clients. */
+    public static synchronized void shutdown() {
+        if (sIdleTimer != null) {
+            sIdleTimer.cancel();
+            sIdleTimer = null;
+        }
+
+        for (HttpClient client : sClients.values())
+            client.getConnectionManager().shutdown();
+        sClients.clear();
+
+        for (HttpClient client : sRetiredClients)
+            client.getConnectionManager().shutdown();
+        sRetiredClients.clear();
+
+        sSocketFactory = null;
+        sCertificate = null;
+    }
+
+    /**
+     * Discards all clients without interrupting transfers in progress.
+     * Idle connections are closed now, the rest when they are released.
+     */
+    private static void retireClients() {
+        for (HttpClient client : sClients.values()) {
+            client.getConnectionManager().closeIdleConnections(0, TimeUnit.MILLISECONDS);
+            sRetiredClients.add(client);
+        }
+        sClients.clear();
+
+        sSocketFactory = null;
+        sCertificate = null;
+    }
+
+    private static synchronized void closeIdleConnections() {
+        int pooled = 0;
+        for (HttpClient client : sClients.values()) {
+            ThreadSafeClientConnManager connMgr = (ThreadSafeClientConnManager)
+                client.getConnectionManager();
+            connMgr.closeExpiredConnections();
+            connMgr.closeIdleConnections(IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+            pooled += connMgr.getConnectionsInPool();
+        }
+
+        // retired clients are shut down when no connections are left
+        Iterator<HttpClient> retired = sRetiredClients.iterator();
+        while (retired.hasNext()) {
+            ThreadSafeClientConnManager connMgr = (ThreadSafeClientConnManager)
+                retired.next().getConnectionManager();
+            connMgr.closeIdleConnections(0, TimeUnit.MILLISECONDS);
+            int connections = connMgr.getConnectionsInPool();
+            if (connections == 0) {
+                connMgr.shutdown();
+                retired.remove();
+            }
+            pooled += connections;
+        }
+
+        // nothing left to check - timer will be restarted when needed
+        if (pooled == 0 && sIdleTimer != null) {
+            sIdleTimer.cancel();
+            sIdleTimer = null;
+        }
+    }
+
+    private static HttpClient createClient() {
+        SchemeRegistry registry = new SchemeRegistry();
+        registry.register(new Scheme("http",  PlainSocketFactory.getSocketFactory(), 80));
+        registry.register(new Scheme("https", sSocketFactory, 443));
+
+        HttpParams params = new BasicHttpParams();
+        // handle redirects :)
+        params.setBooleanParameter(ClientPNames.HANDLE_REDIRECTS, true);
+        // HttpClient bug caused by Lighttpd
+        params.setBooleanParameter("http.protocol.expect-continue", false);
+        // connection pool limits
+        ConnManagerParams.setMaxTotalConnections(params, MAX_CONNECTIONS);
+        ConnManagerParams.setMaxConnectionsPerRoute(params,
+            new ConnPerRouteBean(MAX_CONNECTIONS));
+
+        return new DefaultHttpClient(new ThreadSafeClientConnManager(params, registry), params);
+    }
+
+    /** Returns the endpoint (scheme, host and port) of the given URL. */
+    private static String getEndpoint(String url) {
+        Uri uri = Uri.parse(url);
+        return uri.getScheme() + "://" + uri.getHost() + ":" + uri.getPort();
+    }
+
+}
@@ -0,0 +1,268 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.crypto;
+
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.util.concurrent.ThreadFactory;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.spongycastle.crypto.BufferedBlockCipher;
+import org.spongycastle.crypto.engines.AESEngine;
+import org.spongycastle.crypto.modes.CFBBlockCipher;
+import org.spongycastle.crypto.params.KeyParameter;
+import org.spongycastle.openpgp.PGPException;
+import org.spongycastle.openpgp.PGPPrivateKey;
+import org.spongycastle.openpgp.operator.PGPDataDecryptor;
+import org.spongycastle.openpgp.operator.PGPDataEncryptor;
+import org.spongycastle.openpgp.operator.PGPDataEncryptorBuilder;
+import org.spongycastle.openpgp.operator.PublicKeyDataDecryptorFactory;
+import org.spongycastle.openpgp.operator.bc.BcPGPDataEncryptorBuilder;
+import org.spongycastle.openpgp.operator.bc.BcPublicKeyDataDecryptorFactory;
+import org.spongycastle.openpgp.operator.jcajce.JcePGPDataEncryptorBuilder;
+import org.spongycastle.openpgp.operator.jcajce.JcePublicKeyDataDecryptorFactoryBuilder;
+
+
+/**
+ * Operators for the symmetric encryption of bulk data (i.e. files).
+ * Packet handling and session key encryption are always done by the Bc
+ * operators, while the symmetric cipher may be provided by a platform JCA
+ * provider, which can be much faster than spongycastle's Java AES (e.g.
+ * when backed by OpenSSL). The provider is chosen by a quick benchmark
+ * run in background at startup; until then, or if no provider is faster,
+ * Bc operators are used. Failures from the chosen provider fall back to Bc.
+ * Messages are logged through {@link CryptoLog}.
+ * @author Daniele Ricci
+ */
+public final class BulkOperators {
+    private static final String TAG = BulkOperators.class.getSimpleName();
+
+    /** JCA transformation used by OpenPGP CFB mode with integrity packet. */
+    private static final String TRANSFORMATION = "AES/CFB/NoPadding";
+    /** AES-192 key length, same as our encrypted data. */
+    private static final int KEY_LENGTH = 24;
+
+    /** Size of the data encrypted in a benchmark round. */
+    private static final int BENCHMARK_DATA_SIZE = 64 * 1024;
+    /** Benchmark rounds not measured (warm up). */
+    private static final int BENCHMARK_WARMUP = 2;
+    /** Benchmark rounds measured. */
+    private static final int BENCHMARK_ROUNDS = 8;
+    /** A provider must be at least this faster than Bc to be used. */
+    private static final double MIN_SPEEDUP = 1.2;
+
+    private static final String SPONGYCASTLE_PACKAGE = "org.spongycastle.";
+
+    /** Chosen JCA provider, null for Bc. */
+    private static volatile Provider sProvider;
+
+    private static boolean sStarted;
+
+    private BulkOperators() {
+    }
+
+    /**
+     * Starts the benchmark for choosing the operators, if not already done.
+     * @param threads factory for the benchmark thread
+     */
+    public static synchronized void init(ThreadFactory threads) {
+        if (sStarted)
+            return;
+        sStarted = true;
+
+        threads.newThread(new Runnable() {
+            @Override
+            public void run() {
+                sProvider = chooseProvider();
+            }
+        }).start();
+    }
+
+    /** Creates an encryptor builder for bulk data, with integrity packet. */
+    static PGPDataEncryptorBuilder createEncryptorBuilder(int algorithm, SecureRandom random) {
+        BcPGPDataEncryptorBuilder bc = new BcPGPDataEncryptorBuilder(algorithm);
+        bc.setWithIntegrityPacket(true);
+        bc.setSecureRandom(random);
+
+        Provider provider = sProvider;
+        if (provider == null)
+            return bc;
+
+        JcePGPDataEncryptorBuilder jce = new JcePGPDataEncryptorBuilder(algorithm)
+            .setWithIntegrityPacket(true)
+            .setSecureRandom(random)
+            .setProvider(provider);
+
+        return new FallbackEncryptorBuilder(jce, bc);
+    }
+
+    /** Creates a decryptor factory for bulk data. */
+    static PublicKeyDataDecryptorFactory createDecryptorFactory(PGPPrivateKey key) {
+        BcPublicKeyDataDecryptorFactory bc = new BcPublicKeyDataDecryptorFactory(key);
+
+        Provider provider = sProvider;
+        if (provider == null)
+            return bc;
+
+        PublicKeyDataDecryptorFactory jce = new JcePublicKeyDataDecryptorFactoryBuilder()
+            .setContentProvider(provider)
+            .build(key);
+
+        return new FallbackDecryptorFactory(jce, bc);
+    }
+
+    private static Provider chooseProvider() {
+        byte[] key = new byte[KEY_LENGTH];
+        byte[] data = new byte[BENCHMARK_DATA_SIZE];
+        byte[] out = new byte[BENCHMARK_DATA_SIZE];
+        SecureRandom random = new SecureRandom();
+        random.nextBytes(key);
+        random.nextBytes(data);
+
+        long bcTime = benchmarkBc(key, data, out);
+        CryptoLog.v(TAG, "Bc AES: " + bcTime / 1000 + " us");
+
+        Provider best = null;
+        long bestTime = (long) (bcTime / MIN_SPEEDUP);
+
+        for (Provider provider : Security.getProviders()) {
+            // our provider is Bc itself
+            if (provider.getClass().getName().startsWith(SPONGYCASTLE_PACKAGE))
+                continue;
+
+            try {
+                long time = benchmarkJca(provider, key, data, out);
+                CryptoLog.v(TAG, provider.getName() + " AES: " + time / 1000 + " us");
+
+                if (time < bestTime) {
+                    best = provider;
+                    bestTime = time;
+                }
+            }
+            catch (Exception e) {
+                // provider doesn't support AES/CFB - skip it
+            }
+        }
+
+        CryptoLog.d(TAG, "bulk encryption using " + (best != null ? best.getName() : "Bc"));
+        return best;
+    }
+
+    private static long benchmarkBc(byte[] key, byte[] data, byte[] out) {
+        BufferedBlockCipher cipher = new BufferedBlockCipher(
+            new CFBBlockCipher(new AESEngine(), 128));
+
+        long start = 0;
+        for (int i = 0; i < BENCHMARK_WARMUP + BENCHMARK_ROUNDS; i++) {
+            if (i == BENCHMARK_WARMUP)
+                start = System.nanoTime();
+
+            cipher.init(true, new KeyParameter(key));
+            cipher.processBytes(data, 0, data.length, out, 0);
+        }
+
+        return System.nanoTime() - start;
+    }
+
+    private static long benchmarkJca(Provider provider, byte[] key, byte[] data, byte[] out)
+            throws Exception {
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION, provider);
+        SecretKeySpec keySpec = new SecretKeySpec(key, "AES");
+        IvParameterSpec iv = new IvParameterSpec(new byte[cipher.getBlockSize()]);
+
+        long start = 0;
+        for (int i = 0; i < BENCHMARK_WARMUP + BENCHMARK_ROUNDS; i++) {
+            if (i == BENCHMARK_WARMUP)
+                start = System.nanoTime();
+
+            cipher.init(Cipher.ENCRYPT_MODE, keySpec, iv);
+            cipher.update(data, 0, data.length, out, 0);
+        }
+
+        return System.nanoTime() - start;
+    }
+
+    /** Uses the JCA encryptor, falling back to Bc if it fails. */
+    private static final class FallbackEncryptorBuilder implements PGPDataEncryptorBuilder {
+        private final PGPDataEncryptorBuilder mJce;
+        private final PGPDataEncryptorBuilder mBc;
+
+        FallbackEncryptorBuilder(PGPDataEncryptorBuilder jce, PGPDataEncryptorBuilder bc) {
+            mJce = jce;
+            mBc = bc;
+        }
+
+        @Override
+        public int getAlgorithm() {
+            return mBc.getAlgorithm();
+        }
+
+        @Override
+        public PGPDataEncryptor build(byte[] keyBytes) throws PGPException {
+            try {
+                return mJce.build(keyBytes);
+            }
+            catch (PGPException e) {
+                CryptoLog.w(TAG, "JCA encryptor failed, using Bc", e);
+                return mBc.build(keyBytes);
+            }
+        }
+
+        @Override
+        public SecureRandom getSecureRandom() {
+            return mBc.getSecureRandom();
+        }
+    }
+
+    /**
+     * Recovers the session key with Bc and decrypts data with the JCA
+     * decryptor, falling back to Bc if it fails.
+     */
+    private static final class FallbackDecryptorFactory implements PublicKeyDataDecryptorFactory {
+        private final PublicKeyDataDecryptorFactory mJce;
+        private final PublicKeyDataDecryptorFactory mBc;
+
+        FallbackDecryptorFactory(PublicKeyDataDecryptorFactory jce, PublicKeyDataDecryptorFactory bc) {
+            mJce = jce;
+            mBc = bc;
+        }
+
+        @Override
+        public byte[] recoverSessionData(int keyAlgorithm, byte[][] secKeyData) throws PGPException {
+            return mBc.recoverSessionData(keyAlgorithm, secKeyData);
+        }
+
+        @Override
+        public PGPDataDecryptor createDataDecryptor(boolean withIntegrityPacket,
+                int encAlgorithm, byte[] key) throws PGPException {
+            try {
+                return mJce.createDataDecryptor(withIntegrityPacket, encAlgorithm, key);
+            }
+            catch (PGPException e) {
+                CryptoLog.w(TAG, "JCA decryptor failed, using Bc", e);
+                return mBc.createDataDecryptor(withIntegrityPacket, encAlgorithm, key);
+            }
+        }
+    }
+
+}
@@ -76,6 +76,9 @@ public abstract class Coder {
     /** Basic encryption (e.g. PGP). */
     public static final int SECURITY_BASIC = SECURITY_BASIC_ENCRYPTED | SECURITY_BASIC_SIGNED;
 
+    /** MIME type of the stanzas encrypted by {@link #encryptStanza}. */
+    public static final String XML_XMPP_TYPE = "application/xmpp+xml";
+
 
     /** Encrypts a string. */
     public abstract byte[] encryptText(CharSequence text) throws GeneralSecurityException;
@@ -91,6 +94,14 @@ public abstract class Coder {
     /** Encrypts a file. */
     public abstract void encryptFile(InputStream input, OutputStream output) throws GeneralSecurityException;
 
+    /**
+     * Encrypts a file of the given MIME type. The type might be used for
+     * deciding whether to compress data or not.
+     */
+    public void encryptFile(InputStream input, OutputStream output, String mime) throws GeneralSecurityException {
+        encryptFile(input, output);
+    }
+
     /** Decrypts a file. */
     public abstract void decryptFile(InputStream input, boolean verify,
         OutputStream output, List<DecryptException> errors) throws GeneralSecurityException;
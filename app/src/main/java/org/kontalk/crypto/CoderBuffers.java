@@ -0,0 +1,87 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.crypto;
+
+import java.io.ByteArrayOutputStream;
+
+
+/**
+ * Per-thread buffers for coder operations, so that encrypting and
+ * decrypting a lot of messages doesn't allocate new buffers every time.
+ * Buffers must not be used outside the coder method that got them.
+ * @author Daniele Ricci
+ */
+final class CoderBuffers {
+
+    /** Size of packet generator buffers. It should always be a power of 2. */
+    private static final int PACKET_BUFFER_SIZE = 1 << 8;
+    /** Size of the buffer for reading data. */
+    private static final int IO_BUFFER_SIZE = 8192;
+    /** Output buffers larger than this won't be kept around. */
+    private static final int MAX_RETAINED_OUTPUT = 64 * 1024;
+
+    private static final ThreadLocal<CoderBuffers> sBuffers = new ThreadLocal<CoderBuffers>() {
+        @Override
+        protected CoderBuffers initialValue() {
+            return new CoderBuffers();
+        }
+    };
+
+    /** Buffer for the encrypted data generator. */
+    final byte[] encrypted = new byte[PACKET_BUFFER_SIZE];
+    /** Buffer for the compressed data generator. */
+    final byte[] compressed = new byte[PACKET_BUFFER_SIZE];
+    /** Buffer for the literal data generator. */
+    final byte[] literal = new byte[PACKET_BUFFER_SIZE];
+    /** Buffer for reading data. */
+    final byte[] io = new byte[IO_BUFFER_SIZE];
+
+    private OutputBuffer mOutput;
+
+    /** A byte array output stream whose buffer can be reused. */
+    static final class OutputBuffer extends ByteArrayOutputStream {
+        OutputBuffer() {
+            super(IO_BUFFER_SIZE);
+        }
+
+        int capacity() {
+            return buf.length;
+        }
+    }
+
+    private CoderBuffers() {
+    }
+
+    /** Returns the buffers for the current thread. */
+    static CoderBuffers get() {
+        return sBuffers.get();
+    }
+
+    /** Returns an empty output buffer. */
+    OutputBuffer getOutput() {
+        // don't keep huge buffers around
+        if (mOutput == null || mOutput.capacity() > MAX_RETAINED_OUTPUT)
+            mOutput = new OutputBuffer();
+        else
+            mOutput.reset();
+
+        return mOutput;
+    }
+
+}
@@ -0,0 +1,141 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.crypto;
+
+import java.util.Locale;
+import java.util.zip.Deflater;
+
+import org.spongycastle.openpgp.PGPCompressedData;
+import org.spongycastle.openpgp.PGPCompressedDataGenerator;
+
+
+/**
+ * Chooses how to compress data before encryption. Media and archives are
+ * already compressed, so they are just stored; everything else is deflated
+ * with the fastest compression level. When the MIME type doesn't tell, a
+ * sample of the data is checked for entropy.
+ * A compressed data packet is always generated (possibly with no
+ * compression), so receivers expecting one will keep working.
+ * @author Daniele Ricci
+ */
+final class CompressionPolicy {
+
+    /** Bytes to sample for entropy when the MIME type is unknown. */
+    static final int SAMPLE_SIZE = 4096;
+
+    /** Samples with more bits of entropy per byte are not compressed. */
+    private static final double MAX_ENTROPY = 7.5;
+
+    /** Compression can't be decided by MIME type. */
+    static final int UNKNOWN = -1;
+
+    /** Compressed MIME types not starting with image/, audio/ or video/. */
+    private static final String[] COMPRESSED_TYPES = {
+        "application/zip",
+        "application/gzip",
+        "application/x-gzip",
+        "application/x-bzip2",
+        "application/x-7z-compressed",
+        "application/x-rar-compressed",
+        "application/ogg",
+        "application/pdf",
+        "application/vnd.android.package-archive",
+    };
+
+    /** Uncompressed image and audio formats. */
+    private static final String[] UNCOMPRESSED_MEDIA_TYPES = {
+        "image/bmp",
+        "image/x-ms-bmp",
+        "audio/wav",
+        "audio/x-wav",
+    };
+
+    private CompressionPolicy() {
+    }
+
+    /**
+     * Returns the compression algorithm for data of the given MIME type.
+     * @return a {@link PGPCompressedData} algorithm or {@link #UNKNOWN}
+     */
+    static int forMime(String mime) {
+        if (mime == null)
+            return UNKNOWN;
+
+        mime = mime.toLowerCase(Locale.US);
+
+        if (mime.startsWith("text/") || mime.endsWith("+xml") ||
+                mime.equals("application/xml") || mime.equals("application/json"))
+            return PGPCompressedData.ZIP;
+
+        if (mime.startsWith("image/") || mime.startsWith("audio/") || mime.startsWith("video/"))
+            return contains(UNCOMPRESSED_MEDIA_TYPES, mime) ?
+                PGPCompressedData.ZIP : PGPCompressedData.UNCOMPRESSED;
+
+        if (contains(COMPRESSED_TYPES, mime))
+            return PGPCompressedData.UNCOMPRESSED;
+
+        return UNKNOWN;
+    }
+
+    /**
+     * Returns the compression algorithm for data starting with the given sample.
+     * @return a {@link PGPCompressedData} algorithm
+     */
+    static int forSample(byte[] sample, int length) {
+        return entropy(sample, length) > MAX_ENTROPY ?
+            PGPCompressedData.UNCOMPRESSED : PGPCompressedData.ZIP;
+    }
+
+    /** Creates a compressed data generator for the given algorithm. */
+    static PGPCompressedDataGenerator createGenerator(int algorithm) {
+        if (algorithm == PGPCompressedData.UNCOMPRESSED)
+            return new PGPCompressedDataGenerator(PGPCompressedData.UNCOMPRESSED);
+
+        return new PGPCompressedDataGenerator(algorithm, Deflater.BEST_SPEED);
+    }
+
+    /** Shannon entropy of the given data, in bits per byte. */
+    private static double entropy(byte[] data, int length) {
+        if (length <= 0)
+            return 0;
+
+        int[] counts = new int[256];
+        for (int i = 0; i < length; i++)
+            counts[data[i] & 0xff]++;
+
+        double entropy = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                double p = (double) count / length;
+                entropy -= p * Math.log(p);
+            }
+        }
+
+        return entropy / Math.log(2);
+    }
+
+    private static boolean contains(String[] types, String mime) {
+        for (String type : types) {
+            if (type.equals(mime))
+                return true;
+        }
+        return false;
+    }
+
+}
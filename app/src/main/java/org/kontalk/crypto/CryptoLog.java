@@ -0,0 +1,68 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.crypto;
+
+
+/**
+ * Logging for the crypto classes that don't depend on Android. Messages
+ * go to the logger installed with {@link #setLogger}, and are discarded
+ * if there is none.
+ * @author Daniele Ricci
+ */
+public final class CryptoLog {
+
+    /* Same values as the android.util.Log priorities. */
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+    public static final int WARN = 5;
+
+    /** Receives log messages. */
+    public interface Logger {
+        /** Logs a message; tr might be null. */
+        void log(int priority, String tag, String msg, Throwable tr);
+    }
+
+    private static volatile Logger sLogger;
+
+    private CryptoLog() {
+    }
+
+    public static void setLogger(Logger logger) {
+        sLogger = logger;
+    }
+
+    static void v(String tag, String msg) {
+        log(VERBOSE, tag, msg, null);
+    }
+
+    static void d(String tag, String msg) {
+        log(DEBUG, tag, msg, null);
+    }
+
+    static void w(String tag, String msg, Throwable tr) {
+        log(WARN, tag, msg, tr);
+    }
+
+    private static void log(int priority, String tag, String msg, Throwable tr) {
+        Logger logger = sLogger;
+        if (logger != null)
+            logger.log(priority, tag, msg, tr);
+    }
+
+}
@@ -0,0 +1,187 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.crypto;
+
+import java.security.SecureRandom;
+
+import org.spongycastle.bcpg.HashAlgorithmTags;
+import org.spongycastle.openpgp.PGPEncryptedData;
+import org.spongycastle.openpgp.PGPEncryptedDataGenerator;
+import org.spongycastle.openpgp.PGPException;
+import org.spongycastle.openpgp.PGPKeyPair;
+import org.spongycastle.openpgp.PGPPrivateKey;
+import org.spongycastle.openpgp.PGPPublicKey;
+import org.spongycastle.openpgp.PGPSignature;
+import org.spongycastle.openpgp.PGPSignatureGenerator;
+import org.spongycastle.openpgp.PGPSignatureSubpacketGenerator;
+import org.spongycastle.openpgp.PGPSignatureSubpacketVector;
+import org.spongycastle.openpgp.operator.PGPDataEncryptorBuilder;
+import org.spongycastle.openpgp.operator.bc.BcPGPContentSignerBuilder;
+import org.spongycastle.openpgp.operator.bc.BcPGPContentVerifierBuilderProvider;
+import org.spongycastle.openpgp.operator.bc.BcPGPDataEncryptorBuilder;
+import org.spongycastle.openpgp.operator.bc.BcPublicKeyKeyEncryptionMethodGenerator;
+
+
+/**
+ * Crypto state for talking to the same peers: user IDs, encryption keys
+ * and signer setup are computed once and reused for every message.
+ * Sessions are immutable and can be used by several threads at once.
+ * Keys and user IDs are given by the caller, so this class doesn't depend
+ * on how they are stored.
+ * @author Daniele Ricci
+ */
+public final class CryptoSession {
+
+    /** Random generator shared by all sessions (it's thread-safe). */
+    private static SecureRandom sRandom;
+
+    private final PGPKeyPair mKey;
+
+    /** Our user ID. */
+    private final String mUserId;
+    /** User ID of the first peer, null if there are no peers. */
+    private final String mPeerUserId;
+    /** Message/CPIM recipients header. */
+    private final String mRecipients;
+    /** Encryption key of the first peer, null if there are no peers. */
+    private final PGPPublicKey mPeerKey;
+
+    private final BcPGPDataEncryptorBuilder mEncryptor;
+    private final BcPublicKeyKeyEncryptionMethodGenerator[] mEncryptionMethods;
+    private final BcPGPContentSignerBuilder mSigner;
+    private final PGPSignatureSubpacketVector mSignerSubpackets;
+    private final BcPGPContentVerifierBuilderProvider mVerifier;
+
+    /**
+     * Creates a new session.
+     * @param key our encryption key pair
+     * @param userId our user ID
+     * @param peerKeys encryption keys of the recipients when encrypting, of
+     *                 the sender when decrypting (if available)
+     * @param peerUserIds user IDs of the peers, in the same order
+     */
+    public CryptoSession(PGPKeyPair key, String userId, PGPPublicKey[] peerKeys, String[] peerUserIds) {
+        if (peerKeys.length != peerUserIds.length)
+            throw new IllegalArgumentException("peer keys and user IDs don't match");
+
+        mKey = key;
+        mUserId = userId;
+
+        SecureRandom random = getRandom();
+
+        StringBuilder to = new StringBuilder();
+        mEncryptionMethods = new BcPublicKeyKeyEncryptionMethodGenerator[peerKeys.length];
+        for (int i = 0; i < peerKeys.length; i++) {
+            to.append(peerUserIds[i])
+                .append("; ");
+            mEncryptionMethods[i] = new BcPublicKeyKeyEncryptionMethodGenerator(peerKeys[i]);
+            mEncryptionMethods[i].setSecureRandom(random);
+        }
+        mRecipients = to.toString();
+
+        if (peerKeys.length > 0) {
+            mPeerUserId = peerUserIds[0];
+            mPeerKey = peerKeys[0];
+        }
+        else {
+            mPeerUserId = null;
+            mPeerKey = null;
+        }
+
+        mEncryptor = new BcPGPDataEncryptorBuilder(PGPEncryptedData.AES_192);
+        mEncryptor.setWithIntegrityPacket(true);
+        mEncryptor.setSecureRandom(random);
+
+        mSigner = new BcPGPContentSignerBuilder(key.getPublicKey().getAlgorithm(),
+            HashAlgorithmTags.SHA1);
+        mSigner.setSecureRandom(random);
+
+        PGPSignatureSubpacketGenerator spGen = new PGPSignatureSubpacketGenerator();
+        spGen.setSignerUserID(false, mUserId);
+        mSignerSubpackets = spGen.generate();
+
+        mVerifier = new BcPGPContentVerifierBuilderProvider();
+    }
+
+    private static synchronized SecureRandom getRandom() {
+        if (sRandom == null)
+            sRandom = new SecureRandom();
+        return sRandom;
+    }
+
+    /** Returns our private key, for decrypting. */
+    PGPPrivateKey getPrivateKey() {
+        return mKey.getPrivateKey();
+    }
+
+    /** Returns true if the key of the sender is available when decrypting. */
+    boolean hasSender() {
+        return mPeerKey != null;
+    }
+
+    String getUserId() {
+        return mUserId;
+    }
+
+    String getSenderUserId() {
+        return mPeerUserId;
+    }
+
+    PGPPublicKey getSenderKey() {
+        return mPeerKey;
+    }
+
+    String getRecipients() {
+        return mRecipients;
+    }
+
+    BcPGPContentVerifierBuilderProvider getVerifier() {
+        return mVerifier;
+    }
+
+    /** Creates a data generator encrypting for all recipients. */
+    PGPEncryptedDataGenerator createEncryptedDataGenerator() {
+        return createEncryptedDataGenerator(mEncryptor);
+    }
+
+    /**
+     * Creates a data generator encrypting bulk data for all recipients.
+     * @see BulkOperators
+     */
+    PGPEncryptedDataGenerator createBulkEncryptedDataGenerator() {
+        return createEncryptedDataGenerator(BulkOperators
+            .createEncryptorBuilder(PGPEncryptedData.AES_192, getRandom()));
+    }
+
+    private PGPEncryptedDataGenerator createEncryptedDataGenerator(PGPDataEncryptorBuilder encryptor) {
+        PGPEncryptedDataGenerator encGen = new PGPEncryptedDataGenerator(encryptor);
+        for (BcPublicKeyKeyEncryptionMethodGenerator method : mEncryptionMethods)
+            encGen.addMethod(method);
+        return encGen;
+    }
+
+    /** Creates a signature generator ready for signing a document. */
+    PGPSignatureGenerator createSignatureGenerator() throws PGPException {
+        PGPSignatureGenerator sigGen = new PGPSignatureGenerator(mSigner);
+        sigGen.init(PGPSignature.BINARY_DOCUMENT, mKey.getPrivateKey());
+        sigGen.setUnhashedSubpackets(mSignerSubpackets);
+        return sigGen;
+    }
+
+}
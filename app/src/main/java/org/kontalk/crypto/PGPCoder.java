@@ -18,23 +18,19 @@
 
 package org.kontalk.crypto;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.security.GeneralSecurityException;
-import java.security.SecureRandom;
 import java.security.SignatureException;
 import java.text.ParseException;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
 
-import org.spongycastle.bcpg.HashAlgorithmTags;
 import org.spongycastle.openpgp.PGPCompressedData;
 import org.spongycastle.openpgp.PGPCompressedDataGenerator;
-import org.spongycastle.openpgp.PGPEncryptedData;
 import org.spongycastle.openpgp.PGPEncryptedDataGenerator;
 import org.spongycastle.openpgp.PGPEncryptedDataList;
 import org.spongycastle.openpgp.PGPException;
@@ -45,23 +41,15 @@ import org.spongycastle.openpgp.PGPOnePassSignature;
 import org.spongycastle.openpgp.PGPOnePassSignatureList;
 import org.spongycastle.openpgp.PGPPrivateKey;
 import org.spongycastle.openpgp.PGPPublicKeyEncryptedData;
-import org.spongycastle.openpgp.PGPPublicKeyRing;
 import org.spongycastle.openpgp.PGPSignature;
 import org.spongycastle.openpgp.PGPSignatureGenerator;
 import org.spongycastle.openpgp.PGPSignatureList;
-import org.spongycastle.openpgp.PGPSignatureSubpacketGenerator;
 import org.spongycastle.openpgp.operator.KeyFingerPrintCalculator;
 import org.spongycastle.openpgp.operator.bc.BcKeyFingerprintCalculator;
-import org.spongycastle.openpgp.operator.bc.BcPGPContentSignerBuilder;
-import org.spongycastle.openpgp.operator.bc.BcPGPContentVerifierBuilderProvider;
-import org.spongycastle.openpgp.operator.bc.BcPGPDataEncryptorBuilder;
 import org.spongycastle.openpgp.operator.bc.BcPublicKeyDataDecryptorFactory;
-import org.spongycastle.openpgp.operator.bc.BcPublicKeyKeyEncryptionMethodGenerator;
 
-import org.kontalk.client.EndpointServer;
 import org.kontalk.message.TextComponent;
 import org.kontalk.util.CPIMMessage;
-import org.kontalk.util.XMPPUtils;
 
 import static org.kontalk.crypto.DecryptException.DECRYPT_EXCEPTION_INTEGRITY_CHECK;
 import static org.kontalk.crypto.DecryptException.DECRYPT_EXCEPTION_INVALID_DATA;
@@ -81,29 +69,11 @@ public class PGPCoder extends Coder {
     private static final KeyFingerPrintCalculator sFingerprintCalculator =
         new BcKeyFingerprintCalculator();
 
-    /** Buffer size. It should always be a power of 2. */
-    private static final int BUFFER_SIZE = 1 << 8;
+    /** Recipients when encrypting, sender (if available) when decrypting. */
+    private final CryptoSession mSession;
 
-    private final EndpointServer mServer;
-    private final PersonalKey mKey;
-
-    // either one of these two has a value
-
-    private final PGPPublicKeyRing[] mRecipients;
-    private final PGPPublicKeyRing mSender;
-
-    public PGPCoder(EndpointServer server, PersonalKey key, PGPPublicKeyRing[] recipients) {
-        mServer = server;
-        mKey = key;
-        mRecipients = recipients;
-        mSender = null;
-    }
-
-    public PGPCoder(EndpointServer server, PersonalKey key, PGPPublicKeyRing sender) {
-        mServer = server;
-        mKey = key;
-        mRecipients = null;
-        mSender = sender;
+    public PGPCoder(CryptoSession session) {
+        mSession = session;
     }
 
     @Override
@@ -131,7 +101,7 @@ public class PGPCoder extends Coder {
                     xml +
                 "</xmpp>";
 
-            return encryptData(XMPPUtils.XML_XMPP_TYPE, xmlWrapper.toString());
+            return encryptData(XML_XMPP_TYPE, xmlWrapper.toString());
         }
 
         catch (PGPException e) {
@@ -146,44 +116,26 @@ public class PGPCoder extends Coder {
     private byte[] encryptData(String mime, CharSequence data)
             throws PGPException, IOException, SignatureException {
 
-        String from = mKey.getUserId(mServer.getNetwork());
-        StringBuilder to = new StringBuilder();
-        for (PGPPublicKeyRing rcpt : mRecipients)
-            to.append(PGP.getUserId(PGP.getMasterKey(rcpt), mServer.getNetwork()))
-                .append("; ");
-
         // secure the message against the most basic attacks using Message/CPIM
-        CPIMMessage cpim = new CPIMMessage(from, to.toString(), new Date(), mime, data);
+        CPIMMessage cpim = new CPIMMessage(mSession.getUserId(),
+            mSession.getRecipients(), new Date(), mime, data);
         byte[] plainText = cpim.toByteArray();
 
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        ByteArrayInputStream in = new ByteArrayInputStream(plainText);
-
-        // setup data encryptor & generator
-        BcPGPDataEncryptorBuilder encryptor = new BcPGPDataEncryptorBuilder(PGPEncryptedData.AES_192);
-        encryptor.setWithIntegrityPacket(true);
-        encryptor.setSecureRandom(new SecureRandom());
+        CoderBuffers buffers = CoderBuffers.get();
+        ByteArrayOutputStream out = buffers.getOutput();
 
-        // add public key recipients
-        PGPEncryptedDataGenerator encGen = new PGPEncryptedDataGenerator(encryptor);
-        for (PGPPublicKeyRing rcpt : mRecipients)
-            encGen.addMethod(new BcPublicKeyKeyEncryptionMethodGenerator(PGP.getEncryptionKey(rcpt)));
+        // setup data generator for all recipients
+        PGPEncryptedDataGenerator encGen = mSession.createEncryptedDataGenerator();
 
-        OutputStream encryptedOut = encGen.open(out, new byte[BUFFER_SIZE]);
+        OutputStream encryptedOut = encGen.open(out, buffers.encrypted);
 
-        // setup compressed data generator
-        PGPCompressedDataGenerator compGen = new PGPCompressedDataGenerator(PGPCompressedData.ZIP);
-        OutputStream compressedOut = compGen.open(encryptedOut, new byte[BUFFER_SIZE]);
+        // setup compressed data generator (text is always worth compressing)
+        PGPCompressedDataGenerator compGen = CompressionPolicy
+            .createGenerator(PGPCompressedData.ZIP);
+        OutputStream compressedOut = compGen.open(encryptedOut, buffers.compressed);
 
         // setup signature generator
-        PGPSignatureGenerator sigGen = new PGPSignatureGenerator
-                (new BcPGPContentSignerBuilder(mKey.getEncryptKeyPair()
-                    .getPublicKey().getAlgorithm(), HashAlgorithmTags.SHA1));
-        sigGen.init(PGPSignature.BINARY_DOCUMENT, mKey.getEncryptKeyPair().getPrivateKey());
-
-        PGPSignatureSubpacketGenerator spGen = new PGPSignatureSubpacketGenerator();
-        spGen.setSignerUserID(false, mKey.getUserId(mServer.getNetwork()));
-        sigGen.setUnhashedSubpackets(spGen.generate());
+        PGPSignatureGenerator sigGen = mSession.createSignatureGenerator();
 
         sigGen.generateOnePassVersion(false)
             .encode(compressedOut);
@@ -195,19 +147,12 @@ public class PGPCoder extends Coder {
             PGPLiteralData.BINARY,
             "",
             new Date(),
-            new byte[BUFFER_SIZE]);
-
-        // read the "in" stream, compress, encrypt and write to the "out" stream
-        // this must be done if clear data is bigger than the buffer size
-        // but there are other ways to optimize...
-        byte[] buf = new byte[BUFFER_SIZE];
-        int len;
-        while ((len = in.read(buf)) > 0) {
-            literalOut.write(buf, 0, len);
-            sigGen.update(buf, 0, len);
-        }
+            buffers.literal);
+
+        // compress, encrypt and write to the "out" stream
+        literalOut.write(plainText);
+        sigGen.update(plainText);
 
-        in.close();
         literalGen.close();
         // Generate the signature, compress, encrypt and write to the "out" stream
         sigGen.generate().encode(compressedOut);
@@ -243,13 +188,13 @@ public class PGPCoder extends Coder {
             PGPPublicKeyEncryptedData pbe = null;
 
             // our encryption keyID
-            long ourKeyID = mKey.getEncryptKeyPair().getPrivateKey().getKeyID();
+            long ourKeyID = mSession.getPrivateKey().getKeyID();
 
             while (sKey == null && it.hasNext()) {
                 pbe = it.next();
 
                 if (pbe.getKeyID() == ourKeyID)
-                    sKey = mKey.getEncryptKeyPair().getPrivateKey();
+                    sKey = mSession.getPrivateKey();
             }
 
             if (sKey == null) {
@@ -275,9 +220,9 @@ public class PGPCoder extends Coder {
 
                 PGPOnePassSignature ops = null;
                 if (message instanceof PGPOnePassSignatureList) {
-                    if (verify && mSender != null) {
+                    if (verify && mSession.hasSender()) {
                         ops = ((PGPOnePassSignatureList) message).get(0);
-                        ops.init(new BcPGPContentVerifierBuilderProvider(), PGP.getEncryptionKey(mSender));
+                        ops.init(mSession.getVerifier(), mSession.getSenderKey());
                     }
 
                     message = pgpFact.nextObject();
@@ -287,9 +232,10 @@ public class PGPCoder extends Coder {
                     PGPLiteralData ld = (PGPLiteralData) message;
 
                     InputStream unc = ld.getInputStream();
-                    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+                    CoderBuffers buffers = CoderBuffers.get();
+                    ByteArrayOutputStream bout = buffers.getOutput();
 
-                    byte[] buf = new byte[4096];
+                    byte[] buf = buffers.io;
                     int num;
 
                     while ((num = unc.read(buf)) >= 0) {
@@ -364,7 +310,7 @@ public class PGPCoder extends Coder {
 
                             // check mime type
                             if (!TextComponent.MIME_TYPE.equalsIgnoreCase(msg.getMime()) &&
-                                    !XMPPUtils.XML_XMPP_TYPE.equalsIgnoreCase(msg.getMime())) {
+                                    !XML_XMPP_TYPE.equalsIgnoreCase(msg.getMime())) {
                                 // unrecoverable situation
                                 throw new DecryptException(
                                     DECRYPT_EXCEPTION_INTEGRITY_CHECK,
@@ -372,7 +318,7 @@ public class PGPCoder extends Coder {
                             }
 
                             // check that the recipient matches the full uid of the personal key
-                            String myUid = mKey.getUserId(mServer.getNetwork());
+                            String myUid = mSession.getUserId();
                             if (!myUid.equals(msg.getTo()) && errors != null) {
                                 errors.add(new DecryptException(
                                     DECRYPT_EXCEPTION_INVALID_RECIPIENT,
@@ -380,8 +326,8 @@ public class PGPCoder extends Coder {
                             }
 
                             // check that the sender matches the full uid of the sender's key
-                            if (mSender != null) {
-                                String otherUid = PGP.getUserId(PGP.getMasterKey(mSender), mServer.getNetwork());
+                            if (mSession.hasSender()) {
+                                String otherUid = mSession.getSenderUserId();
                                 if (!otherUid.equals(msg.getFrom()) && errors != null) {
                                     errors.add(new DecryptException(
                                         DECRYPT_EXCEPTION_INVALID_SENDER,
@@ -458,32 +404,38 @@ public class PGPCoder extends Coder {
 
     @Override
     public void encryptFile(InputStream input, OutputStream output) throws GeneralSecurityException {
+        encryptFile(input, output, null);
+    }
+
+    @Override
+    public void encryptFile(InputStream input, OutputStream output, String mime) throws GeneralSecurityException {
         try {
-            // setup data encryptor & generator
-            BcPGPDataEncryptorBuilder encryptor = new BcPGPDataEncryptorBuilder(PGPEncryptedData.AES_192);
-            encryptor.setWithIntegrityPacket(true);
-            encryptor.setSecureRandom(new SecureRandom());
+            CoderBuffers buffers = CoderBuffers.get();
+            byte[] buf = buffers.io;
+
+            // decide compression by MIME type or by a sample of the data
+            int sampleLength = 0;
+            int compression = CompressionPolicy.forMime(mime);
+            if (compression == CompressionPolicy.UNKNOWN) {
+                int len;
+                while (sampleLength < CompressionPolicy.SAMPLE_SIZE &&
+                        (len = input.read(buf, sampleLength, CompressionPolicy.SAMPLE_SIZE - sampleLength)) > 0)
+                    sampleLength += len;
+
+                compression = CompressionPolicy.forSample(buf, sampleLength);
+            }
 
-            // add public key recipients
-            PGPEncryptedDataGenerator encGen = new PGPEncryptedDataGenerator(encryptor);
-            for (PGPPublicKeyRing rcpt : mRecipients)
-                encGen.addMethod(new BcPublicKeyKeyEncryptionMethodGenerator(PGP.getEncryptionKey(rcpt)));
+            // setup data generator for all recipients
+            PGPEncryptedDataGenerator encGen = mSession.createBulkEncryptedDataGenerator();
 
-            OutputStream encryptedOut = encGen.open(output, new byte[BUFFER_SIZE]);
+            OutputStream encryptedOut = encGen.open(output, buffers.encrypted);
 
             // setup compressed data generator
-            PGPCompressedDataGenerator compGen = new PGPCompressedDataGenerator(PGPCompressedData.ZIP);
-            OutputStream compressedOut = compGen.open(encryptedOut, new byte[BUFFER_SIZE]);
+            PGPCompressedDataGenerator compGen = CompressionPolicy.createGenerator(compression);
+            OutputStream compressedOut = compGen.open(encryptedOut, buffers.compressed);
 
             // setup signature generator
-            PGPSignatureGenerator sigGen = new PGPSignatureGenerator
-                (new BcPGPContentSignerBuilder(mKey.getEncryptKeyPair()
-                    .getPublicKey().getAlgorithm(), HashAlgorithmTags.SHA1));
-            sigGen.init(PGPSignature.BINARY_DOCUMENT, mKey.getEncryptKeyPair().getPrivateKey());
-
-            PGPSignatureSubpacketGenerator spGen = new PGPSignatureSubpacketGenerator();
-            spGen.setSignerUserID(false, mKey.getUserId(mServer.getNetwork()));
-            sigGen.setUnhashedSubpackets(spGen.generate());
+            PGPSignatureGenerator sigGen = mSession.createSignatureGenerator();
 
             sigGen.generateOnePassVersion(false)
                 .encode(compressedOut);
@@ -495,12 +447,15 @@ public class PGPCoder extends Coder {
                 PGPLiteralData.BINARY,
                 "",
                 new Date(),
-                new byte[BUFFER_SIZE]);
+                buffers.literal);
+
+            // data already read for sampling
+            if (sampleLength > 0) {
+                literalOut.write(buf, 0, sampleLength);
+                sigGen.update(buf, 0, sampleLength);
+            }
 
             // read the "in" stream, compress, encrypt and write to the "out" stream
-            // this must be done if clear data is bigger than the buffer size
-            // but there are other ways to optimize...
-            byte[] buf = new byte[BUFFER_SIZE];
             int len;
             while ((len = input.read(buf)) > 0) {
                 literalOut.write(buf, 0, len);
@@ -547,13 +502,13 @@ public class PGPCoder extends Coder {
             PGPPublicKeyEncryptedData pbe = null;
 
             // our encryption keyID
-            long ourKeyID = mKey.getEncryptKeyPair().getPrivateKey().getKeyID();
+            long ourKeyID = mSession.getPrivateKey().getKeyID();
 
             while (sKey == null && it.hasNext()) {
                 pbe = it.next();
 
                 if (pbe.getKeyID() == ourKeyID)
-                    sKey = mKey.getEncryptKeyPair().getPrivateKey();
+                    sKey = mSession.getPrivateKey();
             }
 
             if (sKey == null)
@@ -561,7 +516,7 @@ public class PGPCoder extends Coder {
                     DECRYPT_EXCEPTION_PRIVATE_KEY_NOT_FOUND,
                     "Secret key for message not found.");
 
-            InputStream clear = pbe.getDataStream(new BcPublicKeyDataDecryptorFactory(sKey));
+            InputStream clear = pbe.getDataStream(BulkOperators.createDecryptorFactory(sKey));
 
             PGPObjectFactory plainFact = new PGPObjectFactory(clear, sFingerprintCalculator);
 
@@ -577,7 +532,7 @@ public class PGPCoder extends Coder {
                 if (message instanceof PGPOnePassSignatureList) {
                     if (verify) {
                         ops = ((PGPOnePassSignatureList) message).get(0);
-                        ops.init(new BcPGPContentVerifierBuilderProvider(), PGP.getEncryptionKey(mSender));
+                        ops.init(mSession.getVerifier(), mSession.getSenderKey());
                     }
 
                     message = pgpFact.nextObject();
@@ -587,7 +542,7 @@ public class PGPCoder extends Coder {
                     PGPLiteralData ld = (PGPLiteralData) message;
 
                     InputStream unc = ld.getInputStream();
-                    byte[] buf = new byte[8192];
+                    byte[] buf = CoderBuffers.get().io;
                     int num;
 
                     while ((num = unc.read(buf)) >= 0) {
@@ -0,0 +1,275 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.annotation.TargetApi;
+import android.content.ContentUris;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.drawable.BitmapDrawable;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.Contacts;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import org.kontalk.data.Contact.ContactCallback;
+import org.kontalk.util.BackgroundThreadFactory;
+
+
+/**
+ * Loads contact avatars with a small thread pool. Concurrent requests for
+ * the same contact are served by a single load and can be cancelled when
+ * not needed anymore. Avatars are downsampled to the badge size and kept
+ * in a cache bounded by bitmap size.
+ * @author Daniele Ricci
+ */
+final class AvatarLoader {
+    private static final String TAG = AvatarLoader.class.getSimpleName();
+
+    /** Number of loading threads. */
+    private static final int LOAD_THREADS = 2;
+    /** Fraction of the heap used by the cache. */
+    private static final int MEMORY_FRACTION = 32;
+    /** Avatars are downsampled to be at least this size. */
+    private static final int AVATAR_SIZE_DP = 64;
+
+    /** A pending load, with all callbacks waiting for it and their contacts. */
+    private static final class Request {
+        final Map<ContactCallback, Contact> callbacks = new LinkedHashMap<ContactCallback, Contact>(2);
+        Future<?> future;
+    }
+
+    private static AvatarLoader sInstance;
+
+    private final Context mContext;
+    private final int mAvatarSize;
+
+    private final LruCache<String, Bitmap> mCache;
+    /** Pending requests by contact URI. */
+    private final Map<String, Request> mPending = new HashMap<String, Request>();
+
+    private final ThreadPoolExecutor mExecutor;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    @TargetApi(Build.VERSION_CODES.GINGERBREAD)
+    private AvatarLoader(Context context) {
+        mContext = context;
+        mAvatarSize = (int) (AVATAR_SIZE_DP * context.getResources()
+            .getDisplayMetrics().density + 0.5f);
+
+        int maxSize = (int) (Runtime.getRuntime().maxMemory() / MEMORY_FRACTION);
+        mCache = new LruCache<String, Bitmap>(maxSize) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getRowBytes() * value.getHeight();
+            }
+        };
+
+        mExecutor = new ThreadPoolExecutor(LOAD_THREADS, LOAD_THREADS,
+            10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new BackgroundThreadFactory("Avatars"));
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD)
+            mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    public static synchronized AvatarLoader getInstance(Context context) {
+        if (sInstance == null)
+            sInstance = new AvatarLoader(context.getApplicationContext());
+        return sInstance;
+    }
+
+    /** Returns the cached avatar of a contact, or null if not loaded. */
+    public BitmapDrawable getCached(Contact contact) {
+        Bitmap bitmap = mCache.get(key(contact));
+        return (bitmap != null) ? new BitmapDrawable(mContext.getResources(), bitmap) : null;
+    }
+
+    /** Loads the avatar of a contact on the calling thread. */
+    public BitmapDrawable load(Contact contact) {
+        BitmapDrawable avatar = getCached(contact);
+        if (avatar == null) {
+            Bitmap bitmap = loadBitmap(contact);
+            if (bitmap != null)
+                avatar = new BitmapDrawable(mContext.getResources(), bitmap);
+        }
+
+        return avatar;
+    }
+
+    /**
+     * Loads the avatar of a contact in background. The callback is called
+     * on the main thread, and only if an avatar was found.
+     */
+    public void load(final Contact contact, ContactCallback callback) {
+        BitmapDrawable cached = getCached(contact);
+        if (cached != null) {
+            callback.avatarLoaded(contact, cached);
+            return;
+        }
+
+        final String key = key(contact);
+        synchronized (mPending) {
+            Request request = mPending.get(key);
+            if (request != null) {
+                // already loading - just wait for it
+                request.callbacks.put(callback, contact);
+                return;
+            }
+
+            request = new Request();
+            request.callbacks.put(callback, contact);
+            mPending.put(key, request);
+
+            request.future = mExecutor.submit(new Runnable() {
+                public void run() {
+                    final Bitmap bitmap = loadBitmap(contact);
+
+                    mHandler.post(new Runnable() {
+                        public void run() {
+                            deliver(key, bitmap);
+                        }
+                    });
+                }
+            });
+        }
+    }
+
+    /** Cancels a request made with {@link #load(Contact, ContactCallback)}. */
+    public void cancel(Contact contact, ContactCallback callback) {
+        String key = key(contact);
+        synchronized (mPending) {
+            Request request = mPending.get(key);
+            if (request != null && request.callbacks.remove(callback) != null &&
+                    request.callbacks.isEmpty()) {
+                request.future.cancel(false);
+                mPending.remove(key);
+            }
+        }
+    }
+
+    /** Discards all cached avatars. */
+    public void evictAll() {
+        mCache.evictAll();
+    }
+
+    private void deliver(String key, Bitmap bitmap) {
+        Map<ContactCallback, Contact> callbacks;
+        synchronized (mPending) {
+            Request request = mPending.remove(key);
+            if (request == null)
+                return;
+            callbacks = request.callbacks;
+        }
+
+        if (bitmap != null) {
+            for (Map.Entry<ContactCallback, Contact> e : callbacks.entrySet())
+                e.getKey().avatarLoaded(e.getValue(),
+                    new BitmapDrawable(mContext.getResources(), bitmap));
+        }
+    }
+
+    private Bitmap loadBitmap(Contact contact) {
+        String key = key(contact);
+        Bitmap bitmap = mCache.get(key);
+        if (bitmap != null)
+            return bitmap;
+
+        byte[] data = loadAvatarData(contact.getUri());
+        if (data != null) {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(data, 0, data.length, options);
+
+            options.inSampleSize = sampleSize(options.outWidth, options.outHeight);
+            options.inJustDecodeBounds = false;
+            bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+
+            if (bitmap != null)
+                mCache.put(key, bitmap);
+        }
+
+        return bitmap;
+    }
+
+    /** Largest power of 2 keeping the image at least as big as the badge. */
+    private int sampleSize(int width, int height) {
+        int sampleSize = 1;
+        while (width / (sampleSize * 2) >= mAvatarSize &&
+                height / (sampleSize * 2) >= mAvatarSize)
+            sampleSize *= 2;
+        return sampleSize;
+    }
+
+    private byte[] loadAvatarData(Uri contactUri) {
+        Uri uri;
+        try {
+            long cid = ContentUris.parseId(contactUri);
+            uri = ContentUris.withAppendedId(ContactsContract.Contacts.CONTENT_URI, cid);
+        }
+        catch (Exception e) {
+            uri = contactUri;
+        }
+
+        InputStream avatarDataStream = Contacts.openContactPhotoInputStream(
+                    mContext.getContentResolver(), uri);
+        if (avatarDataStream == null)
+            return null;
+
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int len;
+            while ((len = avatarDataStream.read(buf)) > 0)
+                out.write(buf, 0, len);
+
+            return out.toByteArray();
+        }
+        catch (IOException e) {
+            Log.e(TAG, "cannot retrieve contact avatar", e);
+            return null;
+        }
+        finally {
+            try {
+                avatarDataStream.close();
+            }
+            catch (IOException e) {}
+        }
+    }
+
+    private static String key(Contact contact) {
+        return contact.getUri().toString();
+    }
+
+}
@@ -18,26 +18,15 @@
 
 package org.kontalk.data;
 
-import java.io.IOException;
-import java.io.InputStream;
-
-import org.jxmpp.util.XmppStringUtils;
 import org.spongycastle.openpgp.PGPPublicKeyRing;
 
 import android.content.ContentResolver;
 import android.content.ContentUris;
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.provider.ContactsContract;
-import android.provider.ContactsContract.Contacts;
-import android.provider.ContactsContract.PhoneLookup;
-import android.support.v4.util.LruCache;
 import android.util.Log;
 
 import org.kontalk.crypto.PGP;
@@ -89,73 +78,18 @@ public class Contact {
 
     private boolean mBlocked;
 
-    private BitmapDrawable mAvatar;
-    private byte [] mAvatarData;
-
+    /** Public keyring data, parsed when first needed. */
+    private byte[] mKeyRingData;
     private PGPPublicKeyRing mKeyRing;
 
+    /** Broadcast through {@link android.support.v4.content.LocalBroadcastManager} when contacts are (re)loaded. */
+    public static final String ACTION_CONTACTS_CHANGED = "org.kontalk.data.action.CONTACTS_CHANGED";
+
     public interface ContactCallback {
         public void avatarLoaded(Contact contact, Drawable avatar);
     }
 
-    /**
-     * Contact cache.
-     * @author Daniele Ricci
-     */
-    private final static class ContactCache extends LruCache<String, Contact> {
-        private static final int MAX_ENTRIES = 20;
-
-        public ContactCache() {
-            super(MAX_ENTRIES);
-        }
-
-        public synchronized Contact get(Context context, String userId, String numberHint) {
-            Contact c = get(userId);
-            if (c == null) {
-                c = _findByUserId(context, userId);
-                if (c != null) {
-                    // put the contact in the cache
-                    put(userId, c);
-                }
-                // try system contacts lookup
-                else if (numberHint != null) {
-                    Log.v(TAG, "contact not found, trying with system contacts (" + numberHint + ")");
-                    ContentResolver resolver = context.getContentResolver();
-                    Uri uri = Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI, Uri.encode(numberHint));
-                    Cursor cur = resolver.query(uri, new String[] {
-                                PhoneLookup.DISPLAY_NAME,
-                                PhoneLookup.LOOKUP_KEY,
-                                PhoneLookup._ID,
-                            }, null, null, null);
-                    if (cur.moveToFirst()) {
-                        String name = cur.getString(0);
-                        String lookupKey = cur.getString(1);
-                        long cid = cur.getLong(2);
-
-                        c = new Contact(cid, lookupKey, name, numberHint, userId, false);
-                        put(userId, c);
-
-                        // insert result into users database immediately
-                        ContentValues values = new ContentValues(5);
-                        values.put(Users.HASH, XmppStringUtils.parseLocalpart(userId));
-                        values.put(Users.NUMBER, numberHint);
-                        values.put(Users.DISPLAY_NAME, name);
-                        values.put(Users.JID, userId);
-                        values.put(Users.LOOKUP_KEY, lookupKey);
-                        values.put(Users.CONTACT_ID, cid);
-                        resolver.insert(Users.CONTENT_URI, values);
-                    }
-                    cur.close();
-                }
-            }
-
-            return c;
-        }
-    }
-
-    private final static ContactCache cache = new ContactCache();
-
-    private Contact(long contactId, String lookupKey, String name, String number, String jid, boolean blocked) {
+    Contact(long contactId, String lookupKey, String name, String number, String jid, boolean blocked) {
         mContactId = contactId;
         mLookupKey = lookupKey;
         mName = name;
@@ -203,82 +137,77 @@ public class Contact {
         return mBlocked;
     }
 
-    public PGPPublicKeyRing getPublicKeyRing() {
+    public synchronized PGPPublicKeyRing getPublicKeyRing() {
+        if (mKeyRing == null && mKeyRingData != null) {
+            try {
+                mKeyRing = PGP.readPublicKeyring(mKeyRingData);
+            }
+            catch (Exception e) {
+                // ignored for now
+                Log.w(TAG, "unable to load public keyring", e);
+            }
+            mKeyRingData = null;
+        }
         return mKeyRing;
     }
 
-    public void getAvatarAsync(final Context context, final ContactCallback callback) {
-        if (mAvatar != null) {
-            callback.avatarLoaded(this, mAvatar);
-        }
-        else {
-            // start async load
-            new Thread(new Runnable() {
-                public void run() {
-                    try {
-                        Drawable avatar = getAvatar(context, null);
-                        callback.avatarLoaded(Contact.this, avatar);
-                    }
-                    catch (Exception e) {
-                        // do not throw any exception while loading
-                        Log.w(TAG, "error while loading avatar", e);
-                    }
-                }
-            }).start();
-        }
+    /**
+     * Loads the avatar in background. The callback is called on the main
+     * thread, only if the contact has an avatar.
+     */
+    public void getAvatarAsync(Context context, ContactCallback callback) {
+        AvatarLoader.getInstance(context).load(this, callback);
     }
 
-    public synchronized Drawable getAvatar(Context context, Drawable defaultValue) {
-        if (mAvatar == null) {
-            if (mAvatarData == null)
-                mAvatarData = loadAvatarData(context, getUri());
+    /** Cancels a request made with {@link #getAvatarAsync}. */
+    public void cancelAvatarAsync(Context context, ContactCallback callback) {
+        AvatarLoader.getInstance(context).cancel(this, callback);
+    }
 
-            if (mAvatarData != null) {
-                Bitmap b = BitmapFactory.decodeByteArray(mAvatarData, 0, mAvatarData.length);
-                mAvatar = new BitmapDrawable(context.getResources(), b);
-            }
-        }
-        return mAvatar != null ? mAvatar : defaultValue;
+    public Drawable getAvatar(Context context, Drawable defaultValue) {
+        Drawable avatar = AvatarLoader.getInstance(context).load(this);
+        return avatar != null ? avatar : defaultValue;
     }
 
-    public static void invalidate(String userId) {
-        cache.remove(userId);
+    /** Starts loading all users in background. */
+    public static void init(Context context) {
+        ContactDirectory.getInstance(context);
     }
 
-    public static void invalidate() {
-        cache.evictAll();
+    /** Reloads a user from the database. */
+    public static void invalidate(Context context, String userId) {
+        ContactDirectory.getInstance(context).reload(userId);
+    }
+
+    /** Reloads all users from the database and discards cached avatars. */
+    public static void invalidate(Context context) {
+        ContactDirectory.getInstance(context).reload();
+        AvatarLoader.getInstance(context).evictAll();
     }
 
     /** Builds a contact from a UsersProvider cursor. */
     public static Contact fromUsersCursor(Context context, Cursor cursor) {
-        // try the cache
-        String jid = cursor.getString(COLUMN_JID);
-        Contact c = cache.get(jid);
-        if (c == null) {
-            // don't let the cache fetch contact data again - we'll populate it
-            final long contactId = cursor.getLong(COLUMN_CONTACT_ID);
-            final String key = cursor.getString(COLUMN_LOOKUP_KEY);
-            final String name = cursor.getString(COLUMN_DISPLAY_NAME);
-            final String number = cursor.getString(COLUMN_NUMBER);
-            final boolean registered = (cursor.getInt(COLUMN_REGISTERED) != 0);
-            final String status = cursor.getString(COLUMN_STATUS);
-            final byte[] keyring = cursor.getBlob(COLUMN_PUBLICKEY);
-            final boolean blocked = (cursor.getInt(COLUMN_BLOCKED) != 0);
-
-            c = new Contact(contactId, key, name, number, jid, blocked);
-            c.mRegistered = registered;
-            c.mStatus = status;
-            try {
-                if (keyring != null)
-                    c.mKeyRing = PGP.readPublicKeyring(keyring);
-            }
-            catch (Exception e) {
-                // ignored for now
-                Log.w(TAG, "unable to load public keyring", e);
-            }
+        Contact c = ContactDirectory.getInstance(context)
+            .get(cursor.getString(COLUMN_JID));
+        return (c != null) ? c : fromCursor(cursor);
+    }
 
-            cache.put(jid, c);
-        }
+    /** Builds a contact from a cursor with {@link #ALL_CONTACTS_PROJECTION}. */
+    static Contact fromCursor(Cursor cursor) {
+        final long contactId = cursor.getLong(COLUMN_CONTACT_ID);
+        final String key = cursor.getString(COLUMN_LOOKUP_KEY);
+        final String name = cursor.getString(COLUMN_DISPLAY_NAME);
+        final String number = cursor.getString(COLUMN_NUMBER);
+        final String jid = cursor.getString(COLUMN_JID);
+        final boolean registered = (cursor.getInt(COLUMN_REGISTERED) != 0);
+        final String status = cursor.getString(COLUMN_STATUS);
+        final byte[] keyring = cursor.getBlob(COLUMN_PUBLICKEY);
+        final boolean blocked = (cursor.getInt(COLUMN_BLOCKED) != 0);
+
+        Contact c = new Contact(contactId, key, name, number, jid, blocked);
+        c.mRegistered = registered;
+        c.mStatus = status;
+        c.mKeyRingData = keyring;
         return c;
     }
 
@@ -305,84 +234,30 @@ public class Contact {
         return findByUserId(context, userId, null);
     }
 
+    /**
+     * Returns the contact for the given user. This method doesn't query the
+     * database: it returns null for unknown users and, on the main thread,
+     * for users not loaded yet. If a number hint is given, unknown users
+     * are looked up in system contacts in background.
+     */
     public static Contact findByUserId(Context context, String userId, String numberHint) {
-        return cache.get(context, userId, numberHint);
+        ContactDirectory directory = ContactDirectory.getInstance(context);
+        Contact c = directory.get(userId);
+        if (c == null && numberHint != null)
+            directory.lookup(userId, numberHint);
+        return c;
     }
 
-    private static Contact _findByUserId(Context context, String userId) {
-        ContentResolver cres = context.getContentResolver();
-        Cursor c = cres.query(Uri.withAppendedPath(Users.CONTENT_URI, userId),
-            new String[] {
-                Users.NUMBER,
-                Users.DISPLAY_NAME,
-                Users.LOOKUP_KEY,
-                Users.CONTACT_ID,
-                Users.REGISTERED,
-                Users.STATUS,
-                Users.PUBLIC_KEY,
-                Users.BLOCKED,
-            }, null, null, null);
-
-        if (c.moveToFirst()) {
-            final String number = c.getString(0);
-            final String name = c.getString(1);
-            final String key = c.getString(2);
-            final long cid = c.getLong(3);
-            final boolean registered = (c.getInt(4) != 0);
-            final String status = c.getString(5);
-            final byte[] keyring = c.getBlob(6);
-            final boolean blocked = (c.getInt(7) != 0);
-            c.close();
-
-            Contact contact = new Contact(cid, key, name, number, userId, blocked);
-            contact.mRegistered = registered;
-            contact.mStatus = status;
-            try {
-                if (keyring != null)
-                    contact.mKeyRing = PGP.readPublicKeyring(keyring);
-            }
-            catch (Exception e) {
-                // ignored for now
-                Log.w(TAG, "unable to load public keyring", e);
-            }
-
-            return contact;
-        }
-        c.close();
-        return null;
+    /** Queries all users with {@link #ALL_CONTACTS_PROJECTION}. */
+    static Cursor queryAll(Context context) {
+        return context.getContentResolver().query(Users.CONTENT_URI,
+            ALL_CONTACTS_PROJECTION, null, null, null);
     }
 
-    private static byte[] loadAvatarData(Context context, Uri contactUri) {
-        byte[] data = null;
-
-        Uri uri;
-        try {
-            long cid = ContentUris.parseId(contactUri);
-            uri = ContentUris.withAppendedId(ContactsContract.Contacts.CONTENT_URI, cid);
-        }
-        catch (Exception e) {
-            uri = contactUri;
-        }
-
-        InputStream avatarDataStream = Contacts.openContactPhotoInputStream(
-                    context.getContentResolver(), uri);
-        if (avatarDataStream != null) {
-            try {
-                    data = new byte[avatarDataStream.available()];
-                    avatarDataStream.read(data, 0, data.length);
-            }
-            catch (IOException e) {
-                Log.e(TAG, "cannot retrieve contact avatar", e);
-            }
-            finally {
-                try {
-                    avatarDataStream.close();
-                }
-                catch (IOException e) {}
-            }
-        }
-
-        return data;
+    /** Queries a single user with {@link #ALL_CONTACTS_PROJECTION}. */
+    static Cursor queryUser(Context context, String userId) {
+        return context.getContentResolver().query(Uri.withAppendedPath(Users.CONTENT_URI, userId),
+            ALL_CONTACTS_PROJECTION, null, null, null);
     }
 
     public static Cursor queryContacts(Context context) {
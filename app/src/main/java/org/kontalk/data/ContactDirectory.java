@@ -0,0 +1,250 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.data;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.jxmpp.util.XmppStringUtils;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Looper;
+import android.provider.ContactsContract.PhoneLookup;
+import android.support.v4.content.LocalBroadcastManager;
+import android.util.Log;
+
+import org.kontalk.provider.MyUsers.Users;
+import org.kontalk.util.BackgroundThreadFactory;
+
+
+/**
+ * In-memory directory of all known users. The whole users table is loaded
+ * with a single query in background, then single users are reloaded when
+ * invalidated. Lookups never touch the database: on the main thread they
+ * return what has been loaded so far, other threads wait for the first
+ * load to complete.
+ * @author Daniele Ricci
+ */
+final class ContactDirectory {
+    private static final String TAG = ContactDirectory.class.getSimpleName();
+
+    private static ContactDirectory sInstance;
+
+    private final Context mContext;
+
+    /** Loads and updates contacts, one task at a time. */
+    private final ExecutorService mExecutor = Executors
+        .newSingleThreadExecutor(new BackgroundThreadFactory(TAG));
+
+    /** Contacts by JID. Modified only by the executor thread. */
+    private volatile Map<String, Contact> mContacts = new ConcurrentHashMap<String, Contact>();
+    /** Counted down when the first load has completed. */
+    private final CountDownLatch mLoaded = new CountDownLatch(1);
+
+    /** Users already looked up in system contacts since the last full load. */
+    private final Set<String> mLookups = new HashSet<String>();
+
+    private ContactDirectory(Context context) {
+        mContext = context;
+    }
+
+    public static synchronized ContactDirectory getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ContactDirectory(context.getApplicationContext());
+            sInstance.reload();
+        }
+        return sInstance;
+    }
+
+    /** Returns the contact for the given user, or null if not known (yet). */
+    public Contact get(String userId) {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            try {
+                mLoaded.await();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        return mContacts.get(userId);
+    }
+
+    /**
+     * Looks up an unknown user in system contacts by phone number, in
+     * background. The user will be added to the users database if found.
+     */
+    public void lookup(final String userId, final String number) {
+        synchronized (mLookups) {
+            if (!mLookups.add(userId))
+                return;
+        }
+
+        mExecutor.execute(new Runnable() {
+            public void run() {
+                if (mContacts.containsKey(userId))
+                    return;
+
+                Contact c = lookupSystemContact(userId, number);
+                if (c != null) {
+                    mContacts.put(userId, c);
+                    broadcastChange();
+                }
+            }
+        });
+    }
+
+    /** Reloads all users in background. */
+    public void reload() {
+        mExecutor.execute(new Runnable() {
+            public void run() {
+                loadAll();
+            }
+        });
+    }
+
+    /**
+     * Reloads a single user in background. If not called from the main
+     * thread, this method waits for the user to be reloaded, so the
+     * calling thread will see the updated contact.
+     */
+    public void reload(final String userId) {
+        Future<?> task = mExecutor.submit(new Runnable() {
+            public void run() {
+                load(userId);
+            }
+        });
+
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            try {
+                task.get();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            catch (ExecutionException e) {
+                Log.w(TAG, "unable to reload contact " + userId, e.getCause());
+            }
+        }
+    }
+
+    private void loadAll() {
+        Map<String, Contact> contacts = new ConcurrentHashMap<String, Contact>();
+
+        Cursor c = null;
+        try {
+            c = Contact.queryAll(mContext);
+            while (c != null && c.moveToNext()) {
+                Contact contact = Contact.fromCursor(c);
+                contacts.put(contact.getJID(), contact);
+            }
+        }
+        catch (Exception e) {
+            Log.e(TAG, "unable to load contacts", e);
+        }
+        finally {
+            if (c != null)
+                c.close();
+        }
+
+        mContacts = contacts;
+        synchronized (mLookups) {
+            mLookups.clear();
+        }
+
+        if (mLoaded.getCount() > 0)
+            mLoaded.countDown();
+
+        Log.v(TAG, contacts.size() + " contacts loaded");
+        broadcastChange();
+    }
+
+    private void load(String userId) {
+        Contact contact = null;
+
+        Cursor c = null;
+        try {
+            c = Contact.queryUser(mContext, userId);
+            if (c != null && c.moveToFirst())
+                contact = Contact.fromCursor(c);
+        }
+        finally {
+            if (c != null)
+                c.close();
+        }
+
+        if (contact != null)
+            mContacts.put(userId, contact);
+        else
+            mContacts.remove(userId);
+    }
+
+    private Contact lookupSystemContact(String userId, String numberHint) {
+        Log.v(TAG, "contact not found, trying with system contacts (" + numberHint + ")");
+        ContentResolver resolver = mContext.getContentResolver();
+        Uri uri = Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI, Uri.encode(numberHint));
+        Cursor cur = resolver.query(uri, new String[] {
+                    PhoneLookup.DISPLAY_NAME,
+                    PhoneLookup.LOOKUP_KEY,
+                    PhoneLookup._ID,
+                }, null, null, null);
+
+        Contact c = null;
+        if (cur != null) {
+            if (cur.moveToFirst()) {
+                String name = cur.getString(0);
+                String lookupKey = cur.getString(1);
+                long cid = cur.getLong(2);
+
+                c = new Contact(cid, lookupKey, name, numberHint, userId, false);
+
+                // insert result into users database immediately
+                ContentValues values = new ContentValues(5);
+                values.put(Users.HASH, XmppStringUtils.parseLocalpart(userId));
+                values.put(Users.NUMBER, numberHint);
+                values.put(Users.DISPLAY_NAME, name);
+                values.put(Users.JID, userId);
+                values.put(Users.LOOKUP_KEY, lookupKey);
+                values.put(Users.CONTACT_ID, cid);
+                resolver.insert(Users.CONTENT_URI, values);
+            }
+            cur.close();
+        }
+
+        return c;
+    }
+
+    private void broadcastChange() {
+        LocalBroadcastManager.getInstance(mContext)
+            .sendBroadcast(new Intent(Contact.ACTION_CONTACTS_CHANGED));
+    }
+
+}
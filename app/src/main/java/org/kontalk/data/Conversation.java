@@ -136,7 +136,8 @@ public class Conversation {
         return cv;
     }
 
-    private void loadContact() {
+    /** Looks up the contact again, e.g. after contacts have been loaded. */
+    public void loadContact() {
         mContact = Contact.findByUserId(mContext, mRecipient, mNumberHint);
     }
 
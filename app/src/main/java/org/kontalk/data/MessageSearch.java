@@ -0,0 +1,251 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import org.kontalk.provider.MyMessages.Threads;
+import org.kontalk.util.BackgroundThreadFactory;
+
+
+/**
+ * Full-text search of messages. Queries are run in background one page at
+ * a time, after the user has stopped typing for a while. A new query
+ * cancels the previous one, so results of stale queries are never
+ * delivered. Results are grouped by thread, and contacts are resolved
+ * once per thread. All methods must be called from the main thread.
+ * @author Daniele Ricci
+ */
+public final class MessageSearch {
+    private static final String TAG = MessageSearch.class.getSimpleName();
+
+    /** Time to wait for more keystrokes before running a query. */
+    private static final int QUERY_DELAY = 300;
+    /** Number of results loaded at a time. */
+    public static final int PAGE_SIZE = 30;
+
+    /** Receives search results on the main thread. */
+    public interface Listener {
+        /**
+         * A page of results for a query.
+         * @param first true if this is the first page: previous results must be discarded
+         * @param more true if more results are available with {@link MessageSearch#loadMore()}
+         */
+        void onSearchResults(String query, List<SearchItem> results, boolean first, boolean more);
+    }
+
+    /** Queries are run one at a time. */
+    private static final ExecutorService sExecutor = Executors
+        .newSingleThreadExecutor(new BackgroundThreadFactory("Search"));
+
+    private final Context mContext;
+    private final Listener mListener;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /** Last requested query. */
+    private String mQuery;
+    /** Full-text pattern of the running query. */
+    private String mPattern;
+    private final StringBuilder mPatternBuffer = new StringBuilder();
+
+    /** Incremented on every new query, to recognize stale results. */
+    private volatile int mGeneration;
+    private Future<?> mTask;
+    private int mOffset;
+    private boolean mMore;
+
+    /** Thread peers, used only by the query thread. */
+    private final Map<Long, String> mPeers = new HashMap<Long, String>();
+
+    private final Runnable mStartQuery = new Runnable() {
+        public void run() {
+            startQuery();
+        }
+    };
+
+    public MessageSearch(Context context, Listener listener) {
+        mContext = context.getApplicationContext();
+        mListener = listener;
+    }
+
+    /**
+     * Sets the query to search for. The query is run after a short delay,
+     * unless another query is set in the meantime.
+     */
+    public void setQuery(String query) {
+        setQuery(query, QUERY_DELAY);
+    }
+
+    /** Sets the query to search for and runs it immediately. */
+    public void runQuery(String query) {
+        setQuery(query, 0);
+    }
+
+    private void setQuery(String query, long delay) {
+        // already running or about to
+        if (query.equals(mQuery))
+            return;
+
+        mQuery = query;
+        mHandler.removeCallbacks(mStartQuery);
+        cancelTask();
+        mHandler.postDelayed(mStartQuery, delay);
+    }
+
+    public String getQuery() {
+        return mQuery;
+    }
+
+    /** Loads the next page of results, if available and not loading already. */
+    public void loadMore() {
+        if (mMore && mTask == null && mPattern != null)
+            submit(mGeneration, mQuery, mPattern, mOffset);
+    }
+
+    /** Cancels any pending query. */
+    public void cancel() {
+        mHandler.removeCallbacks(mStartQuery);
+        cancelTask();
+        mQuery = null;
+    }
+
+    private void cancelTask() {
+        // results of the running query will be discarded
+        mGeneration++;
+        if (mTask != null) {
+            mTask.cancel(false);
+            mTask = null;
+        }
+        mMore = false;
+    }
+
+    private void startQuery() {
+        mPattern = SearchItem.buildPattern(mQuery, mPatternBuffer);
+        mOffset = 0;
+
+        if (mPattern != null) {
+            submit(mGeneration, mQuery, mPattern, 0);
+        }
+        else {
+            List<SearchItem> empty = Collections.emptyList();
+            mListener.onSearchResults(mQuery, empty, true, false);
+        }
+    }
+
+    private void submit(final int generation, final String query, final String pattern, final int offset) {
+        mTask = sExecutor.submit(new Runnable() {
+            public void run() {
+                if (generation != mGeneration)
+                    return;
+
+                final List<SearchItem> results = loadPage(pattern, offset);
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        deliver(generation, query, offset, results);
+                    }
+                });
+            }
+        });
+    }
+
+    private void deliver(int generation, String query, int offset, List<SearchItem> results) {
+        if (generation != mGeneration)
+            return;
+
+        mTask = null;
+        mOffset = offset + results.size();
+        mMore = results.size() == PAGE_SIZE;
+        mListener.onSearchResults(query, results, offset == 0, mMore);
+    }
+
+    /** Loads a page of results. Runs on the query thread. */
+    private List<SearchItem> loadPage(String pattern, int offset) {
+        List<SearchItem> results = new ArrayList<SearchItem>(PAGE_SIZE);
+
+        Cursor c = null;
+        try {
+            c = SearchItem.query(mContext, pattern, offset, PAGE_SIZE);
+            if (c != null) {
+                resolvePeers(c);
+
+                while (c.moveToNext()) {
+                    String userId = mPeers.get(SearchItem.getThreadId(c));
+                    Contact contact = (userId != null) ?
+                        Contact.findByUserId(mContext, userId) : null;
+                    results.add(SearchItem.fromCursor(c, userId, contact));
+                }
+            }
+        }
+        catch (SQLiteException e) {
+            Log.w(TAG, "search failed: " + pattern, e);
+        }
+        finally {
+            if (c != null)
+                c.close();
+        }
+
+        return results;
+    }
+
+    /** Loads the peers of the threads found in a page not resolved yet, with a single query. */
+    private void resolvePeers(Cursor results) {
+        StringBuilder ids = null;
+        while (results.moveToNext()) {
+            long threadId = SearchItem.getThreadId(results);
+            if (!mPeers.containsKey(threadId)) {
+                // null until resolved, so it won't be added twice
+                mPeers.put(threadId, null);
+
+                if (ids == null)
+                    ids = new StringBuilder();
+                else
+                    ids.append(',');
+                ids.append(threadId);
+            }
+        }
+        results.moveToPosition(-1);
+
+        if (ids == null)
+            return;
+
+        Cursor c = mContext.getContentResolver().query(Threads.CONTENT_URI,
+            new String[] { Threads._ID, Threads.PEER },
+            Threads._ID + " IN (" + ids + ")", null, null);
+        if (c != null) {
+            while (c.moveToNext())
+                mPeers.put(c.getLong(0), c.getString(1));
+            c.close();
+        }
+    }
+
+}
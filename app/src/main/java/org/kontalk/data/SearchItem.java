@@ -23,6 +23,10 @@ import org.kontalk.provider.MyMessages.Messages.Fulltext;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.graphics.Typeface;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.StyleSpan;
 
 
 /**
@@ -30,27 +34,44 @@ import android.database.Cursor;
  * @author Daniele Ricci
  */
 public class SearchItem {
-    public static final String[] SEARCH_PROJECTION = {
+    /** Snippet match delimiters, replaced by bold text. */
+    private static final char MATCH_START = '\u0002';
+    private static final char MATCH_END = '\u0003';
+
+    static final String[] SEARCH_PROJECTION = {
         Fulltext._ID + " AS " + Messages._ID,
         Fulltext.THREAD_ID,
-        Fulltext.CONTENT
+        Fulltext.CONTENT,
+        "snippet(fulltext, '" + MATCH_START + "', '" + MATCH_END + "', '\u2026') AS snippet",
     };
 
+    private static final int COLUMN_ID = 0;
+    private static final int COLUMN_THREAD_ID = 1;
+    private static final int COLUMN_CONTENT = 2;
+    private static final int COLUMN_SNIPPET = 3;
+
+    /**
+     * Results are grouped by thread, most recently created threads first,
+     * then most recent messages first.
+     */
+    private static final String SORT_ORDER = Fulltext.THREAD_ID + " DESC, " +
+        Fulltext._ID + " DESC";
+
     protected final long mId;
     protected final long mThreadId;
-    protected String mUserId;
+    protected final String mUserId;
     protected final String mText;
-    protected Contact mContact;
+    protected final CharSequence mSnippet;
+    protected final Contact mContact;
 
-    private SearchItem(Context context, long id, long threadId, String text) {
+    private SearchItem(long id, long threadId, String userId, Contact contact,
+            String text, CharSequence snippet) {
         mId = id;
         mThreadId = threadId;
+        mUserId = userId;
+        mContact = contact;
         mText = text;
-        Conversation conv = Conversation.loadFromId(context, threadId);
-        if (conv != null) {
-            mUserId = conv.getRecipient();
-            mContact = conv.getContact();
-        }
+        mSnippet = snippet;
     }
 
     public long getMessageId() {
@@ -69,21 +90,89 @@ public class SearchItem {
         return mText;
     }
 
+    /** The text around the matches, with matches in bold. */
+    public CharSequence getSnippet() {
+        return mSnippet;
+    }
+
     public Contact getContact() {
         return mContact;
     }
 
-    public static SearchItem fromCursor(Context context, Cursor cursor) {
-        long id = cursor.getLong(0);
-        long threadId = cursor.getLong(1);
-        String text = cursor.getString(2);
-        return new SearchItem(context, id, threadId, text);
+    static long getThreadId(Cursor cursor) {
+        return cursor.getLong(COLUMN_THREAD_ID);
+    }
+
+    /** Builds an item from a {@link #query} cursor, with the thread peer already resolved. */
+    static SearchItem fromCursor(Cursor cursor, String userId, Contact contact) {
+        long id = cursor.getLong(COLUMN_ID);
+        long threadId = cursor.getLong(COLUMN_THREAD_ID);
+        String text = cursor.getString(COLUMN_CONTENT);
+        String snippet = cursor.getString(COLUMN_SNIPPET);
+        return new SearchItem(id, threadId, userId, contact, text,
+            snippet != null ? highlight(snippet) : text);
     }
 
-    public static Cursor query(Context context, String query) {
-        // TODO enhanced queries?
-        return context.getContentResolver().query(Fulltext.CONTENT_URI
-                    .buildUpon().appendQueryParameter("pattern", query + "*").build(),
-                SEARCH_PROJECTION, null, null, null);
+    /** Queries a page of results for a full-text pattern. */
+    static Cursor query(Context context, String pattern, int offset, int limit) {
+        return context.getContentResolver().query(Fulltext.CONTENT_URI.buildUpon()
+                    .appendQueryParameter("pattern", pattern)
+                    .appendQueryParameter(Fulltext.OFFSET, String.valueOf(offset))
+                    .appendQueryParameter(Fulltext.LIMIT, String.valueOf(limit))
+                    .build(),
+                SEARCH_PROJECTION, null, null, SORT_ORDER);
+    }
+
+    /**
+     * Builds a full-text pattern matching words starting with every term of
+     * the given query. Query syntax is not supported: any character other
+     * than letters and digits is a separator.
+     * @param buf used for building the pattern
+     * @return the pattern, or null if the query has no terms
+     */
+    static String buildPattern(String query, StringBuilder buf) {
+        buf.setLength(0);
+
+        boolean inTerm = false;
+        for (int i = 0, c = query.length(); i < c; i++) {
+            char ch = query.charAt(i);
+            if (Character.isLetterOrDigit(ch)) {
+                if (!inTerm && buf.length() > 0)
+                    buf.append(' ');
+                // lower case doesn't collide with operators (e.g. OR)
+                buf.append(Character.toLowerCase(ch));
+                inTerm = true;
+            }
+            else if (inTerm) {
+                buf.append('*');
+                inTerm = false;
+            }
+        }
+        if (inTerm)
+            buf.append('*');
+
+        return buf.length() > 0 ? buf.toString() : null;
+    }
+
+    /** Replaces match delimiters in a snippet with bold spans. */
+    private static CharSequence highlight(String snippet) {
+        SpannableStringBuilder buf = new SpannableStringBuilder();
+        int start = -1;
+        for (int i = 0, c = snippet.length(); i < c; i++) {
+            char ch = snippet.charAt(i);
+            if (ch == MATCH_START) {
+                start = buf.length();
+            }
+            else if (ch == MATCH_END) {
+                if (start >= 0)
+                    buf.setSpan(new StyleSpan(Typeface.BOLD), start, buf.length(),
+                        Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                start = -1;
+            }
+            else {
+                buf.append(ch);
+            }
+        }
+        return buf;
     }
 }
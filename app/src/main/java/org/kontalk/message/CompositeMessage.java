@@ -376,12 +376,23 @@ public class CompositeMessage {
         return msg;
     }
 
-    public static void startQuery(AsyncQueryHandler handler, int token, long threadId) {
-        // cancel previous operations
-        handler.cancelOperation(token);
-        handler.startQuery(token, null,
-                ContentUris.withAppendedId(Conversations.CONTENT_URI, threadId),
-                MESSAGE_LIST_PROJECTION, null, null, Messages.DEFAULT_SORT_ORDER);
+    /**
+     * Starts a query for a page of messages of a conversation, ordered by
+     * timestamp and id.
+     * @param selection additional selection on the thread messages
+     * @param limit maximum number of messages to load (most recent first),
+     *              0 to load all of them
+     */
+    public static void startQuery(AsyncQueryHandler handler, int token, Object cookie,
+            long threadId, String selection, String[] selectionArgs, int limit) {
+        Uri uri = ContentUris.withAppendedId(Conversations.CONTENT_URI, threadId);
+        if (limit > 0)
+            uri = uri.buildUpon()
+                .appendQueryParameter(Conversations.LIMIT, String.valueOf(limit))
+                .build();
+
+        handler.startQuery(token, cookie, uri, MESSAGE_LIST_PROJECTION,
+            selection, selectionArgs, Messages.PAGED_SORT_ORDER);
     }
 
     /** A sample text content from class name and mime type. */
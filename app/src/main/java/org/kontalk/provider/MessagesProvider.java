@@ -18,9 +18,21 @@
 
 package org.kontalk.provider;
 
+import java.lang.reflect.UndeclaredThrowableException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.kontalk.BuildConfig;
 import org.kontalk.client.EndpointServer;
@@ -36,10 +48,13 @@ import org.kontalk.service.ServerListUpdater;
 
 import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
@@ -75,14 +90,59 @@ public class MessagesProvider extends ContentProvider {
     private static final int FULLTEXT_ID = 9;
     private static final int REQUESTS = 10;
 
+    /** Messages of a thread. */
+    private static final String SELECTION_THREAD = Messages.THREAD_ID + " = ?";
+    /** Unread incoming messages of a thread. */
+    private static final String SELECTION_MARK_AS_READ =
+        Messages.THREAD_ID + " = ? AND " +
+        Messages.UNREAD + " <> 0 AND " +
+        Messages.DIRECTION + " = " + Messages.DIRECTION_IN;
+
+    /** Columns used for updating thread metadata. */
+    private static final String[] THREAD_INFO_PROJECTION = {
+        Messages.MESSAGE_ID,
+        Messages.DIRECTION,
+        Messages.STATUS,
+        Messages.BODY_CONTENT,
+        Messages.BODY_MIME,
+        Messages.ATTACHMENT_MIME,
+        Messages.TIMESTAMP,
+    };
+
     private DatabaseHelper dbHelper;
+    /** Current batch, used only by the writer thread. */
+    private BatchState mBatch;
+    /** Writes are serialized through this executor. */
+    private ExecutorService mWriter;
+    private volatile Thread mWriterThread;
     private static final UriMatcher sUriMatcher;
     private static HashMap<String, String> messagesProjectionMap;
     private static HashMap<String, String> threadsProjectionMap;
     private static HashMap<String, String> fulltextProjectionMap;
 
+    /**
+     * State of a batch operation. All operations in a batch share the same
+     * transaction, and change notifications are fired at the end.
+     */
+    private static final class BatchState {
+        /** Change notifications, fired when the batch completes. */
+        final Set<Uri> notifications = new LinkedHashSet<Uri>();
+        /** Thread ids by peer for threads already touched by this batch. */
+        final Map<String, Long> threads = new HashMap<String, Long>();
+        /** Latest message values by thread id, used to update thread metadata. */
+        final Map<Long, ContentValues> pendingThreads = new HashMap<Long, ContentValues>();
+        /** True to silently skip already stored messages. */
+        final boolean skipDuplicates;
+        /** Number of messages inserted. */
+        int inserted;
+
+        BatchState(boolean skipDuplicates) {
+            this.skipDuplicates = skipDuplicates;
+        }
+    }
+
     private static class DatabaseHelper extends SQLiteOpenHelper {
-        private static final int DATABASE_VERSION = 8;
+        private static final int DATABASE_VERSION = 10;
         private static final String DATABASE_NAME = "messages.db";
 
         private static final String _SCHEMA_MESSAGES = "(" +
@@ -170,79 +230,112 @@ public class MessagesProvider extends ContentProvider {
             "CREATE INDEX IF NOT EXISTS timestamp_message ON " + TABLE_MESSAGES +
             " (timestamp)";
 
-        /** Updates the thread messages count. */
-        private static final String UPDATE_MESSAGES_COUNT_NEW =
-            "UPDATE " + TABLE_THREADS + " SET count = (" +
-            "SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = new.thread_id" +
-            ") WHERE _id = new.thread_id";
-        private static final String UPDATE_MESSAGES_COUNT_OLD =
-            "UPDATE " + TABLE_THREADS + " SET count = (" +
-            "SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = old.thread_id" +
-            ") WHERE _id = old.thread_id";
-
-        /** Updates the thread unread count. */
-        private static final String UPDATE_UNREAD_COUNT_NEW =
-            "UPDATE " + TABLE_THREADS + " SET unread = (" +
-            "SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = new.thread_id " +
-            "AND unread <> 0) WHERE _id = new.thread_id";
-        private static final String UPDATE_UNREAD_COUNT_OLD =
-            "UPDATE " + TABLE_THREADS + " SET unread = (" +
-            "SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = old.thread_id " +
-            "AND unread <> 0) WHERE _id = old.thread_id";
-
-        /** Updates the thread new count. */
-        private static final String UPDATE_NEW_COUNT_NEW =
-            "UPDATE " + TABLE_THREADS + " SET \"new\" = (" +
-            "SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = new.thread_id " +
-            "AND \"new\" <> 0) WHERE _id = new.thread_id";
-        private static final String UPDATE_NEW_COUNT_OLD =
-            "UPDATE " + TABLE_THREADS + " SET \"new\" = (" +
-            "SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = old.thread_id " +
-            "AND \"new\" <> 0) WHERE _id = old.thread_id";
-
-        /** Updates the thread status reflected by the latest message. */
+        /** Used for loading conversations and updating thread metadata. */
+        private static final String SCHEMA_MESSAGES_THREAD_IDX =
+            "CREATE INDEX IF NOT EXISTS thread_message ON " + TABLE_MESSAGES +
+            " (thread_id, timestamp)";
+
+        /** Used for looking up pending messages and receipts. */
+        private static final String SCHEMA_MESSAGES_STATUS_IDX =
+            "CREATE INDEX IF NOT EXISTS status_message ON " + TABLE_MESSAGES +
+            " (direction, status)";
+
         /*
-        private static final String UPDATE_STATUS_OLD =
-            "UPDATE " + TABLE_THREADS + " SET status = (" +
-            "SELECT status FROM " + TABLE_MESSAGES + " WHERE thread_id = old.thread_id ORDER BY timestamp DESC LIMIT 1)" +
-            " WHERE _id = old.thread_id";
-        */
-        private static final String UPDATE_STATUS_NEW =
-            "UPDATE " + TABLE_THREADS + " SET status = (" +
-            "SELECT status FROM " + TABLE_MESSAGES + " WHERE thread_id = new.thread_id ORDER BY timestamp DESC LIMIT 1)" +
-            " WHERE _id = new.thread_id";
+         * Thread counters are maintained incrementally: each trigger applies
+         * a +1/-1 delta to the thread row instead of counting all the
+         * messages in the thread. Use SCHEMA_REBUILD_THREAD_COUNTERS to
+         * recalculate them from scratch if they ever get out of sync.
+         */
+
+        /** Adds the inserted message to the thread counters. */
+        private static final String UPDATE_COUNTERS_INSERT =
+            "UPDATE " + TABLE_THREADS + " SET " +
+            "count = count + 1, " +
+            "unread = unread + (new.unread <> 0), " +
+            "\"new\" = \"new\" + (new.\"new\" <> 0), " +
+            // the thread has just been updated with this message
+            "status = new.status " +
+            "WHERE _id = new.thread_id";
+
+        /** Applies the unread/new flag changes to the thread counters. */
+        private static final String UPDATE_COUNTERS_UPDATE =
+            "UPDATE " + TABLE_THREADS + " SET " +
+            "unread = unread - (old.unread <> 0) + (new.unread <> 0), " +
+            "\"new\" = \"new\" - (old.\"new\" <> 0) + (new.\"new\" <> 0) " +
+            "WHERE _id = new.thread_id";
+
+        /** Removes a message from the counters of its old thread. */
+        private static final String UPDATE_COUNTERS_DELETE =
+            "UPDATE " + TABLE_THREADS + " SET " +
+            "count = count - 1, " +
+            "unread = unread - (old.unread <> 0), " +
+            "\"new\" = \"new\" - (old.\"new\" <> 0) " +
+            "WHERE _id = old.thread_id";
+
+        /** Adds a message to the counters of its new thread. */
+        private static final String UPDATE_COUNTERS_MOVE =
+            "UPDATE " + TABLE_THREADS + " SET " +
+            "count = count + 1, " +
+            "unread = unread + (new.unread <> 0), " +
+            "\"new\" = \"new\" + (new.\"new\" <> 0) " +
+            "WHERE _id = new.thread_id";
+
+        /** Updates the thread status if the message is the one reflected by the thread. */
+        private static final String UPDATE_STATUS_UPDATE =
+            "UPDATE " + TABLE_THREADS + " SET status = new.status " +
+            "WHERE _id = new.thread_id AND msg_id = new.msg_id AND direction = new.direction";
 
         /** This trigger will update the threads table counters on INSERT. */
         private static final String TRIGGER_THREADS_INSERT_COUNT =
             "CREATE TRIGGER update_thread_on_insert AFTER INSERT ON " + TABLE_MESSAGES +
             " BEGIN " +
-            UPDATE_MESSAGES_COUNT_NEW + ";" +
-            UPDATE_UNREAD_COUNT_NEW   + ";" +
-            UPDATE_NEW_COUNT_NEW      + ";" +
-            UPDATE_STATUS_NEW         + ";" +
+            UPDATE_COUNTERS_INSERT + ";" +
             "END";
 
         /** This trigger will update the threads table counters on UPDATE. */
         private static final String TRIGGER_THREADS_UPDATE_COUNT =
-            "CREATE TRIGGER update_thread_on_update AFTER UPDATE ON " + TABLE_MESSAGES +
+            "CREATE TRIGGER update_thread_on_update AFTER UPDATE OF unread, \"new\" ON " + TABLE_MESSAGES +
+            " WHEN old.thread_id = new.thread_id AND " +
+            "((old.unread <> 0) <> (new.unread <> 0) OR (old.\"new\" <> 0) <> (new.\"new\" <> 0))" +
             " BEGIN " +
-            UPDATE_MESSAGES_COUNT_NEW + ";" +
-            UPDATE_UNREAD_COUNT_NEW   + ";" +
-            UPDATE_NEW_COUNT_NEW      + ";" +
-            UPDATE_STATUS_NEW         + ";" +
+            UPDATE_COUNTERS_UPDATE + ";" +
             "END";
 
+        /** This trigger will move the counters when a message changes thread. */
+        private static final String TRIGGER_THREADS_MOVE_COUNT =
+            "CREATE TRIGGER update_thread_on_move AFTER UPDATE OF thread_id ON " + TABLE_MESSAGES +
+            " WHEN old.thread_id <> new.thread_id" +
+            " BEGIN " +
+            UPDATE_COUNTERS_DELETE + ";" +
+            UPDATE_COUNTERS_MOVE   + ";" +
+            "END";
+
+        /** This trigger will update the thread status on UPDATE. */
+        private static final String TRIGGER_THREADS_UPDATE_STATUS =
+            "CREATE TRIGGER update_thread_on_status AFTER UPDATE OF status ON " + TABLE_MESSAGES +
+            " WHEN new.status IS NOT old.status" +
+            " BEGIN " +
+            UPDATE_STATUS_UPDATE + ";" +
+            "END";
 
         /** This trigger will update the threads table counters on DELETE. */
         private static final String TRIGGER_THREADS_DELETE_COUNT =
             "CREATE TRIGGER update_thread_on_delete AFTER DELETE ON " + TABLE_MESSAGES +
             " BEGIN " +
-            UPDATE_MESSAGES_COUNT_OLD + ";" +
-            UPDATE_UNREAD_COUNT_OLD   + ";" +
-            UPDATE_NEW_COUNT_OLD      + ";" +
-            // do not call this here -- UPDATE_STATUS_OLD         + ";" +
+            UPDATE_COUNTERS_DELETE + ";" +
+            // thread metadata will be updated by the provider
             "END";
 
+        /** Recalculates all the thread counters from the messages table. */
+        private static final String SCHEMA_REBUILD_THREAD_COUNTERS =
+            "UPDATE " + TABLE_THREADS + " SET " +
+            "count = (SELECT COUNT(_id) FROM " + TABLE_MESSAGES +
+                " WHERE thread_id = " + TABLE_THREADS + "._id), " +
+            "unread = (SELECT COUNT(_id) FROM " + TABLE_MESSAGES +
+                " WHERE thread_id = " + TABLE_THREADS + "._id AND unread <> 0), " +
+            "\"new\" = (SELECT COUNT(_id) FROM " + TABLE_MESSAGES +
+                " WHERE thread_id = " + TABLE_THREADS + "._id AND \"new\" <> 0)";
+
         private static final String[] SCHEMA_UPGRADE_V4 = {
             // create temporary messages tables without msg_id UNIQUE constraint
             "CREATE TABLE " + TABLE_MESSAGES + "_new " + _SCHEMA_MESSAGES,
@@ -276,11 +369,80 @@ public class MessagesProvider extends ContentProvider {
             // triggers
             TRIGGER_THREADS_INSERT_COUNT,
             TRIGGER_THREADS_UPDATE_COUNT,
+            TRIGGER_THREADS_MOVE_COUNT,
+            TRIGGER_THREADS_UPDATE_STATUS,
             TRIGGER_THREADS_DELETE_COUNT
         };
 
+        private static final String[] SCHEMA_UPGRADE_V8 = {
+            // drop the old counting triggers
+            "DROP TRIGGER IF EXISTS update_thread_on_insert",
+            "DROP TRIGGER IF EXISTS update_thread_on_update",
+            "DROP TRIGGER IF EXISTS update_thread_on_move",
+            "DROP TRIGGER IF EXISTS update_thread_on_status",
+            "DROP TRIGGER IF EXISTS update_thread_on_delete",
+            // incremental triggers
+            TRIGGER_THREADS_INSERT_COUNT,
+            TRIGGER_THREADS_UPDATE_COUNT,
+            TRIGGER_THREADS_MOVE_COUNT,
+            TRIGGER_THREADS_UPDATE_STATUS,
+            TRIGGER_THREADS_DELETE_COUNT,
+            // start from consistent counters
+            SCHEMA_REBUILD_THREAD_COUNTERS
+        };
+
+        private static final String[] SCHEMA_UPGRADE_V9 = {
+            SCHEMA_MESSAGES_THREAD_IDX,
+            SCHEMA_MESSAGES_STATUS_IDX,
+            "ANALYZE " + TABLE_MESSAGES,
+        };
+
+        /**
+         * Queries that must never do a full table scan (checked in debug
+         * builds). Queries are built by the same code used by the provider.
+         * Updates and deletes are checked through a select with the same
+         * selection.
+         */
+        private static String[][] buildIndexedQueries() {
+            Uri conversation = ContentUris.withAppendedId(Conversations.CONTENT_URI, 1);
+            Uri conversationPage = conversation.buildUpon()
+                .appendQueryParameter(Conversations.LIMIT, "30")
+                .build();
+
+            return new String[][] {
+                { "messages/#", buildQuery(ContentUris
+                    .withAppendedId(Messages.CONTENT_URI, 1), null, null, null) },
+                { "messages/*", buildQuery(Messages.getUri("id"), null, null, null) },
+                { "threads/#", buildQuery(ContentUris
+                    .withAppendedId(Threads.CONTENT_URI, 1), null, null, null) },
+                { "threads/*", buildQuery(Threads.getUri("peer"), null, null, null) },
+                { "conversations/#", buildQuery(conversation, null, null,
+                    Messages.DEFAULT_SORT_ORDER) },
+                { "conversations/# (page)", buildQuery(conversationPage, null,
+                    Conversations.SELECTION_OLDER, Messages.PAGED_SORT_ORDER) },
+                { "conversations/# (newer)", buildQuery(conversation, null,
+                    Conversations.SELECTION_NEWER, Messages.PAGED_SORT_ORDER) },
+                { "conversations/# (range)", buildQuery(conversation, null,
+                    Conversations.SELECTION_RANGE, Messages.PAGED_SORT_ORDER) },
+                { "conversations/# (delete)", SQLiteQueryBuilder.buildQueryString(false,
+                    TABLE_MESSAGES, null, SELECTION_THREAD, null, null, null, null) },
+                { "thread info", SQLiteQueryBuilder.buildQueryString(false,
+                    TABLE_MESSAGES, THREAD_INFO_PROJECTION, SELECTION_THREAD,
+                    null, null, Messages.INVERTED_SORT_ORDER, "1") },
+                { "mark as read", SQLiteQueryBuilder.buildQueryString(false,
+                    TABLE_MESSAGES, null, SELECTION_MARK_AS_READ, null, null, null, null) },
+                { "pending messages", buildQuery(Messages.CONTENT_URI, null,
+                    getPendingMessagesSelection(false), Messages._ID) },
+                { "pending media messages", buildQuery(Messages.CONTENT_URI, null,
+                    getPendingMessagesSelection(true), Messages._ID) },
+            };
+        }
+
         private Context mContext;
 
+        /** A read-only connection to the database (if write-ahead logging is not available). */
+        private SQLiteDatabase dbReader;
+
         protected DatabaseHelper(Context context) {
             super(context, DATABASE_NAME, null, DATABASE_VERSION);
             mContext = context;
@@ -293,8 +455,12 @@ public class MessagesProvider extends ContentProvider {
             db.execSQL(SCHEMA_FULLTEXT);
             db.execSQL(SCHEMA_MESSAGES_INDEX);
             db.execSQL(SCHEMA_MESSAGES_TIMESTAMP_IDX);
+            db.execSQL(SCHEMA_MESSAGES_THREAD_IDX);
+            db.execSQL(SCHEMA_MESSAGES_STATUS_IDX);
             db.execSQL(TRIGGER_THREADS_INSERT_COUNT);
             db.execSQL(TRIGGER_THREADS_UPDATE_COUNT);
+            db.execSQL(TRIGGER_THREADS_MOVE_COUNT);
+            db.execSQL(TRIGGER_THREADS_UPDATE_STATUS);
             db.execSQL(TRIGGER_THREADS_DELETE_COUNT);
         }
 
@@ -323,19 +489,152 @@ public class MessagesProvider extends ContentProvider {
                     }
                 }
             }
+
+            if (oldVersion < 9) {
+                for (String sql : SCHEMA_UPGRADE_V8)
+                    db.execSQL(sql);
+            }
+
+            if (oldVersion < 10) {
+                for (String sql : SCHEMA_UPGRADE_V9)
+                    db.execSQL(sql);
+            }
+        }
+
+        @Override
+        public void onOpen(SQLiteDatabase db) {
+            if (BuildConfig.DEBUG)
+                QueryPlanChecker.check(db, buildIndexedQueries());
+
+            if (android.os.Build.VERSION.SDK_INT >= 11) {
+                // readers will get their own connections from the pool
+                enableWriteAheadLogging(db);
+            }
+            else {
+                // use a separate connection for reading
+                String path = mContext.getDatabasePath(DATABASE_NAME).getPath();
+                dbReader = SQLiteDatabase.openDatabase(path, null, SQLiteDatabase.OPEN_READONLY);
+            }
+        }
+
+        @TargetApi(11)
+        private void enableWriteAheadLogging(SQLiteDatabase db) {
+            if (!db.isReadOnly() && !db.enableWriteAheadLogging())
+                Log.w(TAG, "unable to enable write-ahead logging");
+        }
+
+        @Override
+        public synchronized void close() {
+            try {
+                if (dbReader != null)
+                    dbReader.close();
+            }
+            catch (Exception e) {
+                // ignored
+            }
+            dbReader = null;
+            super.close();
+        }
+
+        @Override
+        public synchronized SQLiteDatabase getReadableDatabase() {
+            return (dbReader != null) ? dbReader : super.getReadableDatabase();
+        }
+
+        /** Recalculates all thread counters. Can be slow on big databases. */
+        public void rebuildThreadCounters(SQLiteDatabase db) {
+            db.execSQL(SCHEMA_REBUILD_THREAD_COUNTERS);
         }
     }
 
     @Override
     public boolean onCreate() {
         dbHelper = new DatabaseHelper(getContext());
+        mWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                mWriterThread = new Thread(r, "MessagesWriter");
+                return mWriterThread;
+            }
+        });
         return true;
     }
 
+    /**
+     * Runs a write operation in the writer thread and waits for it to
+     * complete. Nested calls from the writer thread itself (e.g. during a
+     * batch) are executed directly.
+     */
+    private <T> T write(Callable<T> task) {
+        Throwable error;
+
+        if (Thread.currentThread() == mWriterThread) {
+            try {
+                return task.call();
+            }
+            catch (Exception e) {
+                error = e;
+            }
+        }
+
+        else {
+            Future<T> result = mWriter.submit(task);
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    try {
+                        return result.get();
+                    }
+                    catch (InterruptedException e) {
+                        // the write is happening anyway, wait for it
+                        interrupted = true;
+                    }
+                }
+            }
+            catch (ExecutionException e) {
+                error = e.getCause();
+            }
+            finally {
+                if (interrupted)
+                    Thread.currentThread().interrupt();
+            }
+        }
+
+        if (error instanceof RuntimeException)
+            throw (RuntimeException) error;
+        if (error instanceof Error)
+            throw (Error) error;
+        throw new UndeclaredThrowableException(error);
+    }
+
     @Override
     public Cursor query(Uri uri, String[] projection, String selection,
             String[] selectionArgs, String sortOrder) {
+        String sql = buildQuery(uri, projection, selection, sortOrder);
+
+        // the fulltext pattern is the only parameter
+        if (sUriMatcher.match(uri) == FULLTEXT_ID)
+            selectionArgs = new String[] { uri.getQueryParameter("pattern") };
+
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+        Cursor c = db.rawQuery(sql, selectionArgs);
+
+        c.setNotificationUri(getContext().getContentResolver(), uri);
+        return c;
+    }
+
+    /**
+     * Builds the SQL query for a provider URI. The most recent messages of
+     * a conversation (if a limit is given) are selected walking the thread
+     * index backwards, then they are returned in the requested order
+     * (defaults to {@link Messages#PAGED_SORT_ORDER}); projection must
+     * include {@link Messages#TIMESTAMP} and {@link Messages#_ID}.
+     */
+    @SuppressWarnings("deprecation")
+    private static String buildQuery(Uri uri, String[] projection, String selection,
+            String sortOrder) {
         SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+        String limit = null;
+        String page = null;
 
         switch (sUriMatcher.match(uri)) {
             case MESSAGES:
@@ -352,7 +651,7 @@ public class MessagesProvider extends ContentProvider {
             case MESSAGES_SERVERID:
                 qb.setTables(TABLE_MESSAGES);
                 qb.setProjectionMap(messagesProjectionMap);
-                qb.appendWhere(Messages.MESSAGE_ID + "='" + DatabaseUtils.sqlEscapeString(uri.getPathSegments().get(1)) + "'");
+                qb.appendWhere(Messages.MESSAGE_ID + "=" + DatabaseUtils.sqlEscapeString(uri.getPathSegments().get(1)));
                 break;
 
             case THREADS:
@@ -369,44 +668,86 @@ public class MessagesProvider extends ContentProvider {
             case THREADS_PEER:
                 qb.setTables(TABLE_THREADS);
                 qb.setProjectionMap(threadsProjectionMap);
-                qb.appendWhere(Threads.PEER + "='" + DatabaseUtils.sqlEscapeString(uri.getPathSegments().get(1)) + "'");
+                qb.appendWhere(Threads.PEER + "=" + DatabaseUtils.sqlEscapeString(uri.getPathSegments().get(1)));
                 break;
 
             case CONVERSATIONS_ID:
                 qb.setTables(TABLE_MESSAGES);
                 qb.setProjectionMap(messagesProjectionMap);
                 qb.appendWhere(Messages.THREAD_ID + "=" + uri.getPathSegments().get(1));
+
+                int limitParam = getIntParameter(uri, Conversations.LIMIT, -1);
+                if (limitParam >= 0)
+                    limit = String.valueOf(limitParam);
                 break;
 
             case FULLTEXT_ID:
                 qb.setTables(TABLE_FULLTEXT);
                 qb.setProjectionMap(fulltextProjectionMap);
                 qb.appendWhere(Fulltext.CONTENT + " MATCH ?");
-                selectionArgs = new String[] { uri.getQueryParameter("pattern") };
+
+                // invalid parameters mean no paging
+                int pageLimit = getIntParameter(uri, Fulltext.LIMIT, -1);
+                int pageOffset = getIntParameter(uri, Fulltext.OFFSET, 0);
+                if (pageLimit >= 0 && pageOffset >= 0)
+                    page = pageOffset + "," + pageLimit;
                 break;
 
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
-        SQLiteDatabase db = dbHelper.getReadableDatabase();
-        Cursor c = qb.query(db, projection, selection, selectionArgs, null, null, sortOrder);
+        if (limit != null) {
+            String sql = qb.buildQuery(projection, selection, null, null, null,
+                Messages.INVERTED_PAGED_SORT_ORDER, limit);
 
-        c.setNotificationUri(getContext().getContentResolver(), uri);
-        return c;
+            return "SELECT * FROM (" + sql + ") ORDER BY " +
+                (sortOrder != null ? sortOrder : Messages.PAGED_SORT_ORDER);
+        }
+
+        return qb.buildQuery(projection, selection, null, null, null, sortOrder, page);
+    }
+
+    /**
+     * Returns a non-negative integer query parameter.
+     * @return the default value if the parameter is missing, -1 if it's invalid
+     */
+    private static int getIntParameter(Uri uri, String name, int defaultValue) {
+        String value = uri.getQueryParameter(name);
+        if (value == null)
+            return defaultValue;
+
+        try {
+            int n = Integer.parseInt(value);
+            if (n >= 0)
+                return n;
+        }
+        catch (NumberFormatException e) {
+            // invalid parameter
+        }
+
+        Log.w(TAG, "invalid " + name + " parameter: " + value);
+        return -1;
     }
 
     @Override
-    public synchronized Uri insert(Uri uri, ContentValues initialValues) {
+    public Uri insert(final Uri uri, final ContentValues initialValues) {
+        return write(new Callable<Uri>() {
+            public Uri call() {
+                return doInsert(uri, initialValues);
+            }
+        });
+    }
+
+    private Uri doInsert(Uri uri, ContentValues initialValues) {
         // only messages and requests virtual table can be inserted
         int match = sUriMatcher.match(uri);
         if (match != MESSAGES && match != REQUESTS) { throw new IllegalArgumentException("Unknown URI " + uri); }
         if (initialValues == null) { throw new IllegalArgumentException("No data"); }
 
-        // if this column is present, we'll insert the thread only
-        String draft = initialValues.getAsString(Threads.DRAFT);
-
-        ContentValues values = new ContentValues(initialValues);
+        // part of a batch: the transaction is already open
+        if (mBatch != null)
+            return insertBatched(uri, match, initialValues);
 
         SQLiteDatabase db = dbHelper.getWritableDatabase();
         boolean success = false;
@@ -414,97 +755,237 @@ public class MessagesProvider extends ContentProvider {
 
         try {
             beginTransaction(db);
+            Uri result = insert(db, uri, match, initialValues, notifications);
+            success = setTransactionSuccessful(db);
+            return result;
+        }
+        finally {
+            endTransaction(db, success);
+            notifyChanges(notifications);
+        }
+    }
 
-            // create the thread first
-            long threadId = updateThreads(db, values, notifications, match == REQUESTS);
+    /** Inserts a message or a request. Must be called inside a transaction. */
+    private Uri insert(SQLiteDatabase db, Uri uri, int match, ContentValues initialValues, Collection<Uri> notifications) {
+        // if this column is present, we'll insert the thread only
+        String draft = initialValues.getAsString(Threads.DRAFT);
 
-            if (draft != null || match == REQUESTS) {
-                // notify thread change
-                notifications.add(ContentUris.withAppendedId(Threads.CONTENT_URI, threadId));
-                // notify conversation change
-                notifications.add(ContentUris.withAppendedId(Conversations.CONTENT_URI, threadId));
+        ContentValues values = new ContentValues(initialValues);
 
-                success = setTransactionSuccessful(db);
+        // create the thread first
+        long threadId = updateThreads(db, values, notifications, match == REQUESTS);
 
-                // request only - return conversation
-                if (match == REQUESTS)
-                    return ContentUris.withAppendedId(Conversations.CONTENT_URI, threadId);
+        if (draft != null || match == REQUESTS) {
+            // notify thread change
+            notifications.add(ContentUris.withAppendedId(Threads.CONTENT_URI, threadId));
+            // notify conversation change
+            notifications.add(ContentUris.withAppendedId(Conversations.CONTENT_URI, threadId));
 
-                // draft only - no uri
-                else
-                    return null;
+            // request only - return conversation
+            if (match == REQUESTS)
+                return ContentUris.withAppendedId(Conversations.CONTENT_URI, threadId);
 
-            }
+            // draft only - no uri
+            else
+                return null;
 
-            values.put(Messages.THREAD_ID, threadId);
+        }
 
-            // insert the new message now!
-            long rowId = db.insertOrThrow(TABLE_MESSAGES, null, values);
+        Uri msgUri = insertMessage(db, uri, values, threadId);
 
-            /*
-             * this will be useful one day perhaps :)
-            long rowId = 0;
-            try {
-                rowId = db.insert(TABLE_MESSAGES, null, values);
-            }
-            catch (SQLiteConstraintException e) {
-                // unique constraint is on msg_id, direction
-                // already stored message, skip it and return uri
-                Cursor c = null;
-                try {
-                    c = db.query(TABLE_MESSAGES, new String[] { Messages._ID },
-                        Messages.MESSAGE_ID + " = ? AND " + Messages.DIRECTION + " = ?",
-                        new String[] {
-                            values.getAsString(Messages.MESSAGE_ID),
-                            values.getAsString(Messages.DIRECTION)
-                        }, null, null, null, "1");
-                    if (c.moveToFirst()) {
-                        rowId = c.getLong(0);
-                        return ContentUris.withAppendedId(uri, rowId);
-                    }
-                }
-                finally {
-                    try {
-                        c.close();
-                    }
-                    catch (Exception eClose) {
-                        // ignore exception
-                    }
-                }
+        notifications.add(msgUri);
+        // notify thread change
+        notifications.add(ContentUris.withAppendedId(Threads.CONTENT_URI, threadId));
+        // notify conversation change
+        notifications.add(ContentUris.withAppendedId(Conversations.CONTENT_URI, threadId));
 
-                // message not found (WHAT???)
-                throw e;
+        return msgUri;
+    }
+
+    /**
+     * Inserts a message in the given thread and updates the fulltext table.
+     * Must be called inside a transaction.
+     */
+    private Uri insertMessage(SQLiteDatabase db, Uri uri, ContentValues values, long threadId) {
+        values.put(Messages.THREAD_ID, threadId);
+
+        // insert the new message now!
+        long rowId = db.insertOrThrow(TABLE_MESSAGES, null, values);
+
+        if (rowId > 0) {
+            // update fulltext table
+            byte[] content = values.getAsByteArray(Messages.BODY_CONTENT);
+            Boolean encrypted = values.getAsBoolean(Messages.ENCRYPTED);
+            if (content != null && content.length > 0 && (encrypted == null || !encrypted.booleanValue())) {
+                updateFulltext(db, rowId, threadId, content);
             }
-            */
-
-            if (rowId > 0) {
-                // update fulltext table
-                byte[] content = values.getAsByteArray(Messages.BODY_CONTENT);
-                Boolean encrypted = values.getAsBoolean(Messages.ENCRYPTED);
-                if (content != null && content.length > 0 && (encrypted == null || !encrypted.booleanValue())) {
-                    updateFulltext(db, rowId, threadId, content);
-                }
 
-                Uri msgUri = ContentUris.withAppendedId(uri, rowId);
-                notifications.add(msgUri);
+            return ContentUris.withAppendedId(uri, rowId);
+        }
+
+        throw new SQLException("Failed to insert row into " + uri);
+    }
+
+    /**
+     * Inserts a message as part of a batch. Thread metadata is updated only
+     * for the first message of each thread; the others will be reflected
+     * once at the end of the batch by {@link #finishBatch}.
+     * @return the new message uri, or null if the message was a duplicate
+     * and the batch allows skipping duplicates
+     */
+    private Uri insertBatched(Uri uri, int match, ContentValues initialValues) {
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        BatchState batch = mBatch;
 
-                // notify thread change
-                notifications.add(ContentUris.withAppendedId(Threads.CONTENT_URI, threadId));
-                // notify conversation change
-                notifications.add(ContentUris.withAppendedId(Conversations.CONTENT_URI, threadId));
+        // drafts and requests do not need any special treatment
+        if (match == REQUESTS || initialValues.getAsString(Threads.DRAFT) != null)
+            return insert(db, uri, match, initialValues, batch.notifications);
 
-                success = setTransactionSuccessful(db);
-                return msgUri;
+        ContentValues values = new ContentValues(initialValues);
+
+        if (batch.skipDuplicates && isStored(db, values)) {
+            // already stored message, skip it
+            return null;
+        }
+
+        String peer = values.getAsString(CommonColumns.PEER);
+        Long threadId = batch.threads.get(peer);
+        boolean firstInThread = (threadId == null);
+        if (firstInThread) {
+            threadId = updateThreads(db, values, batch.notifications, false);
+            batch.threads.put(peer, threadId);
+        }
+
+        Uri msgUri = insertMessage(db, uri, values, threadId);
+
+        if (!firstInThread)
+            // thread will be updated with the latest message of the batch
+            batch.pendingThreads.put(threadId, values);
+
+        // one notification per thread and one for all messages
+        batch.notifications.add(Messages.CONTENT_URI);
+        batch.notifications.add(ContentUris.withAppendedId(Threads.CONTENT_URI, threadId));
+        batch.notifications.add(ContentUris.withAppendedId(Conversations.CONTENT_URI, threadId));
+        batch.inserted++;
+
+        return msgUri;
+    }
+
+    /** Returns true if a message with the same id and direction is already stored. */
+    private boolean isStored(SQLiteDatabase db, ContentValues values) {
+        String msgId = values.getAsString(Messages.MESSAGE_ID);
+        Integer direction = values.getAsInteger(Messages.DIRECTION);
+        if (msgId == null || direction == null)
+            return false;
+
+        Cursor c = db.query(TABLE_MESSAGES, new String[] { Messages._ID },
+            Messages.MESSAGE_ID + " = ? AND " + Messages.DIRECTION + " = ?",
+            new String[] { msgId, String.valueOf(direction) },
+            null, null, null, "1");
+        try {
+            return c.moveToFirst();
+        }
+        finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Inserts messages in a single transaction, skipping already stored
+     * ones. The id of each inserted message is put in its values as
+     * {@link Messages#_ID}, so callers in our process know which ones were
+     * actually inserted.
+     */
+    @Override
+    public int bulkInsert(final Uri uri, final ContentValues[] values) {
+        return write(new Callable<Integer>() {
+            public Integer call() {
+                return doBulkInsert(uri, values);
+            }
+        });
+    }
+
+    private int doBulkInsert(Uri uri, ContentValues[] values) {
+        int match = sUriMatcher.match(uri);
+        if (match != MESSAGES) { return super.bulkInsert(uri, values); }
+
+        BatchState batch = new BatchState(true);
+        beginBatch(batch);
+        boolean success = false;
+        try {
+            for (ContentValues v : values) {
+                Uri msgUri = insert(uri, v);
+                if (msgUri != null)
+                    v.put(Messages._ID, ContentUris.parseId(msgUri));
             }
 
-            throw new SQLException("Failed to insert row into " + uri);
+            success = endBatch(batch);
+            return batch.inserted;
         }
         finally {
-            endTransaction(db, success);
-            ContentResolver cr = getContext().getContentResolver();
-            for (Uri nuri : notifications)
-                cr.notifyChange(nuri, null);
+            abortBatch(batch, success);
+        }
+    }
+
+    @Override
+    public ContentProviderResult[] applyBatch(final ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        try {
+            return write(new Callable<ContentProviderResult[]>() {
+                public ContentProviderResult[] call() throws OperationApplicationException {
+                    return doApplyBatch(operations);
+                }
+            });
+        }
+        catch (UndeclaredThrowableException e) {
+            if (e.getCause() instanceof OperationApplicationException)
+                throw (OperationApplicationException) e.getCause();
+            throw e;
+        }
+    }
+
+    private ContentProviderResult[] doApplyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        BatchState batch = new BatchState(false);
+        beginBatch(batch);
+        boolean success = false;
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            success = endBatch(batch);
+            return results;
         }
+        finally {
+            abortBatch(batch, success);
+        }
+    }
+
+    /** Opens the batch transaction. */
+    private void beginBatch(BatchState batch) {
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        beginTransaction(db);
+        mBatch = batch;
+    }
+
+    /** Updates pending threads and marks the batch transaction successful. */
+    private boolean endBatch(BatchState batch) {
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        finishBatch(db, batch);
+        mBatch = null;
+        return setTransactionSuccessful(db);
+    }
+
+    /** Closes the batch transaction and fires notifications if successful. */
+    private void abortBatch(BatchState batch, boolean success) {
+        mBatch = null;
+        endTransaction(dbHelper.getWritableDatabase(), success);
+        if (success)
+            notifyChanges(batch.notifications);
+    }
+
+    /** Updates thread metadata with the latest message inserted in the batch. */
+    private void finishBatch(SQLiteDatabase db, BatchState batch) {
+        for (ContentValues values : batch.pendingThreads.values())
+            updateThreads(db, values, batch.notifications, false);
     }
 
     /** Used to determine content and mime type for a thread. */
@@ -541,7 +1022,7 @@ public class MessagesProvider extends ContentProvider {
      * A thread is created for the given message if not found.
      * @return the thread id
      */
-    private long updateThreads(SQLiteDatabase db, ContentValues initialValues, List<Uri> notifications, boolean requestOnly) {
+    private long updateThreads(SQLiteDatabase db, ContentValues initialValues, Collection<Uri> notifications, boolean requestOnly) {
         ContentValues values = new ContentValues();
         String peer = initialValues.getAsString(CommonColumns.PEER);
 
@@ -617,7 +1098,19 @@ public class MessagesProvider extends ContentProvider {
     }
 
     @Override
-    public synchronized int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+    public int update(final Uri uri, final ContentValues values, final String selection, final String[] selectionArgs) {
+        return write(new Callable<Integer>() {
+            public Integer call() {
+                return doUpdate(uri, values, selection, selectionArgs);
+            }
+        });
+    }
+
+    private int doUpdate(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        int match = sUriMatcher.match(uri);
+        if (match == THREADS && Boolean.parseBoolean(uri.getQueryParameter(Threads.REBUILD_COUNTERS)))
+            return rebuildThreadCounters();
+
         if (values == null) { throw new IllegalArgumentException("No data"); }
 
         String table;
@@ -626,7 +1119,7 @@ public class MessagesProvider extends ContentProvider {
         String messageId = null;
         boolean requestOnly = false;
 
-        switch (sUriMatcher.match(uri)) {
+        switch (match) {
             case MESSAGES:
                 table = TABLE_MESSAGES;
                 where = selection;
@@ -741,9 +1234,12 @@ public class MessagesProvider extends ContentProvider {
                         Cursor c = db.query(TABLE_MESSAGES, projection,
                                 whereBuilder.toString(), msgIdList, null, null, null);
 
+                        // thread metadata needs to be updated only once per thread
+                        Set<Long> threads = new HashSet<Long>();
                         while (c.moveToNext()) {
                             long threadId = c.getLong(0);
-                            updateThreadInfo(db, threadId, notifications);
+                            if (threads.add(threadId))
+                                updateThreadInfo(db, threadId, notifications);
 
                             // update fulltext if necessary
                             if (doUpdateFulltext) {
@@ -777,10 +1273,27 @@ public class MessagesProvider extends ContentProvider {
         }
         finally {
             endTransaction(db, success);
-            ContentResolver cr = getContext().getContentResolver();
-            for (Uri nuri : notifications)
-                cr.notifyChange(nuri, null);
+            notifyChanges(notifications);
+        }
+    }
+
+    /** Recalculates thread counters from the messages table. */
+    private int rebuildThreadCounters() {
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        boolean success = false;
+        try {
+            beginTransaction(db);
+            dbHelper.rebuildThreadCounters(db);
+            // some threads might be empty now
+            deleteEmptyThreads(db);
+            success = setTransactionSuccessful(db);
+        }
+        finally {
+            endTransaction(db, success);
         }
+
+        notifyChange(Threads.CONTENT_URI);
+        return 0;
     }
 
     private void updateFulltext(SQLiteDatabase db, long id, long threadId, byte[] content) {
@@ -795,7 +1308,15 @@ public class MessagesProvider extends ContentProvider {
     }
 
     @Override
-    public synchronized int delete(Uri uri, String selection, String[] selectionArgs) {
+    public int delete(final Uri uri, final String selection, final String[] selectionArgs) {
+        return write(new Callable<Integer>() {
+            public Integer call() {
+                return doDelete(uri, selection, selectionArgs);
+            }
+        });
+    }
+
+    private int doDelete(Uri uri, String selection, String[] selectionArgs) {
         String table;
         String where;
         String[] args;
@@ -845,12 +1366,11 @@ public class MessagesProvider extends ContentProvider {
             case CONVERSATIONS_ID: {
                 int rows = deleteConversation(uri);
                 if (rows > 0) {
-                    ContentResolver cr = getContext().getContentResolver();
                     // first of all, notify conversation
-                    cr.notifyChange(uri, null);
+                    notifyChange(uri);
                     // then notify thread itself
                     long threadId = ContentUris.parseId(uri);
-                    cr.notifyChange(ContentUris.withAppendedId(Threads.CONTENT_URI, threadId), null);
+                    notifyChange(ContentUris.withAppendedId(Threads.CONTENT_URI, threadId));
                 }
                 return rows;
                 // END :)
@@ -878,10 +1398,9 @@ public class MessagesProvider extends ContentProvider {
                 }
 
                 if (num > 0) {
-                    ContentResolver cr = getContext().getContentResolver();
                     // notify conversations and threads
-                    cr.notifyChange(uri, null);
-                    cr.notifyChange(Threads.CONTENT_URI, null);
+                    notifyChange(uri);
+                    notifyChange(Threads.CONTENT_URI);
                 }
 
                 return num;
@@ -950,9 +1469,7 @@ public class MessagesProvider extends ContentProvider {
         }
         finally {
             endTransaction(db, success);
-            ContentResolver cr = getContext().getContentResolver();
-            for (Uri nuri : notifications)
-                cr.notifyChange(nuri, null);
+            notifyChanges(notifications);
         }
 
         return rows;
@@ -968,7 +1485,7 @@ public class MessagesProvider extends ContentProvider {
 
                 beginTransaction(db);
                 num = db.delete(TABLE_THREADS, Threads._ID + " = " + threadId, null);
-                num += db.delete(TABLE_MESSAGES, Messages.THREAD_ID + " = " + threadId, null);
+                num += db.delete(TABLE_MESSAGES, SELECTION_THREAD, new String[] { String.valueOf(threadId) });
                 // update fulltext
                 db.delete(TABLE_FULLTEXT, Messages.THREAD_ID + " = " + threadId, null);
 
@@ -986,16 +1503,9 @@ public class MessagesProvider extends ContentProvider {
     }
 
     /** Updates metadata of a given thread. */
-    private int updateThreadInfo(SQLiteDatabase db, long threadId, List<Uri> notifications) {
-        Cursor c = db.query(TABLE_MESSAGES, new String[] {
-                Messages.MESSAGE_ID,
-                Messages.DIRECTION,
-                Messages.STATUS,
-                Messages.BODY_CONTENT,
-                Messages.BODY_MIME,
-                Messages.ATTACHMENT_MIME,
-                Messages.TIMESTAMP,
-            }, Messages.THREAD_ID + " = ?", new String[] { String.valueOf(threadId) },
+    private int updateThreadInfo(SQLiteDatabase db, long threadId, Collection<Uri> notifications) {
+        Cursor c = db.query(TABLE_MESSAGES, THREAD_INFO_PROJECTION,
+            SELECTION_THREAD, new String[] { String.valueOf(threadId) },
             null, null, Messages.INVERTED_SORT_ORDER, "1");
 
         int rc = -1;
@@ -1044,10 +1554,29 @@ public class MessagesProvider extends ContentProvider {
         }
     }
 
-    /* Transactions compatibility layer */
+    /** Fires a change notification, or queues it if a batch is running. */
+    private void notifyChange(Uri uri) {
+        if (mBatch != null)
+            mBatch.notifications.add(uri);
+        else
+            getContext().getContentResolver().notifyChange(uri, null);
+    }
+
+    private void notifyChanges(Collection<Uri> uris) {
+        for (Uri uri : uris)
+            notifyChange(uri);
+    }
+
+    /*
+     * Transactions compatibility layer
+     * Inside a batch the transaction is managed by the batch itself.
+     */
 
     @TargetApi(11)
     private void beginTransaction(SQLiteDatabase db) {
+        if (mBatch != null)
+            return;
+
         if (android.os.Build.VERSION.SDK_INT >= 11)
             db.beginTransactionNonExclusive();
         else
@@ -1056,12 +1585,18 @@ public class MessagesProvider extends ContentProvider {
     }
 
     private boolean setTransactionSuccessful(SQLiteDatabase db) {
+        if (mBatch != null)
+            return true;
+
         if (android.os.Build.VERSION.SDK_INT >= 11)
             db.setTransactionSuccessful();
         return true;
     }
 
     private void endTransaction(SQLiteDatabase db, boolean success) {
+        if (mBatch != null)
+            return;
+
         if (android.os.Build.VERSION.SDK_INT >= 11)
             db.endTransaction();
         else
@@ -1085,6 +1620,43 @@ public class MessagesProvider extends ContentProvider {
         return (c.delete(ContentUris.withAppendedId(Conversations.CONTENT_URI, id), null, null) > 0);
     }
 
+    /**
+     * Selection for outgoing messages still to be sent.
+     * @param retrying if true, only media messages already uploaded
+     */
+    public static String getPendingMessagesSelection(boolean retrying) {
+        StringBuilder filter = new StringBuilder()
+            .append(Messages.DIRECTION)
+            .append('=')
+            .append(Messages.DIRECTION_OUT)
+            .append(" AND ")
+            .append(Messages.STATUS)
+            .append("<>")
+            .append(Messages.STATUS_SENT)
+            .append(" AND ")
+            .append(Messages.STATUS)
+            .append("<>")
+            .append(Messages.STATUS_RECEIVED)
+            .append(" AND ")
+            .append(Messages.STATUS)
+            .append("<>")
+            .append(Messages.STATUS_NOTDELIVERED)
+            .append(" AND ")
+            .append(Messages.STATUS)
+            .append("<>")
+            .append(Messages.STATUS_PENDING);
+
+        // filter out non-media non-uploaded messages
+        if (retrying) filter
+            .append(" AND ")
+            .append(Messages.ATTACHMENT_FETCH_URL)
+            .append(" IS NULL AND ")
+            .append(Messages.ATTACHMENT_LOCAL_URI)
+            .append(" IS NOT NULL");
+
+        return filter.toString();
+    }
+
     /**
      * Marks all messages of the given thread as read.
      * @param context used to request a {@link ContentResolver}
@@ -1096,10 +1668,7 @@ public class MessagesProvider extends ContentProvider {
         ContentValues values = new ContentValues(2);
         values.put(Messages.UNREAD, Boolean.FALSE);
         values.put(Messages.NEW, Boolean.FALSE);
-        return c.update(Messages.CONTENT_URI, values,
-                Messages.THREAD_ID + " = ? AND " +
-                Messages.UNREAD + " <> 0 AND " +
-                Messages.DIRECTION + " = " + Messages.DIRECTION_IN,
+        return c.update(Messages.CONTENT_URI, values, SELECTION_MARK_AS_READ,
                 new String[] { String.valueOf(id) });
     }
 
@@ -1118,6 +1687,17 @@ public class MessagesProvider extends ContentProvider {
                 null);
     }
 
+    /**
+     * Recalculates the counters of all threads. This is a full table scan
+     * and should be used only for repairing an inconsistent database.
+     * @param context used to request a {@link ContentResolver}
+     */
+    public static void rebuildThreadCounters(Context context) {
+        context.getContentResolver().update(Threads.CONTENT_URI.buildUpon()
+            .appendQueryParameter(Threads.REBUILD_COUNTERS, "true").build(),
+            null, null, null);
+    }
+
     public static int getThreadUnreadCount(Context context, long id) {
         int count = 0;
         ContentResolver res = context.getContentResolver();
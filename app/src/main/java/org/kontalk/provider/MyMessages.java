@@ -85,6 +85,10 @@ public final class MyMessages {
             public static final String _ID = "rowid";
             public static final String THREAD_ID = "thread_id";
             public static final String CONTENT = "content";
+
+            // uri parameters for query: a page of results
+            public static final String LIMIT = "limit";
+            public static final String OFFSET = "offset";
         }
 
         private static final String ITEM_TYPE = BuildConfig.APPLICATION_ID + ".message";
@@ -112,6 +116,10 @@ public final class MyMessages {
         // not DESC here because the listview is reverse-stacked
         public static final String DEFAULT_SORT_ORDER = _ID;
         public static final String INVERTED_SORT_ORDER = _ID + " DESC";
+
+        // keyset order for paged conversations (uses the thread_message index)
+        public static final String PAGED_SORT_ORDER = TIMESTAMP + ", " + _ID;
+        public static final String INVERTED_PAGED_SORT_ORDER = TIMESTAMP + " DESC, " + _ID + " DESC";
     }
 
     /** Threads are just for conversations metadata. */
@@ -136,6 +144,23 @@ public final class MyMessages {
         public static final class Conversations implements BaseColumns {
             public static final Uri CONTENT_URI = Uri
                 .parse("content://" + MessagesProvider.AUTHORITY + "/conversations");
+
+            // uri parameter for query: only the given number of most recent messages
+            public static final String LIMIT = "limit";
+
+            /* keyset pagination on (timestamp, _id) */
+
+            /** Messages older than a given message. */
+            public static final String SELECTION_OLDER =
+                "timestamp <= ? AND (timestamp < ? OR _id < ?)";
+            /** Messages inserted after a given message. */
+            public static final String SELECTION_NEWER = "_id > ?";
+            /** Messages from a given message onward. */
+            public static final String SELECTION_FROM =
+                "timestamp >= ? AND (timestamp > ? OR _id >= ?)";
+            /** Messages between two given messages. */
+            public static final String SELECTION_RANGE = SELECTION_FROM +
+                " AND timestamp <= ? AND (timestamp < ? OR _id <= ?)";
         }
 
         /** Request represents a presence subscription request. */
@@ -164,6 +189,9 @@ public final class MyMessages {
         public static final String DRAFT = "draft";
         public static final String REQUEST_STATUS = "request_status";
 
+        // uri parameter for update: rebuilds thread counters from the messages table
+        public static final String REBUILD_COUNTERS = "rebuildCounters";
+
         public static final String DEFAULT_SORT_ORDER = "timestamp DESC";
         public static final String INVERTED_SORT_ORDER = "timestamp";
     }
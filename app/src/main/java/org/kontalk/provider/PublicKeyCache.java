@@ -0,0 +1,119 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.provider;
+
+import org.spongycastle.openpgp.PGPPublicKey;
+import org.spongycastle.openpgp.PGPPublicKeyRing;
+
+import android.support.v4.util.LruCache;
+
+import org.kontalk.crypto.PGP;
+
+
+/**
+ * Cache for parsed public keyrings. Keyrings are stored by fingerprint;
+ * users are mapped to the fingerprint of their current key, so that a cache
+ * hit doesn't even need a database query.
+ * @author Daniele Ricci
+ */
+final class PublicKeyCache {
+    private static final int MAX_ENTRIES = 50;
+
+    /** Fingerprint to keyring. */
+    private final LruCache<String, PGPPublicKeyRing> mKeys =
+        new LruCache<String, PGPPublicKeyRing>(MAX_ENTRIES);
+    /** User JID to fingerprint. */
+    private final LruCache<String, String> mFingerprints =
+        new LruCache<String, String>(MAX_ENTRIES);
+
+    /** Incremented on every invalidation. */
+    private int mGeneration;
+
+    private int mHits;
+    private int mMisses;
+
+    /** Returns the cached keyring for a user, or null if not cached. */
+    public synchronized PGPPublicKeyRing get(String jid) {
+        String fingerprint = mFingerprints.get(jid);
+        PGPPublicKeyRing ring = (fingerprint != null) ? mKeys.get(fingerprint) : null;
+
+        if (ring != null)
+            mHits++;
+        else
+            mMisses++;
+
+        return ring;
+    }
+
+    /**
+     * Returns the current generation, to be given to {@link #put} for
+     * keys read from the database after this call.
+     */
+    public synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Caches the keyring of a user. The keyring is discarded if the cache
+     * was invalidated since the given generation (the key was read before
+     * being updated).
+     */
+    public synchronized void put(String jid, PGPPublicKeyRing ring, int generation) {
+        if (generation != mGeneration)
+            return;
+
+        PGPPublicKey masterKey = PGP.getMasterKey(ring);
+        if (masterKey != null) {
+            String fingerprint = PGP.getFingerprint(masterKey);
+            mFingerprints.put(jid, fingerprint);
+            mKeys.put(fingerprint, ring);
+        }
+    }
+
+    /** Discards the cached key of a user. */
+    public synchronized void invalidate(String jid) {
+        mGeneration++;
+        String fingerprint = mFingerprints.remove(jid);
+        if (fingerprint != null)
+            mKeys.remove(fingerprint);
+    }
+
+    /** Discards the cached key of a user if it doesn't match the given fingerprint. */
+    public synchronized void invalidate(String jid, String fingerprint) {
+        String cached = mFingerprints.get(jid);
+        if (cached != null && !cached.equalsIgnoreCase(fingerprint))
+            invalidate(jid);
+    }
+
+    /** Discards all cached keys. */
+    public synchronized void invalidate() {
+        mGeneration++;
+        mFingerprints.evictAll();
+        mKeys.evictAll();
+    }
+
+    public synchronized int getHitCount() {
+        return mHits;
+    }
+
+    public synchronized int getMissCount() {
+        return mMisses;
+    }
+
+}
@@ -0,0 +1,95 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.provider;
+
+import java.util.Locale;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+
+/**
+ * Debug helper for verifying that provider queries use an index.
+ * Queries should be built by the same code used by the provider, so the
+ * check follows any change to them.
+ * Every query is run through <code>EXPLAIN QUERY PLAN</code>: if SQLite
+ * reports a full table scan an {@link IllegalStateException} is thrown.
+ * To be used only in debug builds.
+ * @author Daniele Ricci
+ */
+final class QueryPlanChecker {
+    private static final String TAG = QueryPlanChecker.class.getSimpleName();
+
+    private QueryPlanChecker() {
+    }
+
+    /**
+     * Checks the query plan of the given queries.
+     * @param db the database to check against
+     * @param queries a map of query names (e.g. the provider URI) and
+     *                queries. Queries can have parameters, they will be
+     *                bound to a dummy value.
+     */
+    public static void check(SQLiteDatabase db, String[][] queries) {
+        for (String[] query : queries) {
+            String name = query[0];
+            String sql = query[1];
+
+            String[] args = new String[countParameters(sql)];
+            for (int i = 0; i < args.length; i++)
+                args[i] = "0";
+
+            Cursor c = db.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+            try {
+                int detailIndex = c.getColumnIndexOrThrow("detail");
+                while (c.moveToNext()) {
+                    String detail = c.getString(detailIndex);
+                    if (isFullScan(detail))
+                        throw new IllegalStateException("full table scan for " +
+                            name + ": " + detail + " (" + sql + ")");
+
+                    Log.v(TAG, name + ": " + detail);
+                }
+            }
+            finally {
+                c.close();
+            }
+        }
+    }
+
+    private static boolean isFullScan(String detail) {
+        // e.g. "SCAN TABLE messages" or "SCAN messages" (newer SQLite)
+        return detail.startsWith("SCAN ") &&
+            !detail.contains(" USING ") &&
+            !detail.contains(" VIRTUAL TABLE ") &&
+            // results of a subquery, e.g. "SCAN SUBQUERY 1" or "SCAN (subquery-1)"
+            !detail.toLowerCase(Locale.US).contains("subquery");
+    }
+
+    private static int countParameters(String sql) {
+        int count = 0;
+        for (int i = 0; i < sql.length(); i++) {
+            if (sql.charAt(i) == '?')
+                count++;
+        }
+        return count;
+    }
+
+}
@@ -18,13 +18,19 @@
 
 package org.kontalk.provider;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
+import java.util.regex.Pattern;
 
 import org.jxmpp.util.XmppStringUtils;
+import org.spongycastle.openpgp.PGPPublicKey;
 import org.spongycastle.openpgp.PGPPublicKeyRing;
 
 import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentProviderClient;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
@@ -41,6 +47,8 @@ import android.net.Uri;
 import android.provider.BaseColumns;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.RawContacts;
+import android.support.v4.util.LruCache;
+import android.text.TextUtils;
 import android.util.Log;
 
 import org.kontalk.BuildConfig;
@@ -50,6 +58,7 @@ import org.kontalk.authenticator.Authenticator;
 import org.kontalk.client.EndpointServer;
 import org.kontalk.client.NumberValidator;
 import org.kontalk.crypto.Coder;
+import org.kontalk.crypto.CryptoSession;
 import org.kontalk.crypto.PGP;
 import org.kontalk.crypto.PGPCoder;
 import org.kontalk.crypto.PersonalKey;
@@ -64,7 +73,7 @@ import org.kontalk.util.XMPPUtils;
 public class UsersProvider extends ContentProvider {
     public static final String AUTHORITY = BuildConfig.APPLICATION_ID + ".users";
 
-    private static final int DATABASE_VERSION = 7;
+    private static final int DATABASE_VERSION = 8;
     private static final String DATABASE_NAME = "users.db";
     private static final String TABLE_USERS = "users";
     private static final String TABLE_USERS_OFFLINE = "users_offline";
@@ -72,10 +81,28 @@ public class UsersProvider extends ContentProvider {
     private static final int USERS = 1;
     private static final int USERS_JID = 2;
 
+    private static final String SQL_UPDATE_PRESENCE = "UPDATE " + TABLE_USERS +
+        " SET " + Users.REGISTERED + " = 1, " + Users.STATUS + " = ?, " +
+        Users.LAST_SEEN + " = ?, " + Users.FINGERPRINT + " = COALESCE(?, " + Users.FINGERPRINT + ")" +
+        " WHERE " + Users.JID + " = ?";
+
     private DatabaseHelper dbHelper;
+    /** Compiled statement for {@link #SQL_UPDATE_PRESENCE}. */
+    private SQLiteStatement mUpdatePresence;
     private static final UriMatcher sUriMatcher;
     private static HashMap<String, String> usersProjectionMap;
 
+    /** Parsed public keys cache. */
+    private static final PublicKeyCache sKeyCache = new PublicKeyCache();
+    /** Selection of a single user by JID. */
+    private static final Pattern SELECTION_JID = Pattern.compile("\\s*" + Users.JID + "\\s*=\\s*\\?\\s*");
+
+    /** Maximum number of cached crypto sessions. */
+    private static final int MAX_CRYPTO_SESSIONS = 20;
+    /** Crypto sessions by peer JID (or JIDs, comma-separated). */
+    private static final LruCache<String, CachedSession> sCryptoSessions =
+        new LruCache<String, CachedSession>(MAX_CRYPTO_SESSIONS);
+
     private static class DatabaseHelper extends SQLiteOpenHelper {
         private static final String CREATE_TABLE_USERS = "(" +
             "_id INTEGER PRIMARY KEY," +
@@ -100,12 +127,33 @@ public class UsersProvider extends ContentProvider {
         private static final String SCHEMA_USERS_OFFLINE =
             "CREATE TABLE " + TABLE_USERS_OFFLINE + CREATE_TABLE_USERS;
 
+        private static final String SCHEMA_USERS_JID_IDX =
+            "CREATE INDEX IF NOT EXISTS jid_user ON " + TABLE_USERS + " (jid)";
+
+        private static final String SCHEMA_USERS_OFFLINE_JID_IDX =
+            "CREATE INDEX IF NOT EXISTS jid_user_offline ON " + TABLE_USERS_OFFLINE + " (jid)";
+
         // any upgrade - just replace the table
         private static final String[] SCHEMA_UPGRADE = {
             "DROP TABLE IF EXISTS " + TABLE_USERS,
             SCHEMA_USERS,
+            SCHEMA_USERS_JID_IDX,
             "DROP TABLE IF EXISTS " + TABLE_USERS_OFFLINE,
             SCHEMA_USERS_OFFLINE,
+            SCHEMA_USERS_OFFLINE_JID_IDX,
+        };
+
+        // version 7 to 8: just add the jid indexes
+        private static final String[] SCHEMA_UPGRADE_V7 = {
+            SCHEMA_USERS_JID_IDX,
+            SCHEMA_USERS_OFFLINE_JID_IDX,
+        };
+
+        /** Queries that must use an index (checked in debug builds). */
+        private static final String[][] INDEXED_QUERIES = {
+            { "users (jid)", "SELECT * FROM " + TABLE_USERS + " WHERE jid = ?" },
+            { "users_offline (jid)", "SELECT * FROM " + TABLE_USERS_OFFLINE + " WHERE jid = ?" },
+            { "presence", SQL_UPDATE_PRESENCE },
         };
 
         private Context mContext;
@@ -123,14 +171,20 @@ public class UsersProvider extends ContentProvider {
         @Override
         public void onCreate(SQLiteDatabase db) {
             db.execSQL(SCHEMA_USERS);
+            db.execSQL(SCHEMA_USERS_JID_IDX);
             db.execSQL(SCHEMA_USERS_OFFLINE);
+            db.execSQL(SCHEMA_USERS_OFFLINE_JID_IDX);
             mNew = true;
         }
 
         /** TODO simplify upgrade process based on org.kontalk database schema */
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-            if (oldVersion != newVersion) {
+            if (oldVersion == 7) {
+                for (String sql : SCHEMA_UPGRADE_V7)
+                    db.execSQL(sql);
+            }
+            else if (oldVersion != newVersion) {
                 for (String sql : SCHEMA_UPGRADE)
                     db.execSQL(sql);
                 mNew = true;
@@ -139,6 +193,9 @@ public class UsersProvider extends ContentProvider {
 
         @Override
         public void onOpen(SQLiteDatabase db) {
+            if (BuildConfig.DEBUG)
+                QueryPlanChecker.check(db, INDEXED_QUERIES);
+
             String path = mContext.getDatabasePath(DATABASE_NAME).getPath();
             dbReader = SQLiteDatabase.openDatabase(path, null, 0);
         }
@@ -296,6 +353,12 @@ public class UsersProvider extends ContentProvider {
         boolean offline = Boolean.parseBoolean(uri.getQueryParameter(Users.OFFLINE));
 
         int rc = db.update(offline ? TABLE_USERS_OFFLINE : TABLE_USERS, values, selection, selectionArgs);
+
+        // cached key is discarded after the update so it can't be read again
+        if (!offline && isKeyChange(values))
+            // any other selection discards all keys
+            invalidateKey(getSelectedJid(selection, selectionArgs), values);
+
         if (rc == 0) {
             // insert new record
             values.put(Users.HASH, XmppStringUtils.parseLocalpart(selectionArgs[0]));
@@ -311,6 +374,84 @@ public class UsersProvider extends ContentProvider {
         return rc;
     }
 
+    /** Returns the JID if the selection matches a single user by JID, null otherwise. */
+    private static String getSelectedJid(String selection, String[] selectionArgs) {
+        if (selection != null && selectionArgs != null && selectionArgs.length == 1 &&
+                SELECTION_JID.matcher(selection).matches())
+            return selectionArgs[0];
+        return null;
+    }
+
+    private static boolean isKeyChange(ContentValues values) {
+        return values.containsKey(Users.PUBLIC_KEY) || values.containsKey(Users.FINGERPRINT);
+    }
+
+    /**
+     * Discards the cached public key of a user (all keys if null). If only
+     * the fingerprint is being updated, the key is discarded only if the
+     * fingerprint has changed.
+     */
+    private static void invalidateKey(String jid, ContentValues values) {
+        if (jid == null)
+            sKeyCache.invalidate();
+        else if (values.containsKey(Users.PUBLIC_KEY))
+            sKeyCache.invalidate(jid);
+        else
+            sKeyCache.invalidate(jid, values.getAsString(Users.FINGERPRINT));
+    }
+
+    /**
+     * Updates presence data of users with a compiled statement, in a single
+     * transaction.
+     * @return the presences of users not found in the database
+     */
+    @TargetApi(11)
+    private synchronized List<ContentValues> updatePresences(Collection<ContentValues> presences) {
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        if (mUpdatePresence == null)
+            mUpdatePresence = db.compileStatement(SQL_UPDATE_PRESENCE);
+
+        List<ContentValues> notFound = new ArrayList<ContentValues>();
+
+        beginTransaction(db);
+        boolean success = false;
+        try {
+            for (ContentValues values : presences) {
+                String jid = values.getAsString(Users.JID);
+                String status = values.getAsString(Users.STATUS);
+                String fingerprint = values.getAsString(Users.FINGERPRINT);
+
+                mUpdatePresence.clearBindings();
+                if (status != null)
+                    mUpdatePresence.bindString(1, status);
+                else
+                    mUpdatePresence.bindNull(1);
+                mUpdatePresence.bindLong(2, values.getAsLong(Users.LAST_SEEN));
+                if (fingerprint != null)
+                    mUpdatePresence.bindString(3, fingerprint);
+                else
+                    mUpdatePresence.bindNull(3);
+                mUpdatePresence.bindString(4, jid);
+
+                if (mUpdatePresence.executeUpdateDelete() == 0)
+                    notFound.add(values);
+            }
+
+            success = setTransactionSuccessful(db);
+        }
+        finally {
+            endTransaction(db, success);
+        }
+
+        for (ContentValues values : presences) {
+            String fingerprint = values.getAsString(Users.FINGERPRINT);
+            if (fingerprint != null)
+                sKeyCache.invalidate(values.getAsString(Users.JID), fingerprint);
+        }
+
+        return notFound;
+    }
+
     /** Triggers a complete resync of the users database. */
     private int resync(boolean commit) {
         Context context = getContext();
@@ -327,7 +468,8 @@ public class UsersProvider extends ContentProvider {
                 db.execSQL("DELETE FROM " + TABLE_USERS);
                 db.execSQL("INSERT INTO " + TABLE_USERS + " SELECT * FROM " + TABLE_USERS_OFFLINE);
                 // time to invalidate contacts cache
-                Contact.invalidate();
+                Contact.invalidate(context);
+                sKeyCache.invalidate();
                 success = setTransactionSuccessful(db);
             }
             catch (SQLException e) {
@@ -350,6 +492,7 @@ public class UsersProvider extends ContentProvider {
             catch (SQLException e) {
                 // table might not exist - create it! (shouldn't happen since version 4)
                 db.execSQL(DatabaseHelper.SCHEMA_USERS_OFFLINE);
+                db.execSQL(DatabaseHelper.SCHEMA_USERS_OFFLINE_JID_IDX);
             }
 
             // we are trying to be fast here
@@ -576,6 +719,9 @@ public class UsersProvider extends ContentProvider {
             }
         }
 
+        if (!offline && isKeyChange(values))
+            invalidateKey(values.getAsString(Users.JID), values);
+
         if (id >= 0)
             return ContentUris.withAppendedId(Users.CONTENT_URI, id);
         return null;
@@ -612,17 +758,87 @@ public class UsersProvider extends ContentProvider {
             keys[i] = ring;
         }
 
-        return new PGPCoder(server, key, keys);
+        return new PGPCoder(getCryptoSession(TextUtils.join(",", recipients),
+            server, key, keys));
     }
 
     /** Returns a {@link Coder} instance for decrypting data. */
     public static Coder getDecryptCoder(Context context, EndpointServer server, PersonalKey key, String sender) {
         PGPPublicKeyRing senderKey = getPublicKey(context, sender);
-        return new PGPCoder(server, key, senderKey);
+        if (senderKey == null)
+            return new PGPCoder(createCryptoSession(server, key));
+
+        return new PGPCoder(getCryptoSession(sender, server, key, senderKey));
+    }
+
+    /**
+     * Returns the crypto session for the given peers, creating a new one
+     * if keys have changed since the last time.
+     */
+    private static CryptoSession getCryptoSession(String peers, EndpointServer server,
+            PersonalKey key, PGPPublicKeyRing... keys) {
+        CachedSession cached = sCryptoSessions.get(peers);
+        if (cached == null || !cached.isValid(server, key, keys)) {
+            cached = new CachedSession(server, key, keys);
+            sCryptoSessions.put(peers, cached);
+        }
+        return cached.session;
+    }
+
+    /** Creates a crypto session with the encryption keys of the given peers. */
+    private static CryptoSession createCryptoSession(EndpointServer server,
+            PersonalKey key, PGPPublicKeyRing... peers) {
+        String network = server.getNetwork();
+
+        PGPPublicKey[] peerKeys = new PGPPublicKey[peers.length];
+        String[] peerUserIds = new String[peers.length];
+        for (int i = 0; i < peers.length; i++) {
+            peerKeys[i] = PGP.getEncryptionKey(peers[i]);
+            peerUserIds[i] = PGP.getUserId(PGP.getMasterKey(peers[i]), network);
+        }
+
+        return new CryptoSession(key.getEncryptKeyPair(),
+            key.getUserId(network), peerKeys, peerUserIds);
+    }
+
+    /** A crypto session and the keys it was created for. */
+    private static final class CachedSession {
+        final CryptoSession session;
+
+        private final String mNetwork;
+        private final PersonalKey mKey;
+        private final PGPPublicKeyRing[] mPeers;
+
+        CachedSession(EndpointServer server, PersonalKey key, PGPPublicKeyRing... peers) {
+            session = createCryptoSession(server, key, peers);
+            mNetwork = server.getNetwork();
+            mKey = key;
+            mPeers = peers;
+        }
+
+        /** Returns true if the session was created for the given keys. */
+        boolean isValid(EndpointServer server, PersonalKey key, PGPPublicKeyRing... peers) {
+            if (mKey != key || !mNetwork.equals(server.getNetwork()) ||
+                    mPeers.length != peers.length)
+                return false;
+
+            // keyrings are cached, a different instance means a different key
+            for (int i = 0; i < peers.length; i++) {
+                if (mPeers[i] != peers[i])
+                    return false;
+            }
+
+            return true;
+        }
     }
 
     /** Retrieves the public key for a user. */
     public static PGPPublicKeyRing getPublicKey(Context context, String jid) {
+        PGPPublicKeyRing ring = sKeyCache.get(jid);
+        if (ring != null)
+            return ring;
+
+        int generation = sKeyCache.getGeneration();
         byte[] keydata = null;
         ContentResolver res = context.getContentResolver();
         Cursor c = res.query(Users.CONTENT_URI,
@@ -637,7 +853,10 @@ public class UsersProvider extends ContentProvider {
         c.close();
 
         try {
-            return PGP.readPublicKeyring(keydata);
+            ring = PGP.readPublicKeyring(keydata);
+            if (ring != null)
+                sKeyCache.put(jid, ring, generation);
+            return ring;
         }
         catch (Exception e) {
             // ignored
@@ -646,6 +865,16 @@ public class UsersProvider extends ContentProvider {
         return null;
     }
 
+    /** Returns the number of public key lookups served from the cache. */
+    public static int getKeyCacheHits() {
+        return sKeyCache.getHitCount();
+    }
+
+    /** Returns the number of public key lookups that had to be parsed. */
+    public static int getKeyCacheMisses() {
+        return sKeyCache.getMissCount();
+    }
+
     /** Retrieves the last seen timestamp for a user. */
     public static long getLastSeen(Context context, String jid) {
         long timestamp = -1;
@@ -664,7 +893,54 @@ public class UsersProvider extends ContentProvider {
         return timestamp;
     }
 
-    /** Updates a user public key. */
+    /**
+     * Updates presence data of users: status, last seen timestamp and public
+     * key fingerprint. When running in the provider process, all users are
+     * updated in a single transaction with a compiled statement instead of
+     * going through the content resolver.
+     * @param presences values with {@link Users#JID}, {@link Users#STATUS},
+     * {@link Users#LAST_SEEN} and optionally {@link Users#FINGERPRINT}
+     */
+    public static void updatePresences(Context context, Collection<ContentValues> presences) {
+        UsersProvider provider = (android.os.Build.VERSION.SDK_INT >= 11) ?
+            getLocalProvider(context) : null;
+
+        // users not found will be handled by the standard update
+        if (provider != null)
+            presences = provider.updatePresences(presences);
+
+        ContentResolver cr = context.getContentResolver();
+        for (ContentValues presence : presences) {
+            ContentValues values = new ContentValues(presence);
+            String jid = values.getAsString(Users.JID);
+            values.remove(Users.JID);
+            values.put(Users.REGISTERED, 1);
+            if (!values.containsKey(Users.STATUS))
+                values.putNull(Users.STATUS);
+
+            cr.update(Users.CONTENT_URI, values, Users.JID + " = ?", new String[] { jid });
+        }
+    }
+
+    /** Returns the provider instance if it's running in this process. */
+    @TargetApi(11)
+    private static UsersProvider getLocalProvider(Context context) {
+        ContentProviderClient client = context.getContentResolver()
+            .acquireContentProviderClient(AUTHORITY);
+        if (client != null) {
+            try {
+                ContentProvider provider = client.getLocalContentProvider();
+                if (provider instanceof UsersProvider)
+                    return (UsersProvider) provider;
+            }
+            finally {
+                client.release();
+            }
+        }
+        return null;
+    }
+
+    /** Updates a user public key (the cached key will be discarded). */
     public static void setUserKey(Context context, String jid, byte[] keydata, String fingerprint) {
         ContentValues values = new ContentValues(2);
         values.put(Users.PUBLIC_KEY, keydata);
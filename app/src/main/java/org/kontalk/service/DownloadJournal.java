@@ -0,0 +1,163 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+
+/**
+ * Persistent journal of interrupted downloads. An entry is written when a
+ * resumable download starts and removed when it completes or fails for
+ * good, so that partial downloads can be resumed after a restart.
+ * @author Daniele Ricci
+ */
+public final class DownloadJournal {
+    private static final String TAG = DownloadJournal.class.getSimpleName();
+
+    private static final String PREFERENCES_NAME = "download_journal";
+
+    private static final String KEY_MESSAGE_ID = "msgId";
+    private static final String KEY_PEER = "peer";
+    private static final String KEY_ENCRYPTED = "encrypted";
+    private static final String KEY_DESTINATION = "destination";
+    private static final String KEY_PARTIAL = "partial";
+    private static final String KEY_LENGTH = "length";
+    private static final String KEY_VALIDATOR = "validator";
+
+    /** A download in the journal. */
+    public static final class Entry {
+        public final String url;
+        public final long messageId;
+        public final String peer;
+        public final boolean encrypted;
+
+        /** The downloaded file. */
+        public String destination;
+        /** The file with the data received so far, null if not resumable. */
+        public String partial;
+        /** Bytes written to the partial file when the entry was last saved. */
+        public long length;
+        /**
+         * Entity tag or last modification date of the content, used for
+         * checking that the content didn't change when resuming.
+         */
+        public String validator;
+
+        public Entry(String url, long messageId, String peer, boolean encrypted) {
+            this.url = url;
+            this.messageId = messageId;
+            this.peer = peer;
+            this.encrypted = encrypted;
+        }
+    }
+
+    private DownloadJournal() {
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /** Returns the journal entry for the given URL, null if not found. */
+    public static Entry get(Context context, String url) {
+        String data = getPreferences(context).getString(url, null);
+        return (data != null) ? parse(url, data) : null;
+    }
+
+    /** Returns all downloads in the journal. */
+    public static List<Entry> getAll(Context context) {
+        Map<String, ?> all = getPreferences(context).getAll();
+        List<Entry> list = new ArrayList<Entry>(all.size());
+        for (Map.Entry<String, ?> e : all.entrySet()) {
+            Entry entry = parse(e.getKey(), (String) e.getValue());
+            if (entry != null)
+                list.add(entry);
+        }
+        return list;
+    }
+
+    /** Adds or updates a download in the journal. */
+    public static void put(Context context, Entry entry) {
+        try {
+            JSONObject data = new JSONObject();
+            data.put(KEY_MESSAGE_ID, entry.messageId);
+            data.put(KEY_PEER, entry.peer);
+            data.put(KEY_ENCRYPTED, entry.encrypted);
+            data.put(KEY_DESTINATION, entry.destination);
+            data.put(KEY_PARTIAL, entry.partial);
+            data.put(KEY_LENGTH, entry.length);
+            data.put(KEY_VALIDATOR, entry.validator);
+
+            getPreferences(context).edit()
+                .putString(entry.url, data.toString())
+                .commit();
+        }
+        catch (JSONException e) {
+            // shouldn't happen
+            Log.w(TAG, "unable to store journal entry", e);
+        }
+    }
+
+    /** Removes a download from the journal. */
+    public static void remove(Context context, String url) {
+        getPreferences(context).edit()
+            .remove(url)
+            .commit();
+    }
+
+    /** Removes a download from the journal and deletes its partial data. */
+    public static void discard(Context context, String url) {
+        Entry entry = get(context, url);
+        if (entry != null) {
+            if (entry.partial != null)
+                new File(entry.partial).delete();
+            remove(context, url);
+        }
+    }
+
+    private static Entry parse(String url, String data) {
+        try {
+            JSONObject obj = new JSONObject(data);
+            Entry entry = new Entry(url,
+                obj.getLong(KEY_MESSAGE_ID),
+                obj.optString(KEY_PEER, null),
+                obj.getBoolean(KEY_ENCRYPTED));
+            entry.destination = obj.optString(KEY_DESTINATION, null);
+            entry.partial = obj.optString(KEY_PARTIAL, null);
+            entry.length = obj.optLong(KEY_LENGTH);
+            entry.validator = obj.optString(KEY_VALIDATOR, null);
+            return entry;
+        }
+        catch (JSONException e) {
+            Log.w(TAG, "invalid journal entry for " + url, e);
+            return null;
+        }
+    }
+
+}
@@ -24,26 +24,21 @@ package org.kontalk.service;
  */
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.security.PrivateKey;
 import java.util.LinkedHashMap;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Map;
 
-import android.app.IntentService;
 import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
+import android.app.Service;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.IBinder;
 import android.support.v4.app.NotificationCompat;
 import android.util.Log;
 
@@ -73,36 +68,237 @@ import static org.kontalk.ui.MessagingNotification.NOTIFICATION_UPDATE_DELAY;
 
 /**
  * The attachment download service.
- * TODO implement multiple downloads in queue or in parallel
+ * Downloads are run concurrently by the {@link TransferScheduler}.
  * @author Daniele Ricci
  */
-public class DownloadService extends IntentService implements DownloadListener {
+public class DownloadService extends Service {
     private static final String TAG = MessageCenterService.TAG;
 
-    /** A map to avoid duplicate downloads. */
-    private static final Map<String, Long> sQueue = new LinkedHashMap<String, Long>();
+    /** Queued and running downloads, also to avoid duplicate downloads. */
+    private static final Map<String, Download> sQueue = new LinkedHashMap<String, Download>();
 
     public static final String ACTION_DOWNLOAD_URL = "org.kontalk.action.DOWNLOAD_URL";
     public static final String ACTION_DOWNLOAD_ABORT = "org.kontalk.action.DOWNLOAD_ABORT";
 
+    /** Download priority, see {@link TransferScheduler}. Use with ACTION_DOWNLOAD_URL. */
+    public static final String EXTRA_PRIORITY = "org.kontalk.download.priority";
+    /** Set when resuming a download from the journal. */
+    private static final String EXTRA_RESUME = "org.kontalk.download.resume";
+
     private ProgressNotificationBuilder mNotificationBuilder;
     private NotificationManager mNotificationManager;
 
-    // data about the download currently being processed
     private Notification mCurrentNotification;
-    private long mTotalBytes;
     /** Step timer for notification updates. */
     private StepTimer mUpdateTimer = new StepTimer(NOTIFICATION_UPDATE_DELAY);
 
-    private long mMessageId;
-    private String mPeer;
-    private boolean mEncrypted;
+    /** Last start ID, for stopping the service when idle. */
+    private int mLastStartId;
+
+    /** A single download. */
+    private final class Download extends TransferScheduler.Transfer implements DownloadListener {
+        final String url;
+        final long messageId;
+        final String peer;
+        final boolean encrypted;
+        final boolean resume;
+
+        /** Coder for decrypting the download, null if not encrypted. */
+        Coder decoder;
+        /** Journal entry of the download. */
+        DownloadJournal.Entry journal;
+
+        volatile ClientHTTPConnection client;
+        volatile boolean canceled;
+
+        boolean started;
+        long totalBytes;
+        long bytes;
+
+        Download(String url, Bundle args) {
+            super(args.getInt(EXTRA_PRIORITY, TransferScheduler.PRIORITY_NORMAL));
+            this.url = url;
+            this.messageId = args.getLong(CompositeMessage.MSG_ID, 0);
+            this.peer = args.getString(CompositeMessage.MSG_SENDER);
+            this.encrypted = args.getBoolean(CompositeMessage.MSG_ENCRYPTED, false);
+            this.resume = args.getBoolean(EXTRA_RESUME, false);
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (canceled)
+                    return;
+
+                // resumed download might have been completed in the meantime
+                journal = DownloadJournal.get(DownloadService.this, url);
+                if (resume && journal == null)
+                    return;
+
+                // notify user about download immediately
+                start(url, null, 0);
+
+                PersonalKey key;
+                PrivateKey privateKey;
+                try {
+                    key = ((Kontalk) getApplication()).getPersonalKey();
+                    privateKey = key.getBridgePrivateKey();
+                }
+                catch (Exception e) {
+                    // TODO i18n :)
+                    errorNotification("ERROR", "NAUGHTY BOY/GIRL!");
+                    return;
+                }
+
+                client = new ClientHTTPConnection(DownloadService.this,
+                    privateKey, key.getBridgeCertificate());
+
+                // check if external storage is available
+                if (!MediaStorage.isExternalStorageAvailable()) {
+                    errorNotification(getString(R.string.notify_ticker_external_storage),
+                        getString(R.string.notify_text_external_storage));
+                    return;
+                }
+
+                // make sure storage directory is present
+                MediaStorage.MEDIA_ROOT.mkdirs();
+
+                // resume an interrupted download if possible
+                if (journal == null)
+                    journal = new DownloadJournal.Entry(url, messageId, peer, encrypted);
+
+                // encrypted file will be decrypted while downloading
+                if (encrypted) {
+                    EndpointServer server = Preferences.getEndpointServer(DownloadService.this);
+                    decoder = UsersProvider.getDecryptCoder(DownloadService.this, server, key, peer);
+                }
+
+                // download content
+                if (!canceled)
+                    client.downloadAutofilename(url, MediaStorage.MEDIA_ROOT,
+                        decoder, journal, this);
+            }
+            catch (Exception e) {
+                error(url, null, e);
+            }
+            finally {
+                finished(this);
+            }
+        }
+
+        void abort() {
+            canceled = true;
+            ClientHTTPConnection conn = client;
+            if (conn != null)
+                conn.abort();
+        }
+
+        @Override
+        public void start(String url, File destination, long length) {
+            synchronized (DownloadService.this) {
+                started = true;
+                totalBytes = length;
+                bytes = 0;
+                mUpdateTimer.reset();
+                updateForeground(true);
+            }
+
+            // keep track of the download for resuming it later
+            if (destination != null) {
+                if (journal.partial != null)
+                    DownloadJournal.put(DownloadService.this, journal);
+                else
+                    DownloadJournal.remove(DownloadService.this, url);
+            }
+        }
+
+        @Override
+        public void progress(String url, File destination, long bytes) {
+            synchronized (DownloadService.this) {
+                this.bytes = bytes;
+                if (mCurrentNotification != null && (bytes >= totalBytes || mUpdateTimer.isStep()))
+                    updateForeground(false);
+            }
+        }
 
-    private ClientHTTPConnection mDownloadClient;
-    private boolean mCanceled;
+        @Override
+        public void completed(String url, String mime, File destination) {
+            DownloadJournal.remove(DownloadService.this, url);
 
-    public DownloadService() {
-        super(DownloadService.class.getSimpleName());
+            Uri uri = Uri.fromFile(destination);
+
+            ContentValues values = null;
+
+            // file has been decrypted while downloading
+            if (decoder != null) {
+                values = new ContentValues(3);
+                values.put(Messages.ATTACHMENT_ENCRYPTED, false);
+                values.put(Messages.ATTACHMENT_LENGTH, destination.length());
+            }
+
+            // update messages.localUri
+            if (values == null)
+                values = new ContentValues(1);
+            values.put(Messages.ATTACHMENT_LOCAL_URI, uri.toString());
+            getContentResolver().update(ContentUris
+                .withAppendedId(Messages.CONTENT_URI, messageId), values, null, null);
+
+            // notify only if conversation is not open
+            if (!peer.equals(MessagingNotification.getPaused())) {
+
+                // detect mime type if not available
+                if (mime == null)
+                    mime = getContentResolver().getType(uri);
+
+                // create intent for download complete notification
+                Intent i = new Intent(Intent.ACTION_VIEW);
+                i.setDataAndType(uri, mime);
+                i.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+                PendingIntent pi = PendingIntent.getActivity(getApplicationContext(),
+                    NOTIFICATION_ID_DOWNLOAD_OK, i, 0);
+
+                // create notification
+                NotificationCompat.Builder builder = new NotificationCompat.Builder(getApplicationContext())
+                    .setSmallIcon(R.drawable.stat_notify)
+                    .setContentTitle(getString(R.string.notify_title_download_completed))
+                    .setContentText(getString(R.string.notify_text_download_completed))
+                    .setTicker(getString(R.string.notify_ticker_download_completed))
+                    .setContentIntent(pi)
+                    .setAutoCancel(true);
+
+                // notify!!
+                mNotificationManager.notify(NOTIFICATION_ID_DOWNLOAD_OK, builder.build());
+            }
+        }
+
+        @Override
+        public void error(String url, File destination, Throwable exc) {
+            Log.e(TAG, "download error", exc);
+
+            if (canceled || exc instanceof DecryptException) {
+                DownloadJournal.discard(DownloadService.this, url);
+            }
+            else if (journal != null && journal.partial != null) {
+                // partial data is kept for resuming
+                journal.length = new File(journal.partial).length();
+                DownloadJournal.put(DownloadService.this, journal);
+            }
+
+            if (!canceled) {
+                if (exc instanceof DecryptException)
+                    errorNotification(getString(R.string.notify_ticker_download_error),
+                        // TODO i18n
+                        "Decryption failed.");
+                else
+                    errorNotification(getString(R.string.notify_ticker_download_error),
+                        getString(R.string.notify_text_download_error));
+            }
+        }
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
     }
 
     @Override
@@ -110,7 +306,17 @@ public class DownloadService extends IntentService implements DownloadListener {
         if (mNotificationManager == null)
             mNotificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
 
-        if (ACTION_DOWNLOAD_ABORT.equals(intent.getAction())) {
+        synchronized (sQueue) {
+            mLastStartId = startId;
+        }
+
+        String action = (intent != null) ? intent.getAction() : null;
+
+        if (ACTION_DOWNLOAD_URL.equals(action)) {
+            onDownloadURL(intent.getData(), intent.getExtras());
+        }
+
+        else if (ACTION_DOWNLOAD_ABORT.equals(action)) {
             final Uri uri = intent.getData();
             new Thread(new Runnable() {
                 @Override
@@ -120,92 +326,111 @@ public class DownloadService extends IntentService implements DownloadListener {
             }).start();
         }
 
-        return super.onStartCommand(intent, flags, startId);
-    }
-
-    @Override
-    protected void onHandleIntent(Intent intent) {
-        String action = intent.getAction();
-
-        if (ACTION_DOWNLOAD_URL.equals(action)) {
-            onDownloadURL(intent.getData(), intent.getExtras());
-        }
+        stopIfIdle();
+        return START_NOT_STICKY;
     }
 
     private void onDownloadURL(Uri uri, Bundle args) {
         String url = uri.toString();
+        Download download;
 
-        // check if download has already been queued
-        if (sQueue.get(url) != null) return;
+        synchronized (sQueue) {
+            // check if download has already been queued
+            if (sQueue.get(url) != null) return;
 
-        // notify user about download immediately
-        startForeground(0);
-        mCanceled = false;
+            download = new Download(url, args);
+            sQueue.put(url, download);
+        }
 
-        if (mDownloadClient == null) {
-            PersonalKey key;
-            PrivateKey privateKey;
-            try {
-                key = ((Kontalk) getApplication()).getPersonalKey();
-                privateKey = key.getBridgePrivateKey();
-            }
-            catch (Exception e) {
-                // TODO i18n :)
-                errorNotification("ERROR", "NAUGHTY BOY/GIRL!");
-                return;
-            }
+        TransferScheduler.getInstance(this).schedule(download);
+    }
 
-            mDownloadClient = new ClientHTTPConnection(this,
-                privateKey, key.getBridgeCertificate());
+    private void onDownloadAbort(Uri uri) {
+        String url = uri.toString();
+        Download download;
+        synchronized (sQueue) {
+            download = sQueue.get(url);
         }
 
-        try {
-            // check if external storage is available
-            if (!MediaStorage.isExternalStorageAvailable()) {
-                errorNotification(getString(R.string.notify_ticker_external_storage),
-                    getString(R.string.notify_text_external_storage));
-                return;
-            }
-
-            // make sure storage directory is present
-            MediaStorage.MEDIA_ROOT.mkdirs();
+        if (download != null) {
+            // remove from queue - will never be processed
+            if (TransferScheduler.getInstance(this).cancel(download))
+                finished(download);
+            // interrupt worker if running
+            else
+                download.abort();
+        }
 
-            mMessageId = args.getLong(CompositeMessage.MSG_ID, 0);
-            mPeer = args.getString(CompositeMessage.MSG_SENDER);
-            mEncrypted = args.getBoolean(CompositeMessage.MSG_ENCRYPTED, false);
-            sQueue.put(url, mMessageId);
+        DownloadJournal.discard(this, url);
+    }
 
-            // download content
-            mDownloadClient.downloadAutofilename(url, MediaStorage.MEDIA_ROOT, this);
+    /** Called when a download has been completed, failed or removed from the queue. */
+    private void finished(Download download) {
+        synchronized (sQueue) {
+            sQueue.remove(download.url);
         }
-        catch (Exception e) {
-            error(url, null, e);
+
+        synchronized (this) {
+            if (download.started)
+                updateForeground(true);
         }
-        finally {
-            sQueue.remove(url);
-            mMessageId = 0;
-            mPeer = null;
+
+        stopIfIdle();
+    }
+
+    private void stopIfIdle() {
+        synchronized (sQueue) {
+            if (sQueue.isEmpty())
+                stopSelf(mLastStartId);
         }
     }
 
-    private void onDownloadAbort(Uri uri) {
-        String url = uri.toString();
-        Long msgId = sQueue.get(url);
-        if (msgId != null) {
-            // interrupt worker if running
-            if (msgId == mMessageId) {
-                mDownloadClient.abort();
-                mCanceled = true;
+    /**
+     * Updates the progress notification with the overall progress of running
+     * downloads. Must be called while holding the service lock.
+     * @param start true to start foreground if needed
+     */
+    private void updateForeground(boolean start) {
+        long total = 0;
+        long bytes = 0;
+        boolean running = false;
+        boolean indeterminate = false;
+
+        synchronized (sQueue) {
+            for (Download d : sQueue.values()) {
+                if (d.started) {
+                    running = true;
+                    if (d.totalBytes > 0) {
+                        total += d.totalBytes;
+                        bytes += d.bytes;
+                    }
+                    else {
+                        indeterminate = true;
+                    }
+                }
             }
-            // remove from queue - will never be processed
-            else
-                sQueue.remove(url);
+        }
+
+        if (!running) {
+            stopForeground();
+            return;
+        }
+
+        // if we don't know the content length yet, start an interminate progress
+        int progress = (indeterminate || total <= 0) ? -1 : (int) ((100 * bytes) / total);
+
+        if (mCurrentNotification == null && start) {
+            startForeground(progress);
+        }
+        else if (mCurrentNotification != null) {
+            foregroundNotification(progress);
+            // send the updates to the notification manager
+            mNotificationManager.notify(NOTIFICATION_ID_DOWNLOADING, mCurrentNotification);
         }
     }
 
-    public void startForeground(long totalBytes) {
+    private void startForeground(int progress) {
         Log.d(TAG, "starting foreground progress notification");
-        mTotalBytes = totalBytes;
 
         Intent ni = new Intent(getApplicationContext(), ConversationList.class);
         // FIXME this intent should actually open the ComposeMessage activity
@@ -220,8 +445,7 @@ public class DownloadService extends IntentService implements DownloadListener {
                 pi);
         }
 
-        // if we don't know the content length yet, start an interminate progress
-        foregroundNotification(totalBytes > 0 ? 0 : -1);
+        foregroundNotification(progress);
         startForeground(NOTIFICATION_ID_DOWNLOADING, mCurrentNotification);
     }
 
@@ -233,128 +457,9 @@ public class DownloadService extends IntentService implements DownloadListener {
             .build();
     }
 
-    public void stopForeground() {
+    private void stopForeground() {
         stopForeground(true);
         mCurrentNotification = null;
-        mTotalBytes = 0;
-    }
-
-    @Override
-    public void start(String url, File destination, long length) {
-        mUpdateTimer.reset();
-        startForeground(length);
-    }
-
-    @Override
-    public void completed(String url, String mime, File destination) {
-        Uri uri = Uri.fromFile(destination);
-
-        ContentValues values = null;
-
-        // encrypted file?
-        if (mEncrypted) {
-            mCurrentNotification = mNotificationBuilder
-                .progress(-1,
-                    R.string.attachment_download,
-                    R.string.decrypting_attachment)
-                .build();
-            // send the updates to the notification manager
-            mNotificationManager.notify(NOTIFICATION_ID_DOWNLOADING, mCurrentNotification);
-
-            InputStream in = null;
-            OutputStream out = null;
-            try {
-                EndpointServer server = Preferences.getEndpointServer(this);
-                PersonalKey key = ((Kontalk) getApplicationContext()).getPersonalKey();
-                Coder coder = UsersProvider.getDecryptCoder(this, server, key, mPeer);
-                if (coder != null) {
-                    in = new FileInputStream(destination);
-
-                    File outFile = new File(destination + ".new");
-                    out = new FileOutputStream(outFile);
-                    List<DecryptException> errors = new LinkedList<DecryptException>();
-                    coder.decryptFile(in, true, out, errors);
-
-                    // TODO process errors
-
-                    // delete old file and rename the decrypted one
-                    destination.delete();
-                    outFile.renameTo(destination);
-
-                    // save this for later
-                    values = new ContentValues(3);
-                    values.put(Messages.ATTACHMENT_ENCRYPTED, false);
-                    values.put(Messages.ATTACHMENT_LENGTH, destination.length());
-                }
-            }
-            catch (Exception e) {
-                Log.e(TAG, "decryption failed!", e);
-                errorNotification(getString(R.string.notify_ticker_download_error),
-                    // TODO i18n
-                    "Decryption failed.");
-                return;
-            }
-            finally {
-                try {
-                    in.close();
-                }
-                catch (Exception e) {
-                    // ignored
-                }
-                try {
-                    out.close();
-                }
-                catch (Exception e) {
-                    // ignored
-                }
-            }
-        }
-
-        // update messages.localUri
-        if (values == null)
-            values = new ContentValues(1);
-        values.put(Messages.ATTACHMENT_LOCAL_URI, uri.toString());
-        getContentResolver().update(ContentUris
-            .withAppendedId(Messages.CONTENT_URI, mMessageId), values, null, null);
-
-        // stop foreground
-        stopForeground();
-
-        // notify only if conversation is not open
-        if (!mPeer.equals(MessagingNotification.getPaused())) {
-
-            // detect mime type if not available
-            if (mime == null)
-                mime = getContentResolver().getType(uri);
-
-            // create intent for download complete notification
-            Intent i = new Intent(Intent.ACTION_VIEW);
-            i.setDataAndType(uri, mime);
-            i.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-            PendingIntent pi = PendingIntent.getActivity(getApplicationContext(),
-                NOTIFICATION_ID_DOWNLOAD_OK, i, 0);
-
-            // create notification
-            NotificationCompat.Builder builder = new NotificationCompat.Builder(getApplicationContext())
-                .setSmallIcon(R.drawable.stat_notify)
-                .setContentTitle(getString(R.string.notify_title_download_completed))
-                .setContentText(getString(R.string.notify_text_download_completed))
-                .setTicker(getString(R.string.notify_ticker_download_completed))
-                .setContentIntent(pi)
-                .setAutoCancel(true);
-
-            // notify!!
-            mNotificationManager.notify(NOTIFICATION_ID_DOWNLOAD_OK, builder.build());
-        }
-    }
-
-    @Override
-    public void error(String url, File destination, Throwable exc) {
-        Log.e(TAG, "download error", exc);
-        stopForeground();
-        if (!mCanceled)
-            errorNotification(getString(R.string.notify_ticker_download_error),
-                getString(R.string.notify_text_download_error));
     }
 
     private void errorNotification(String ticker, String text) {
@@ -377,17 +482,28 @@ public class DownloadService extends IntentService implements DownloadListener {
         mNotificationManager.notify(NOTIFICATION_ID_DOWNLOAD_ERROR, builder.build());
     }
 
-    @Override
-    public void progress(String url, File destination, long bytes) {
-        if (mCurrentNotification != null && (bytes >= mTotalBytes || mUpdateTimer.isStep())) {
-            int progress = (int) ((100 * bytes) / mTotalBytes);
-            foregroundNotification(progress);
-            // send the updates to the notification manager
-            mNotificationManager.notify(NOTIFICATION_ID_DOWNLOADING, mCurrentNotification);
+    public static boolean isQueued(String url) {
+        synchronized (sQueue) {
+            return sQueue.containsKey(url);
         }
     }
 
-    public static boolean isQueued(String url) {
-        return sQueue.containsKey(url);
+    /** Resumes all interrupted downloads. */
+    public static void resume(Context context) {
+        for (DownloadJournal.Entry entry : DownloadJournal.getAll(context)) {
+            if (isQueued(entry.url))
+                continue;
+
+            Log.d(TAG, "resuming download of " + entry.url);
+            Intent i = new Intent(context, DownloadService.class);
+            i.setAction(ACTION_DOWNLOAD_URL);
+            i.setData(Uri.parse(entry.url));
+            i.putExtra(CompositeMessage.MSG_ID, entry.messageId);
+            i.putExtra(CompositeMessage.MSG_SENDER, entry.peer);
+            i.putExtra(CompositeMessage.MSG_ENCRYPTED, entry.encrypted);
+            i.putExtra(EXTRA_PRIORITY, TransferScheduler.PRIORITY_LOW);
+            i.putExtra(EXTRA_RESUME, true);
+            context.startService(i);
+        }
     }
 }
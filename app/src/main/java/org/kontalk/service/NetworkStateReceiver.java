@@ -72,6 +72,13 @@ public class NetworkStateReceiver extends BroadcastReceiver {
             if (info != null) {
                 Log.w(TAG, "network state changed!");
 
+                // adapt concurrent transfers to the new network
+                TransferScheduler.networkChanged();
+
+                // resume interrupted downloads
+                if (info.getState() == NetworkInfo.State.CONNECTED)
+                    DownloadService.resume(context);
+
                 if (info.getType() == ConnectivityManager.TYPE_MOBILE &&
                         !shouldReconnect(context)) {
                     Log.w(TAG, "throttling on mobile network");
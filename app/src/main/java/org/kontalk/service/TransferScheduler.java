@@ -0,0 +1,152 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.os.Build;
+import android.support.v4.net.ConnectivityManagerCompat;
+import android.util.Log;
+
+import org.kontalk.util.BackgroundThreadFactory;
+
+
+/**
+ * Runs attachment uploads and downloads in a shared pool of threads.
+ * Parallelism depends on the active network: more transfers are allowed on
+ * unmetered networks. Pending transfers are run by priority, then in the
+ * order they were scheduled.
+ * @author Daniele Ricci
+ */
+public class TransferScheduler {
+    private static final String TAG = TransferScheduler.class.getSimpleName();
+
+    /** Concurrent transfers on unmetered networks (e.g. Wi-Fi). */
+    private static final int MAX_TRANSFERS_UNMETERED = 3;
+    /** Concurrent transfers on metered networks (e.g. mobile). */
+    private static final int MAX_TRANSFERS_METERED = 1;
+
+    /** Idle threads will be stopped after this time. */
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    /** Transfers for messages the user is looking at. */
+    public static final int PRIORITY_HIGH = 1;
+    /** Default priority. */
+    public static final int PRIORITY_NORMAL = 0;
+    /** Background transfers (e.g. resumed downloads). */
+    public static final int PRIORITY_LOW = -1;
+
+    /** A transfer to be run by the scheduler. */
+    public static abstract class Transfer implements Runnable, Comparable<Transfer> {
+        private static final AtomicLong sSequence = new AtomicLong();
+
+        private final int mPriority;
+        private final long mSequence;
+
+        protected Transfer(int priority) {
+            mPriority = priority;
+            mSequence = sSequence.incrementAndGet();
+        }
+
+        public int getPriority() {
+            return mPriority;
+        }
+
+        @Override
+        public int compareTo(Transfer another) {
+            if (mPriority != another.mPriority)
+                return mPriority > another.mPriority ? -1 : 1;
+            return mSequence < another.mSequence ? -1 :
+                (mSequence == another.mSequence ? 0 : 1);
+        }
+    }
+
+    private static TransferScheduler sInstance;
+
+    private final Context mContext;
+    private final ThreadPoolExecutor mExecutor;
+
+    @TargetApi(Build.VERSION_CODES.GINGERBREAD)
+    private TransferScheduler(Context context) {
+        mContext = context.getApplicationContext();
+        mExecutor = new ThreadPoolExecutor(MAX_TRANSFERS_METERED, MAX_TRANSFERS_METERED,
+            KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(),
+            new BackgroundThreadFactory("Transfers"));
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD)
+            mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    public static synchronized TransferScheduler getInstance(Context context) {
+        if (sInstance == null)
+            sInstance = new TransferScheduler(context);
+        return sInstance;
+    }
+
+    /** Queues a transfer for execution. */
+    public void schedule(Transfer transfer) {
+        updateParallelism();
+        mExecutor.execute(transfer);
+    }
+
+    /**
+     * Removes a transfer from the queue.
+     * @return true if the transfer was removed, false if it's already running
+     */
+    public boolean cancel(Transfer transfer) {
+        return mExecutor.remove(transfer);
+    }
+
+    /** Adapts the number of concurrent transfers to the active network. */
+    public synchronized void updateParallelism() {
+        ConnectivityManager cm = (ConnectivityManager) mContext
+            .getSystemService(Context.CONNECTIVITY_SERVICE);
+        int max = ConnectivityManagerCompat.isActiveNetworkMetered(cm) ?
+            MAX_TRANSFERS_METERED : MAX_TRANSFERS_UNMETERED;
+
+        if (max != mExecutor.getMaximumPoolSize()) {
+            Log.v(TAG, "concurrent transfers: " + max);
+            // core size can't be larger than maximum size
+            if (max > mExecutor.getMaximumPoolSize()) {
+                mExecutor.setMaximumPoolSize(max);
+                mExecutor.setCorePoolSize(max);
+            }
+            else {
+                mExecutor.setCorePoolSize(max);
+                mExecutor.setMaximumPoolSize(max);
+            }
+        }
+    }
+
+    /** Updates parallelism if the scheduler has been created. */
+    public static void networkChanged() {
+        TransferScheduler instance;
+        synchronized (TransferScheduler.class) {
+            instance = sInstance;
+        }
+        if (instance != null)
+            instance.updateParallelism();
+    }
+
+}
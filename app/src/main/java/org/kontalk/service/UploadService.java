@@ -42,27 +42,28 @@ import org.kontalk.upload.UploadConnection;
 import org.kontalk.util.MediaStorage;
 import org.kontalk.util.StepTimer;
 
-import android.app.IntentService;
 import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
+import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
+import android.os.IBinder;
 import android.support.v4.app.NotificationCompat;
 import android.util.Log;
 
 
 /**
  * Attachment upload service.
- * TODO implement multiple concurrent uploads
+ * Uploads are run concurrently by the {@link TransferScheduler}.
  * @author Daniele Ricci
  */
-public class UploadService extends IntentService implements ProgressListener {
+public class UploadService extends Service {
     private static final String TAG = MessageCenterService.TAG;
 
-    /** A map to avoid duplicate uploads. */
-    private static final Map<String, Long> queue = new LinkedHashMap<String, Long>();
+    /** Queued and running uploads, also to avoid duplicate uploads. */
+    private static final Map<String, Upload> queue = new LinkedHashMap<String, Upload>();
 
     public static final String ACTION_UPLOAD = "org.kontalk.action.UPLOAD";
     public static final String ACTION_UPLOAD_ABORT = "org.kontalk.action.UPLOAD_ABORT";
@@ -83,24 +84,177 @@ public class UploadService extends IntentService implements ProgressListener {
     public static final String EXTRA_ENCRYPT = "org.kontalk.upload.ENCRYPT";
     /** Compression ratio. */
     public static final String EXTRA_COMPRESS = "org.kontalk.upload.COMPRESS";
+    /** Upload priority, see {@link TransferScheduler}. */
+    public static final String EXTRA_PRIORITY = "org.kontalk.upload.PRIORITY";
     // Intent data is the local file Uri
 
     private ProgressNotificationBuilder mNotificationBuilder;
     private NotificationManager mNotificationManager;
 
-    // data about the upload currently being processed
     private Notification mCurrentNotification;
-    private long mTotalBytes;
     /** Step timer for notification updates. */
     private StepTimer mUpdateTimer = new StepTimer(NOTIFICATION_UPDATE_DELAY);
 
-    private long mMessageId;
-    private UploadConnection mConn;
-    private boolean mCanceled;
-    private File mCompressed;
+    /** Last start ID, for stopping the service when idle. */
+    private int mLastStartId;
+
+    /** A single upload. */
+    private final class Upload extends TransferScheduler.Transfer implements ProgressListener {
+        final String filename;
+        Uri file;
+        final long databaseId;
+        final String msgId;
+        final String url;
+        final String to;
+        final String mime;
+        final String previewPath;
+        final boolean encrypt;
+        final int compress;
+
+        volatile UploadConnection conn;
+        volatile boolean canceled;
+        File compressed;
+
+        boolean started;
+        long totalBytes;
+        long bytes;
+
+        Upload(Intent intent) {
+            super(intent.getIntExtra(EXTRA_PRIORITY, TransferScheduler.PRIORITY_NORMAL));
+            // local file to upload
+            file = intent.getData();
+            filename = file.toString();
+            // message database id
+            databaseId = intent.getLongExtra(EXTRA_DATABASE_ID, 0);
+            // message id
+            msgId = intent.getStringExtra(EXTRA_MESSAGE_ID);
+            // url to post to
+            url = intent.getStringExtra(EXTRA_POST_URL);
+            // user to send message to
+            to = intent.getStringExtra(EXTRA_USER);
+            // media mime type
+            mime = intent.getStringExtra(EXTRA_MIME);
+            // preview file path
+            previewPath = intent.getStringExtra(EXTRA_PREVIEW_PATH);
+            // encryption flag
+            encrypt = intent.getBooleanExtra(EXTRA_ENCRYPT, false);
+            // compress ratio
+            compress = intent.getIntExtra(EXTRA_COMPRESS, 0);
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (canceled)
+                    return;
+
+                // notify user about upload immediately
+                long length = MediaStorage.getLength(UploadService.this, file);
+                Log.v(TAG, "file size is " + length + " bytes");
+
+                started(length);
+
+                // compress data if needed
+                if (compress > 0) {
+                    if (mime.startsWith("image/")) {
+                        try {
+                            compressed = MediaStorage
+                                .resizeImage(UploadService.this, file, databaseId, compress);
+                            length = compressed.length();
+                            started(length);
+                            file = Uri.fromFile(compressed);
+                        }
+                        catch (Exception e) {
+                            Log.w(TAG, "error compressing image", e);
+                            // what to do now? Should we warn the user or just go on?
+                            // or maybe just a Toast notification?
+                        }
+                    }
+                }
+
+                PersonalKey key = ((Kontalk) getApplication()).getPersonalKey();
+                // TODO used class here should be decided by the caller
+                conn = new KontalkBoxUploadConnection(UploadService.this, url,
+                    key.getBridgePrivateKey(), key.getBridgeCertificate());
+
+                // upload content
+                String mediaUrl = conn.upload(file, mime, encrypt, to, this);
+                Log.d(TAG, "uploaded with media URL: " + mediaUrl);
+
+                // update message fetch_url
+                MessagesProvider.uploaded(UploadService.this, databaseId, mediaUrl);
+
+                // send message with fetch url to server
+                MessageCenterService.sendUploadedMedia(UploadService.this, to, mime, file, length,
+                    previewPath, mediaUrl, encrypt, databaseId, msgId);
+
+                // upload completed - no need for notification
+
+                // TODO broadcast upload completed intent
+            }
+            catch (Exception e) {
+                error(e);
+            }
+            finally {
+                try {
+                    // delete compressed file (if any)
+                    compressed.delete();
+                }
+                catch (Exception e) {
+                    // ignored
+                }
+                compressed = null;
+                finished(this);
+            }
+        }
+
+        void abort() {
+            canceled = true;
+            UploadConnection c = conn;
+            if (c != null)
+                c.abort();
+        }
+
+        private void started(long length) {
+            synchronized (UploadService.this) {
+                started = true;
+                totalBytes = length;
+                updateForeground(true);
+            }
+        }
+
+        @Override
+        public void start(UploadConnection conn) {
+            synchronized (UploadService.this) {
+                mUpdateTimer.reset();
+            }
+        }
 
-    public UploadService() {
-        super(UploadService.class.getSimpleName());
+        @Override
+        public void progress(UploadConnection conn, long bytes) {
+            if (canceled || !MessagesProvider.exists(UploadService.this, databaseId)) {
+                Log.v(TAG, "upload canceled or message deleted - aborting");
+                abort();
+            }
+
+            synchronized (UploadService.this) {
+                this.bytes = bytes;
+                if (mCurrentNotification != null && (bytes >= totalBytes || mUpdateTimer.isStep()))
+                    updateForeground(false);
+            }
+        }
+
+        private void error(Throwable exc) {
+            Log.e(TAG, "upload error", exc);
+            if (!canceled)
+                errorNotification(getString(R.string.notify_ticker_upload_error),
+                    getString(R.string.notify_text_upload_error));
+        }
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
     }
 
     @Override
@@ -108,123 +262,108 @@ public class UploadService extends IntentService implements ProgressListener {
         if (mNotificationManager == null)
             mNotificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
 
-        if (ACTION_UPLOAD_ABORT.equals(intent.getAction())) {
+        synchronized (queue) {
+            mLastStartId = startId;
+        }
+
+        String action = (intent != null) ? intent.getAction() : null;
+
+        if (ACTION_UPLOAD.equals(action)) {
+            Upload upload = new Upload(intent);
+
+            boolean queued;
+            synchronized (queue) {
+                // check if upload has already been queued
+                queued = queue.containsKey(upload.filename);
+                if (!queued)
+                    queue.put(upload.filename, upload);
+            }
+
+            if (!queued)
+                TransferScheduler.getInstance(this).schedule(upload);
+        }
+
+        else if (ACTION_UPLOAD_ABORT.equals(action)) {
             String filename = intent.getData().toString();
-            // TODO check for race conditions on queue
-            Long msgId = queue.get(filename);
-            if (msgId != null) {
-                // interrupt worker if running
-                if (msgId.longValue() == mMessageId) {
-                    mConn.abort();
-                    mCanceled = true;
-                }
+            Upload upload;
+            synchronized (queue) {
+                upload = queue.get(filename);
+            }
+
+            if (upload != null) {
                 // remove from queue - will never be processed
+                if (TransferScheduler.getInstance(this).cancel(upload))
+                    finished(upload);
+                // interrupt worker if running
                 else
-                    queue.remove(filename);
+                    upload.abort();
             }
-            return START_NOT_STICKY;
         }
 
-        return super.onStartCommand(intent, flags, startId);
+        stopIfIdle();
+        return START_NOT_STICKY;
     }
 
-    @Override
-    protected void onHandleIntent(Intent intent) {
-        // check for unknown action
-        if (!ACTION_UPLOAD.equals(intent.getAction())) return;
-
-        // local file to upload
-        Uri file = intent.getData();
-        String filename = file.toString();
-        // message database id
-        long databaseId = intent.getLongExtra(EXTRA_DATABASE_ID, 0);
-        // message id
-        String msgId = intent.getStringExtra(EXTRA_MESSAGE_ID);
-        // url to post to
-        String url = intent.getStringExtra(EXTRA_POST_URL);
-        // user to send message to
-        String to = intent.getStringExtra(EXTRA_USER);
-        // media mime type
-        String mime = intent.getStringExtra(EXTRA_MIME);
-        // preview file path
-        String previewPath = intent.getStringExtra(EXTRA_PREVIEW_PATH);
-        // encryption flag
-        boolean encrypt = intent.getBooleanExtra(EXTRA_ENCRYPT, false);
-        // compress ratio
-        int compress = intent.getIntExtra(EXTRA_COMPRESS, 0);
-
-        // check if upload has already been queued
-        if (queue.get(filename) != null) return;
-
-        try {
-            // notify user about upload immediately
-            long length = MediaStorage.getLength(this, file);
-            Log.v(TAG, "file size is " + length + " bytes");
-
-            mTotalBytes = length;
-            startForeground(0);
-
-            mCanceled = false;
-
-            // compress data if needed
-            if (compress > 0) {
-                if (mime.startsWith("image/")) {
-                    try {
-                        mCompressed = MediaStorage
-                            .resizeImage(this, file, databaseId, compress);
-                        mTotalBytes = length = mCompressed.length();
-                        file = Uri.fromFile(mCompressed);
-                    }
-                    catch (Exception e) {
-                        Log.w(TAG, "error compressing image", e);
-                        // what to do now? Should we warn the user or just go on?
-                        // or maybe just a Toast notification?
-                    }
-                }
-            }
-
-            if (mConn == null) {
-                PersonalKey key = ((Kontalk) getApplication()).getPersonalKey();
-                // TODO used class here should be decided by the caller
-                mConn = new KontalkBoxUploadConnection(this, url,
-                    key.getBridgePrivateKey(), key.getBridgeCertificate());
-            }
+    /** Called when an upload has been completed, failed or removed from the queue. */
+    private void finished(Upload upload) {
+        synchronized (queue) {
+            queue.remove(upload.filename);
+        }
 
-            mMessageId = databaseId;
-            queue.put(filename, mMessageId);
+        synchronized (this) {
+            if (upload.started)
+                updateForeground(true);
+        }
 
-            // upload content
-            String mediaUrl = mConn.upload(file, mime, encrypt, to, this);
-            Log.d(TAG, "uploaded with media URL: " + mediaUrl);
+        stopIfIdle();
+    }
 
-            // update message fetch_url
-            MessagesProvider.uploaded(this, databaseId, mediaUrl);
+    private void stopIfIdle() {
+        synchronized (queue) {
+            if (queue.isEmpty())
+                stopSelf(mLastStartId);
+        }
+    }
 
-            // send message with fetch url to server
-            MessageCenterService.sendUploadedMedia(this, to, mime, file, length,
-                previewPath, mediaUrl, encrypt, databaseId, msgId);
+    /**
+     * Updates the progress notification with the overall progress of running
+     * uploads. Must be called while holding the service lock.
+     * @param start true to start foreground if needed
+     */
+    private void updateForeground(boolean start) {
+        long total = 0;
+        long bytes = 0;
+        boolean running = false;
+
+        synchronized (queue) {
+            for (Upload u : queue.values()) {
+                if (u.started) {
+                    running = true;
+                    total += u.totalBytes;
+                    bytes += u.bytes;
+                }
+            }
+        }
 
-            // end operations
-            completed();
+        if (!running) {
+            stopForeground();
+            return;
         }
-        catch (Exception e) {
-            error(url, null, e);
+
+        // if we don't know the content length yet, start an interminate progress
+        int progress = (total > 0) ? (int) ((100 * bytes) / total) : -1;
+
+        if (mCurrentNotification == null && start) {
+            startForeground(progress);
         }
-        finally {
-            queue.remove(filename);
-            mMessageId = 0;
-            try {
-                // delete compressed file (if any)
-                mCompressed.delete();
-            }
-            catch (Exception e) {
-                // ignored
-            }
-            mCompressed = null;
+        else if (mCurrentNotification != null) {
+            foregroundNotification(progress);
+            // send the updates to the notification manager
+            mNotificationManager.notify(NOTIFICATION_ID_UPLOADING, mCurrentNotification);
         }
     }
 
-    public void startForeground(long totalBytes) {
+    private void startForeground(int progress) {
         Log.d(TAG, "starting foreground progress notification");
 
         Intent ni = new Intent(getApplicationContext(), ConversationList.class);
@@ -241,8 +380,7 @@ public class UploadService extends IntentService implements ProgressListener {
                 pi);
         }
 
-        // if we don't know the content length yet, start an interminate progress
-        foregroundNotification(totalBytes > 0 ? 0 : -1);
+        foregroundNotification(progress);
         startForeground(NOTIFICATION_ID_UPLOADING, mCurrentNotification);
     }
 
@@ -254,32 +392,9 @@ public class UploadService extends IntentService implements ProgressListener {
             .build();
     }
 
-    public void stopForeground() {
+    private void stopForeground() {
         stopForeground(true);
         mCurrentNotification = null;
-        mTotalBytes = 0;
-    }
-
-    @Override
-    public void start(UploadConnection conn) {
-        mUpdateTimer.reset();
-        startForeground(mTotalBytes);
-    }
-
-    public void completed() {
-        stopForeground();
-
-        // upload completed - no need for notification
-
-        // TODO broadcast upload completed intent
-    }
-
-    public void error(String url, File destination, Throwable exc) {
-        Log.e(TAG, "upload error", exc);
-        stopForeground();
-        if (!mCanceled)
-            errorNotification(getString(R.string.notify_ticker_upload_error),
-                getString(R.string.notify_text_upload_error));
     }
 
     private void errorNotification(String ticker, String text) {
@@ -303,23 +418,9 @@ public class UploadService extends IntentService implements ProgressListener {
         mNotificationManager.notify(NOTIFICATION_ID_UPLOAD_ERROR, builder.build());
     }
 
-    @Override
-    public void progress(UploadConnection conn, long bytes) {
-        if (mCanceled || !MessagesProvider.exists(this, mMessageId)) {
-            Log.v(TAG, "upload canceled or message deleted - aborting");
-            mConn.abort();
-            mCanceled = true;
-        }
-
-        if (mCurrentNotification != null && (bytes >= mTotalBytes || mUpdateTimer.isStep())) {
-            int progress = (int)((100 * bytes) / mTotalBytes);
-            foregroundNotification(progress);
-            // send the updates to the notification manager
-            mNotificationManager.notify(NOTIFICATION_ID_UPLOADING, mCurrentNotification);
-        }
-    }
-
     public static boolean isQueued(String url) {
-        return queue.containsKey(url);
+        synchronized (queue) {
+            return queue.containsKey(url);
+        }
     }
 }
@@ -0,0 +1,179 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.kontalk.message.CompositeMessage;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+
+/**
+ * Accumulates incoming messages for a short time window and stores them
+ * with a single batch insert. This avoids a transaction and a round of
+ * change notifications for every message when the server floods us with
+ * offline messages.
+ * @author Daniele Ricci
+ */
+class IncomingMessageBuffer {
+
+    /** How long to wait for more messages before storing them. */
+    private static final int WINDOW = 250;
+    /** Maximum number of messages in a single batch. */
+    private static final int MAX_BATCH = 50;
+    /** Maximum time to wait for messages being decoded when quitting. */
+    private static final int QUIT_TIMEOUT = 10000;
+
+    /** Called after a message has been stored. */
+    interface OnStoredListener {
+        /**
+         * @param msg the message
+         * @param storageId the message database id, 0 if it was not stored (e.g. already stored before)
+         */
+        void stored(CompositeMessage msg, long storageId);
+    }
+
+    private static final class Entry {
+        final CompositeMessage message;
+        final OnStoredListener listener;
+
+        Entry(CompositeMessage message, OnStoredListener listener) {
+            this.message = message;
+            this.listener = listener;
+        }
+    }
+
+    private final WeakReference<MessageCenterService> mInstance;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final List<Entry> mPending = new ArrayList<Entry>();
+
+    private final Runnable mFlush = new Runnable() {
+        public void run() {
+            flush();
+        }
+    };
+
+    IncomingMessageBuffer(MessageCenterService instance) {
+        mInstance = new WeakReference<MessageCenterService>(instance);
+        mThread = new HandlerThread("IncomingMessages", Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /** Queues a message for storing. */
+    public void add(CompositeMessage msg, OnStoredListener listener) {
+        int size;
+        synchronized (mPending) {
+            mPending.add(new Entry(msg, listener));
+            size = mPending.size();
+        }
+
+        if (size >= MAX_BATCH) {
+            mHandler.removeCallbacks(mFlush);
+            mHandler.post(mFlush);
+        }
+        else if (size == 1) {
+            // first message of the batch: start the window
+            mHandler.postDelayed(mFlush, WINDOW);
+        }
+    }
+
+    /** Stores all pending messages immediately. */
+    public void flush() {
+        flush(mInstance.get());
+    }
+
+    private synchronized void flush(MessageCenterService instance) {
+        List<Entry> batch;
+        synchronized (mPending) {
+            if (mPending.size() == 0)
+                return;
+
+            batch = new ArrayList<Entry>(mPending);
+            mPending.clear();
+        }
+
+        if (instance == null)
+            return;
+
+        List<CompositeMessage> messages = new ArrayList<CompositeMessage>(batch.size());
+        for (Entry e : batch)
+            messages.add(e.message);
+
+        Map<String, Long> stored = instance.incoming(messages);
+
+        for (Entry e : batch) {
+            if (e.listener != null) {
+                Long storageId = stored.get(e.message.getId());
+                e.listener.stored(e.message, storageId != null ? storageId : 0);
+            }
+        }
+    }
+
+    /**
+     * Stores any pending message and stops the buffer thread. Messages
+     * still being decoded are waited for, so they are stored too. All of
+     * this is done in the buffer thread, use {@link #join} to wait for it.
+     * @param decoder the decoder, already quit
+     */
+    public void quit(final IncomingMessageDecoder decoder) {
+        // the service must stay around until the last messages are stored
+        final MessageCenterService instance = mInstance.get();
+
+        mHandler.removeCallbacks(mFlush);
+        mHandler.post(new Runnable() {
+            public void run() {
+                if (!decoder.awaitTermination(QUIT_TIMEOUT))
+                    Log.w(MessageCenterService.TAG, "timeout waiting for messages to be decoded");
+
+                flush(instance);
+                quitThread();
+            }
+        });
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private void quitThread() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2)
+            mThread.quitSafely();
+        else
+            mThread.quit();
+    }
+
+    /** Waits for the buffer thread to terminate after {@link #quit}. */
+    public void join(long timeoutMillis) {
+        try {
+            mThread.join(timeoutMillis);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
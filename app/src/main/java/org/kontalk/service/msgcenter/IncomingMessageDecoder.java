@@ -0,0 +1,151 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.lang.ref.WeakReference;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.kontalk.message.CompositeMessage;
+import org.kontalk.util.BackgroundThreadFactory;
+
+import android.util.Log;
+
+
+/**
+ * Decodes incoming messages (decryption, previews) in a small pool of
+ * background threads. Decoded messages are queued for storing in the same
+ * order they were received, so messages from the same sender are never
+ * reordered.
+ * @author Daniele Ricci
+ */
+class IncomingMessageDecoder {
+
+    /** Number of worker threads. */
+    private static final int THREADS = 2;
+
+    private final class Entry implements Runnable {
+        final CompositeMessage message;
+        final Runnable decoder;
+        final IncomingMessageBuffer.OnStoredListener listener;
+        boolean decoded;
+
+        Entry(CompositeMessage message, Runnable decoder,
+                IncomingMessageBuffer.OnStoredListener listener) {
+            this.message = message;
+            this.decoder = decoder;
+            this.listener = listener;
+        }
+
+        @Override
+        public void run() {
+            try {
+                decoder.run();
+            }
+            catch (RuntimeException e) {
+                Log.e(MessageCenterService.TAG, "error decoding message", e);
+            }
+            finally {
+                decoded(this);
+            }
+        }
+    }
+
+    private final WeakReference<MessageCenterService> mInstance;
+    private final ExecutorService mExecutor;
+
+    /** Messages not yet queued for storing, in arrival order. */
+    private final LinkedList<Entry> mPending = new LinkedList<Entry>();
+
+    IncomingMessageDecoder(MessageCenterService instance) {
+        mInstance = new WeakReference<MessageCenterService>(instance);
+        mExecutor = Executors.newFixedThreadPool(THREADS,
+            new BackgroundThreadFactory("IncomingMessages"));
+    }
+
+    /**
+     * Queues a message for decoding.
+     * @param decoder fills in the message, run in a worker thread; null if
+     *                the message is already complete
+     * @param listener will be called after the message has been stored
+     */
+    public void add(CompositeMessage msg, Runnable decoder,
+            IncomingMessageBuffer.OnStoredListener listener) {
+        Entry entry = new Entry(msg, decoder, listener);
+
+        synchronized (mPending) {
+            mPending.add(entry);
+        }
+
+        if (decoder != null) {
+            try {
+                mExecutor.execute(entry);
+            }
+            catch (RejectedExecutionException e) {
+                // message center is stopping, message will be received again
+                Log.v(MessageCenterService.TAG, "message center stopped, dropping message");
+                synchronized (mPending) {
+                    mPending.remove(entry);
+                }
+            }
+        }
+        else {
+            decoded(entry);
+        }
+    }
+
+    /** Queues for storing all decoded messages not waiting for earlier ones. */
+    private void decoded(Entry entry) {
+        MessageCenterService instance = mInstance.get();
+
+        synchronized (mPending) {
+            entry.decoded = true;
+
+            while (mPending.size() > 0 && mPending.getFirst().decoded) {
+                Entry e = mPending.removeFirst();
+                if (instance != null)
+                    instance.queueIncoming(e.message, e.listener);
+            }
+        }
+    }
+
+    /** Stops the worker threads after queued messages have been decoded. */
+    public void quit() {
+        mExecutor.shutdown();
+    }
+
+    /**
+     * Waits for queued messages to be decoded and queued for storing,
+     * after {@link #quit()}.
+     * @return false if the timeout expired
+     */
+    public boolean awaitTermination(long timeoutMillis) {
+        try {
+            return mExecutor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+}
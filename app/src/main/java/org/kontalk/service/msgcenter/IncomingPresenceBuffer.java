@@ -0,0 +1,151 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jivesoftware.smack.packet.Presence;
+import org.jxmpp.util.XmppStringUtils;
+
+import android.content.ContentValues;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import org.kontalk.provider.MyUsers.Users;
+import org.kontalk.provider.UsersProvider;
+
+
+/**
+ * Accumulates incoming presence stanzas for a short time window. Presences
+ * from the same user are collapsed, users database is updated in a single
+ * transaction and all presences are broadcast together. This is for the
+ * presence flood we receive after login.
+ * @author Daniele Ricci
+ */
+class IncomingPresenceBuffer {
+
+    /** How long to wait for more presences before processing them. */
+    private static final int WINDOW = 500;
+    /** Maximum number of presences in a single batch. */
+    private static final int MAX_BATCH = 100;
+
+    private final WeakReference<MessageCenterService> mInstance;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final List<Presence> mPending = new ArrayList<Presence>();
+
+    private final Runnable mFlush = new Runnable() {
+        public void run() {
+            flush();
+        }
+    };
+
+    IncomingPresenceBuffer(MessageCenterService instance) {
+        mInstance = new WeakReference<MessageCenterService>(instance);
+        mThread = new HandlerThread("IncomingPresences", Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /** Queues a presence for processing. */
+    public void add(Presence p) {
+        int size;
+        synchronized (mPending) {
+            mPending.add(p);
+            size = mPending.size();
+        }
+
+        if (size >= MAX_BATCH) {
+            mHandler.removeCallbacks(mFlush);
+            mHandler.post(mFlush);
+        }
+        else if (size == 1) {
+            // first presence of the batch: start the window
+            mHandler.postDelayed(mFlush, WINDOW);
+        }
+    }
+
+    /** Processes all pending presences immediately. */
+    public synchronized void flush() {
+        List<Presence> batch;
+        synchronized (mPending) {
+            if (mPending.size() == 0)
+                return;
+
+            batch = new ArrayList<Presence>(mPending);
+            mPending.clear();
+        }
+
+        MessageCenterService instance = mInstance.get();
+        if (instance == null)
+            return;
+
+        // users database data by bare JID, latest presence wins
+        Map<String, ContentValues> users = new LinkedHashMap<String, ContentValues>();
+        // latest presence by full JID (resources are tracked by consumers)
+        Map<String, Presence> presences = new LinkedHashMap<String, Presence>();
+
+        for (Presence p : batch) {
+            ContentValues values = PresenceListener.getUsersValues(p);
+            String jid = values.getAsString(Users.JID);
+
+            ContentValues previous = users.remove(jid);
+            if (previous != null) {
+                // keep fingerprint from previous presence if missing
+                previous.putAll(values);
+                values = previous;
+            }
+            users.put(jid, values);
+
+            presences.remove(p.getFrom());
+            presences.put(p.getFrom(), p);
+        }
+
+        try {
+            UsersProvider.updatePresences(instance, users.values());
+        }
+        catch (Exception e) {
+            Log.e(MessageCenterService.TAG, "unable to update users database", e);
+        }
+
+        ArrayList<Intent> intents = new ArrayList<Intent>(presences.size());
+        for (Presence p : presences.values()) {
+            ContentValues values = users.get(XmppStringUtils.parseBareJid(p.getFrom()));
+            intents.add(PresenceListener.createIntent(instance, p,
+                values.getAsLong(Users.LAST_SEEN)));
+        }
+
+        instance.broadcastPresences(intents);
+    }
+
+    /** Processes any pending presence and stops the buffer thread. */
+    public void quit() {
+        mHandler.removeCallbacks(mFlush);
+        flush();
+        mThread.quit();
+    }
+
+}
@@ -23,6 +23,7 @@ import java.util.HashMap;
 import java.util.Map;
 
 import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.packet.Presence;
 import org.jivesoftware.smack.packet.Stanza;
 
 import org.kontalk.Kontalk;
@@ -35,7 +36,6 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.net.Uri;
 
 
 /**
@@ -159,12 +159,17 @@ abstract class MessageCenterPacketListener implements PacketListener {
         return (instance != null) ? instance.mWaitingReceipt : null;
     }
 
-    protected Uri incoming(CompositeMessage msg) {
+    protected void decodeIncoming(CompositeMessage msg, Runnable decoder,
+            IncomingMessageBuffer.OnStoredListener listener) {
         MessageCenterService instance = mInstance.get();
         if (instance != null)
-            return instance.incoming(msg);
+            instance.decodeIncoming(msg, decoder, listener);
+    }
 
-        return null;
+    protected void queuePresence(Presence p) {
+        MessageCenterService instance = mInstance.get();
+        if (instance != null)
+            instance.queuePresence(p);
     }
 
     protected IdleConnectionHandler getIdleHandler() {
@@ -19,11 +19,16 @@
 package org.kontalk.service.msgcenter;
 
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.lang.ref.WeakReference;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -69,7 +74,6 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
-import android.database.sqlite.SQLiteConstraintException;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.Uri;
@@ -112,6 +116,7 @@ import org.kontalk.crypto.PersonalKey;
 import org.kontalk.data.Contact;
 import org.kontalk.message.CompositeMessage;
 import org.kontalk.message.TextComponent;
+import org.kontalk.provider.MessagesProvider;
 import org.kontalk.provider.MyMessages.CommonColumns;
 import org.kontalk.provider.MyMessages.Messages;
 import org.kontalk.provider.MyMessages.Threads;
@@ -254,6 +259,8 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     public static final String EXTRA_PRIORITY = "org.kontalk.presence.priority";
     public static final String EXTRA_PRIVACY = "org.kontalk.presence.privacy";
     public static final String EXTRA_FINGERPRINT = "org.kontalk.presence.fingerprint";
+    /** Presences received together (see {@link #getPresences}). */
+    public static final String EXTRA_PRESENCES = "org.kontalk.presence.batch";
 
     // use with org.kontalk.action.ROSTER
     public static final String EXTRA_JIDLIST = "org.kontalk.roster.JIDList";
@@ -329,6 +336,21 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     /** Roster store. */
     private SQLiteRosterStore mRosterStore;
 
+    /** Incoming messages decoder. */
+    private IncomingMessageDecoder mIncomingDecoder;
+    /** Incoming messages accumulator. */
+    private IncomingMessageBuffer mIncomingBuffer;
+    /** Incoming presences accumulator. */
+    private IncomingPresenceBuffer mPresenceBuffer;
+    /** Outgoing messages worker. */
+    private OutgoingMessageQueue mOutgoing;
+    /**
+     * Incremented on every new connection. Messages still being prepared
+     * for a previous connection are not sent: they will be sent again with
+     * the other pending messages.
+     */
+    private volatile int mConnectionGeneration;
+
     /** Service handler. */
     Handler mHandler;
 
@@ -525,6 +547,11 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
 
         mIdleHandler = new IdleConnectionHandler(this, thread.getLooper());
         mHandler = new Handler();
+
+        mIncomingDecoder = new IncomingMessageDecoder(this);
+        mIncomingBuffer = new IncomingMessageBuffer(this);
+        mPresenceBuffer = new IncomingPresenceBuffer(this);
+        mOutgoing = new OutgoingMessageQueue(this, mHandler);
     }
 
     void sendPacket(Stanza packet) {
@@ -577,7 +604,30 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         mRosterStore.onDestroy();
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        OutgoingMessageQueue outgoing = mOutgoing;
+        if (outgoing != null) {
+            writer.println("Outgoing messages in queue: " + outgoing.getQueueDepth());
+            writer.println("Outgoing messages average latency: " + outgoing.getAverageLatency() + " ms");
+            writer.println("Outgoing messages maximum latency: " + outgoing.getMaxLatency() + " ms");
+        }
+    }
+
     private synchronized void quit(boolean restarting) {
+        // store incoming messages while we are still connected
+        if (!restarting) {
+            // decoding and storing are finished in background, before disconnecting
+            mIncomingDecoder.quit();
+            mIncomingBuffer.quit(mIncomingDecoder);
+            mPresenceBuffer.quit();
+            mOutgoing.quit();
+        }
+        else {
+            mIncomingBuffer.flush();
+            mPresenceBuffer.flush();
+        }
+
         if (!restarting) {
             // quit the idle handler
             mIdleHandler.quit();
@@ -607,7 +657,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             // disable ping manager
             ServerPingWithAlarmManager.getInstanceFor(mConnection).setEnabled(false);
             // this is because of NetworkOnMainThreadException
-            new DisconnectThread(mConnection).start();
+            new DisconnectThread(mConnection, restarting ? null : mIncomingBuffer).start();
             mConnection = null;
         }
 
@@ -637,13 +687,26 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     }
 
     private static final class DisconnectThread extends Thread {
+        /** Maximum time to wait for incoming messages to be stored. */
+        private static final int INCOMING_TIMEOUT = 15000;
+
         private final AbstractXMPPConnection mConn;
-        public DisconnectThread(AbstractXMPPConnection conn) {
+        private final IncomingMessageBuffer mIncoming;
+
+        /**
+         * @param incoming buffer to wait for before disconnecting, so that
+         *                 receipts for the last messages can be sent
+         */
+        public DisconnectThread(AbstractXMPPConnection conn, IncomingMessageBuffer incoming) {
             mConn = conn;
+            mIncoming = incoming;
         }
 
         @Override
         public void run() {
+            if (mIncoming != null)
+                mIncoming.join(INCOMING_TIMEOUT);
+
             try {
                 mConn.disconnect();
             }
@@ -957,7 +1020,10 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             mPushNotifications = Preferences.getPushNotificationsEnabled(this) &&
                 mPushService.isServiceAvailable();
             // reset waiting messages
-            mWaitingReceipt.clear();
+            synchronized (mWaitingReceipt) {
+                mWaitingReceipt.clear();
+            }
+            mConnectionGeneration++;
 
             mInactive = false;
 
@@ -1053,7 +1119,8 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         connection.addAsyncPacketListener(new RosterMatchListener(this), filter);
 
         filter = new PacketTypeFilter(org.jivesoftware.smack.packet.Message.class);
-        connection.addAsyncPacketListener(new MessageListener(this), filter);
+        // incoming messages are handled in order, decoding is done by the decoder
+        connection.addSyncPacketListener(new MessageListener(this), filter);
 
         filter = new PacketTypeFilter(LastActivity.class);
         connection.addAsyncPacketListener(new LastActivityListener(this), filter);
@@ -1191,35 +1258,6 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
      * receiving upload info (non-media messages will be filtered out)
      */
     void resendPendingMessages(boolean retrying) {
-        StringBuilder filter = new StringBuilder()
-            .append(Messages.DIRECTION)
-            .append('=')
-            .append(Messages.DIRECTION_OUT)
-            .append(" AND ")
-            .append(Messages.STATUS)
-            .append("<>")
-            .append(Messages.STATUS_SENT)
-            .append(" AND ")
-            .append(Messages.STATUS)
-            .append("<>")
-            .append(Messages.STATUS_RECEIVED)
-            .append(" AND ")
-            .append(Messages.STATUS)
-            .append("<>")
-            .append(Messages.STATUS_NOTDELIVERED)
-            .append(" AND ")
-            .append(Messages.STATUS)
-            .append("<>")
-            .append(Messages.STATUS_PENDING);
-
-        // filter out non-media non-uploaded messages
-        if (retrying) filter
-            .append(" AND ")
-            .append(Messages.ATTACHMENT_FETCH_URL)
-            .append(" IS NULL AND ")
-            .append(Messages.ATTACHMENT_LOCAL_URI)
-            .append(" IS NOT NULL");
-
         Cursor c = getContentResolver().query(Messages.CONTENT_URI,
             new String[] {
                 Messages._ID,
@@ -1235,7 +1273,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                 Messages.ATTACHMENT_COMPRESS,
                 // TODO Messages.ATTACHMENT_SECURITY_FLAGS,
             },
-            filter.toString(),
+            MessagesProvider.getPendingMessagesSelection(retrying),
             null, Messages._ID);
 
         while (c.moveToNext()) {
@@ -1460,7 +1498,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                         to, action == PRIVACY_BLOCK || action == PRIVACY_REJECT);
 
                     // invalidate cached contact
-                    Contact.invalidate(to);
+                    Contact.invalidate(MessageCenterService.this, to);
 
                     // broadcast result
                     broadcast((action == PRIVACY_BLOCK || action == PRIVACY_REJECT) ?
@@ -1511,9 +1549,11 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     private void sendMessage(Bundle data) {
         // check if message is already pending
         long msgId = data.getLong("org.kontalk.message.msgId");
-        if (mWaitingReceipt.containsValue(msgId)) {
-            Log.v(TAG, "message already queued and waiting - dropping");
-            return;
+        synchronized (mWaitingReceipt) {
+            if (mWaitingReceipt.containsValue(msgId)) {
+                Log.v(TAG, "message already queued and waiting - dropping");
+                return;
+            }
         }
 
         String id = data.getString("org.kontalk.message.packetId");
@@ -1558,200 +1598,334 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             // hold on to message center while we send the message
             mIdleHandler.hold();
 
-            // message stanza
-            org.jivesoftware.smack.packet.Message m = new org.jivesoftware.smack.packet.Message();
-            m.setType(org.jivesoftware.smack.packet.Message.Type.chat);
-            if (to != null) m.setTo(to);
-
-            // set message id
-            m.setStanzaId(id);
-            if (msgId > 0)
-                mWaitingReceipt.put(id, msgId);
-
-            String body = data.getString("org.kontalk.message.body");
-            if (body != null)
-                m.setBody(body);
-
-            String fetchUrl = data.getString("org.kontalk.message.fetch.url");
-
-            // generate preview if needed
-            String _previewUri = data.getString("org.kontalk.message.preview.uri");
-            String previewFilename = data.getString("org.kontalk.message.preview.path");
-            if (_previewUri != null && previewFilename != null) {
-                File previewPath = new File(previewFilename);
-                if (!previewPath.isFile()) {
-                    Uri previewUri = Uri.parse(_previewUri);
-                    try {
-                        MediaStorage.cacheThumbnail(this, previewUri, previewPath, true);
-                    }
-                    catch (IOException e) {
-                        Log.w(TAG, "unable to generate preview for media", e);
-                    }
+            if (msgId > 0) {
+                synchronized (mWaitingReceipt) {
+                    mWaitingReceipt.put(id, msgId);
                 }
-
-                m.addExtension(new BitsOfBinary(MediaStorage.THUMBNAIL_MIME_NETWORK, previewPath));
             }
 
-            ChatState chatState;
-            try {
-                chatState = ChatState.valueOf(data.getString("org.kontalk.message.chatState"));
-            }
-            catch (Exception e) {
-                chatState = null;
-            }
-
-            // add download url if present
-            if (fetchUrl != null) {
-                // in this case we will need the length too
-                long length = data.getLong("org.kontalk.message.length");
-                m.addExtension(new OutOfBandData(fetchUrl, mime, length, encrypt));
-            }
+            // thumbnails and encryption will be done in the background
+            mOutgoing.add(to, data, mConnectionGeneration);
+        }
+    }
 
-            if (encrypt) {
-                byte[] toMessage = null;
-                try {
-                    PersonalKey key = ((Kontalk)getApplicationContext()).getPersonalKey();
-                    Coder coder = UsersProvider.getEncryptCoder(this, mServer, key, new String[] { to });
-                    if (coder != null) {
+    /**
+     * Builds the message stanza, generating the preview and encrypting it if
+     * needed. Called from the outgoing message worker threads.
+     * @return the message stanza or null if the message must not be sent
+     */
+    org.jivesoftware.smack.packet.Message prepareMessage(Bundle data) {
+        long msgId = data.getLong("org.kontalk.message.msgId");
+        String id = data.getString("org.kontalk.message.packetId");
+        boolean encrypt = data.getBoolean("org.kontalk.message.encrypt");
+        String mime = data.getString("org.kontalk.message.mime");
+        String to = data.getString("org.kontalk.message.to");
 
-                        // no extensions, create a simple text version to save space
-                        if (m.getExtensions().size() == 0) {
-                            toMessage = coder.encryptText(body);
-                        }
+        // message stanza
+        org.jivesoftware.smack.packet.Message m = new org.jivesoftware.smack.packet.Message();
+        m.setType(org.jivesoftware.smack.packet.Message.Type.chat);
+        if (to != null) m.setTo(to);
 
-                        // some extension, encrypt whole stanza just to be sure
-                        else {
-                            toMessage = coder.encryptStanza(m.toXML());
-                        }
+        // set message id
+        m.setStanzaId(id);
 
-                        org.jivesoftware.smack.packet.Message encMsg =
-                                new org.jivesoftware.smack.packet.Message(m.getTo(),
-                                        m.getType());
+        String body = data.getString("org.kontalk.message.body");
+        if (body != null)
+            m.setBody(body);
 
-                        encMsg.setBody(getString(R.string.text_encrypted));
-                        encMsg.setStanzaId(m.getStanzaId());
-                        encMsg.addExtension(new E2EEncryption(toMessage));
+        String fetchUrl = data.getString("org.kontalk.message.fetch.url");
 
-                        m = encMsg;
-                    }
+        // generate preview if needed
+        String _previewUri = data.getString("org.kontalk.message.preview.uri");
+        String previewFilename = data.getString("org.kontalk.message.preview.path");
+        if (_previewUri != null && previewFilename != null) {
+            File previewPath = new File(previewFilename);
+            if (!previewPath.isFile()) {
+                Uri previewUri = Uri.parse(_previewUri);
+                try {
+                    MediaStorage.cacheThumbnail(this, previewUri, previewPath, true);
                 }
+                catch (IOException e) {
+                    Log.w(TAG, "unable to generate preview for media", e);
+                }
+            }
 
-                // FIXME there is some very ugly code here
-                // FIXME notify just once per session (store in Kontalk instance?)
+            m.addExtension(new BitsOfBinary(MediaStorage.THUMBNAIL_MIME_NETWORK, previewPath));
+        }
 
-                catch (PGPException pgpe) {
-                    // warn user: message will not be sent
-                    if (to.equalsIgnoreCase(MessagingNotification.getPaused())) {
-                        Toast.makeText(this, R.string.warn_no_personal_key,
-                            Toast.LENGTH_LONG).show();
-                    }
-                }
+        ChatState chatState;
+        try {
+            chatState = ChatState.valueOf(data.getString("org.kontalk.message.chatState"));
+        }
+        catch (Exception e) {
+            chatState = null;
+        }
 
-                catch (IOException io) {
-                    // warn user: message will not be sent
-                    if (to.equalsIgnoreCase(MessagingNotification.getPaused())) {
-                        Toast.makeText(this, R.string.warn_no_personal_key,
-                            Toast.LENGTH_LONG).show();
-                    }
-                }
+        // add download url if present
+        if (fetchUrl != null) {
+            // in this case we will need the length too
+            long length = data.getLong("org.kontalk.message.length");
+            m.addExtension(new OutOfBandData(fetchUrl, mime, length, encrypt));
+        }
+
+        if (encrypt) {
+            byte[] toMessage = null;
+            try {
+                PersonalKey key = ((Kontalk)getApplicationContext()).getPersonalKey();
+                Coder coder = UsersProvider.getEncryptCoder(this, mServer, key, new String[] { to });
+                if (coder != null) {
 
-                catch (IllegalArgumentException noPublicKey) {
-                    // warn user: message will be not sent
-                    if (to.equalsIgnoreCase(MessagingNotification.getPaused())) {
-                        Toast.makeText(this, R.string.warn_no_public_key,
-                            Toast.LENGTH_LONG).show();
+                    // no extensions, create a simple text version to save space
+                    if (m.getExtensions().size() == 0) {
+                        toMessage = coder.encryptText(body);
                     }
-                }
 
-                catch (GeneralSecurityException e) {
-                    // warn user: message will not be sent
-                    if (to.equalsIgnoreCase(MessagingNotification.getPaused())) {
-                        Toast.makeText(this, R.string.warn_encryption_failed,
-                            Toast.LENGTH_LONG).show();
+                    // some extension, encrypt whole stanza just to be sure
+                    else {
+                        toMessage = coder.encryptStanza(m.toXML());
                     }
-                }
 
-                if (toMessage == null) {
-                    // message was not encrypted for some reason, mark it pending user review
-                    ContentValues values = new ContentValues(1);
-                    values.put(Messages.STATUS, Messages.STATUS_PENDING);
-                    getContentResolver().update(ContentUris.withAppendedId
-                            (Messages.CONTENT_URI, msgId), values, null, null);
+                    org.jivesoftware.smack.packet.Message encMsg =
+                            new org.jivesoftware.smack.packet.Message(m.getTo(),
+                                    m.getType());
 
-                    // do not send the message
-                    if (msgId > 0)
-                        mWaitingReceipt.remove(id);
-                    mIdleHandler.release();
-                    return;
+                    encMsg.setBody(getString(R.string.text_encrypted));
+                    encMsg.setStanzaId(m.getStanzaId());
+                    encMsg.addExtension(new E2EEncryption(toMessage));
+
+                    m = encMsg;
                 }
             }
 
-            // message server id
-            String serverId = data.getString("org.kontalk.message.ack");
-            boolean ackRequest = !data.getBoolean("org.kontalk.message.standalone", false);
+            // FIXME there is some very ugly code here
+            // FIXME notify just once per session (store in Kontalk instance?)
 
-            // received receipt
-            if (serverId != null) {
-                m.addExtension(new DeliveryReceipt(serverId));
+            catch (PGPException pgpe) {
+                // warn user: message will not be sent
+                warnMessageNotSent(to, R.string.warn_no_personal_key);
+            }
+
+            catch (IOException io) {
+                // warn user: message will not be sent
+                warnMessageNotSent(to, R.string.warn_no_personal_key);
+            }
+
+            catch (IllegalArgumentException noPublicKey) {
+                // warn user: message will be not sent
+                warnMessageNotSent(to, R.string.warn_no_public_key);
             }
-            else {
-                // add chat state if message is not a received receipt
-                if (chatState != null)
-                    m.addExtension(new ChatStateExtension(chatState));
 
-                // standalone message: no receipt
-                if (ackRequest)
-                    DeliveryReceiptRequest.addTo(m);
+            catch (GeneralSecurityException e) {
+                // warn user: message will not be sent
+                warnMessageNotSent(to, R.string.warn_encryption_failed);
             }
 
+            if (toMessage == null) {
+                // message was not encrypted for some reason, mark it pending user review
+                ContentValues values = new ContentValues(1);
+                values.put(Messages.STATUS, Messages.STATUS_PENDING);
+                getContentResolver().update(ContentUris.withAppendedId
+                        (Messages.CONTENT_URI, msgId), values, null, null);
+
+                // do not send the message
+                if (msgId > 0) {
+                    synchronized (mWaitingReceipt) {
+                        mWaitingReceipt.remove(id);
+                    }
+                }
+                return null;
+            }
+        }
+
+        // message server id
+        String serverId = data.getString("org.kontalk.message.ack");
+        boolean ackRequest = !data.getBoolean("org.kontalk.message.standalone", false);
+
+        // received receipt
+        if (serverId != null) {
+            m.addExtension(new DeliveryReceipt(serverId));
+        }
+        else {
+            // add chat state if message is not a received receipt
+            if (chatState != null)
+                m.addExtension(new ChatStateExtension(chatState));
+
+            // standalone message: no receipt
+            if (ackRequest)
+                DeliveryReceiptRequest.addTo(m);
+        }
+
+        return m;
+    }
+
+    /**
+     * Sends a message prepared by {@link #prepareMessage}. Called from the
+     * service thread.
+     * @param m the message stanza, null if the message was not prepared
+     * @param generation the connection generation the message was queued for
+     */
+    void sendPreparedMessage(Bundle data, org.jivesoftware.smack.packet.Message m, int generation) {
+        // message center was stopped in the meantime
+        if (mIdleHandler == null)
+            return;
+
+        // queued for a previous connection: the hold has been reset already
+        if (generation != mConnectionGeneration) {
+            Log.v(TAG, "message queued for a previous connection - dropping");
+            return;
+        }
+
+        if (m != null) {
             sendPacket(m);
 
             // no ack request, release message center immediately
-            if (!ackRequest)
+            if (data.getBoolean("org.kontalk.message.standalone", false))
                 mIdleHandler.release();
         }
+        else {
+            mIdleHandler.release();
+        }
     }
 
-    /** Process an incoming message. */
-    Uri incoming(CompositeMessage msg) {
-        final String sender = msg.getSender(true);
+    /**
+     * Gives up on a message that could not be prepared: it won't wait for
+     * a receipt and it won't hold the message center anymore. The message
+     * will be sent again with the other pending messages. Called from the
+     * service thread.
+     */
+    void discardPreparedMessage(Bundle data, int generation) {
+        // the message might have been queued again for the new connection
+        if (generation != mConnectionGeneration)
+            return;
 
-        // save to local storage
-        ContentValues values = new ContentValues();
-        values.put(Messages.MESSAGE_ID, msg.getId());
-        values.put(Messages.PEER, sender);
+        String id = data.getString("org.kontalk.message.packetId");
+        synchronized (mWaitingReceipt) {
+            mWaitingReceipt.remove(id);
+        }
 
-        MessageUtils.fillContentValues(values, msg);
+        sendPreparedMessage(data, null, generation);
+    }
 
-        values.put(Messages.STATUS, Messages.STATUS_INCOMING);
-        values.put(Messages.UNREAD, true);
-        values.put(Messages.NEW, true);
-        values.put(Messages.DIRECTION, Messages.DIRECTION_IN);
-        values.put(Messages.TIMESTAMP, System.currentTimeMillis());
+    /** Warns the user that a message could not be encrypted (from any thread). */
+    private void warnMessageNotSent(String to, final int textId) {
+        if (to.equalsIgnoreCase(MessagingNotification.getPaused())) {
+            mHandler.post(new Runnable() {
+                public void run() {
+                    Toast.makeText(MessageCenterService.this, textId,
+                        Toast.LENGTH_LONG).show();
+                }
+            });
+        }
+    }
 
-        Uri msgUri = null;
-        try {
-            msgUri = getContentResolver().insert(Messages.CONTENT_URI, values);
+    /**
+     * Stores a batch of incoming messages.
+     * @return database ids of the stored messages, by message id
+     */
+    Map<String, Long> incoming(List<CompositeMessage> messages) {
+        ContentValues[] values = new ContentValues[messages.size()];
+        Set<String> senders = new HashSet<String>();
+        boolean notify = false;
+        String paused = MessagingNotification.getPaused();
+
+        for (int i = 0; i < values.length; i++) {
+            CompositeMessage msg = messages.get(i);
+            String sender = msg.getSender(true);
+
+            // save to local storage
+            ContentValues v = new ContentValues();
+            v.put(Messages.MESSAGE_ID, msg.getId());
+            v.put(Messages.PEER, sender);
+
+            MessageUtils.fillContentValues(v, msg);
+
+            v.put(Messages.STATUS, Messages.STATUS_INCOMING);
+            v.put(Messages.UNREAD, true);
+            v.put(Messages.NEW, true);
+            v.put(Messages.DIRECTION, Messages.DIRECTION_IN);
+            v.put(Messages.TIMESTAMP, System.currentTimeMillis());
+            values[i] = v;
+
+            senders.add(sender);
         }
-        catch (SQLiteConstraintException econstr) {
-            // duplicated message, skip it
+
+        // duplicated messages will be skipped
+        getContentResolver().bulkInsert(Messages.CONTENT_URI, values);
+
+        // database ids of inserted messages, for delivery receipts
+        Map<String, Long> stored = new HashMap<String, Long>(values.length);
+        for (int i = 0; i < values.length; i++) {
+            Long id = values[i].getAsLong(Messages._ID);
+            if (id == null)
+                continue;
+
+            CompositeMessage msg = messages.get(i);
+            stored.put(msg.getId(), id);
+            if (!msg.getSender(true).equalsIgnoreCase(paused))
+                notify = true;
         }
 
-        // mark sender as registered in the users database
+        // mark senders as registered in the users database
         final Context context = getApplicationContext();
+        final String[] registered = senders.toArray(new String[senders.size()]);
         new Thread(new Runnable() {
             public void run() {
-            UsersProvider.markRegistered(context, sender);
+                for (String sender : registered)
+                    UsersProvider.markRegistered(context, sender);
             }
         }).start();
 
-        // fire notification only if message was actually inserted to database
-        if (msgUri != null && !sender.equalsIgnoreCase(MessagingNotification.getPaused())) {
+        // fire notification only if messages were actually inserted to database
+        if (notify) {
             // update notifications (delayed)
             MessagingNotification.delayedUpdateMessagesNotification(getApplicationContext(), true);
         }
 
-        return msgUri;
+        return stored;
+    }
+
+    /** Queues an incoming message for storing. */
+    void queueIncoming(CompositeMessage msg, IncomingMessageBuffer.OnStoredListener listener) {
+        mIncomingBuffer.add(msg, listener);
+    }
+
+    /**
+     * Queues an incoming message for decoding and storing.
+     * @see IncomingMessageDecoder#add
+     */
+    void decodeIncoming(CompositeMessage msg, Runnable decoder,
+            IncomingMessageBuffer.OnStoredListener listener) {
+        mIncomingDecoder.add(msg, decoder, listener);
+    }
+
+    /** Queues an incoming presence for processing. */
+    void queuePresence(Presence p) {
+        mPresenceBuffer.add(p);
+    }
+
+    /** Broadcasts presences received together in a single intent. */
+    void broadcastPresences(ArrayList<Intent> presences) {
+        Intent i;
+        if (presences.size() == 1) {
+            i = presences.get(0);
+        }
+        else {
+            i = new Intent(ACTION_PRESENCE);
+            i.putParcelableArrayListExtra(EXTRA_PRESENCES, presences);
+        }
+
+        Log.v(TAG, "broadcasting " + presences.size() + " presences");
+        mLocalBroadcastManager.sendBroadcast(i);
+    }
+
+    /**
+     * Returns the presences carried by an {@link #ACTION_PRESENCE} broadcast.
+     * Each presence is an intent with the same extras of a single presence
+     * broadcast.
+     */
+    public static List<Intent> getPresences(Intent intent) {
+        List<Intent> presences = intent.getParcelableArrayListExtra(EXTRA_PRESENCES);
+        return (presences != null) ? presences : Collections.singletonList(intent);
     }
 
     /** Returns the first available upload service post URL. */
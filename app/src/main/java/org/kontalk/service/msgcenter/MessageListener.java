@@ -70,6 +70,36 @@ class MessageListener extends MessageCenterPacketListener {
         super(instance);
     }
 
+    /** Sends a delivery receipt after the message has been stored. */
+    private final class ReceiptSender implements IncomingMessageBuffer.OnStoredListener {
+        private final String mFrom;
+
+        ReceiptSender(String from) {
+            mFrom = from;
+        }
+
+        @Override
+        public void stored(CompositeMessage msg, long storageId) {
+            // send ack :)
+            DeliveryReceipt receipt = new DeliveryReceipt(msg.getId());
+            org.jivesoftware.smack.packet.Message ack =
+                new org.jivesoftware.smack.packet.Message(mFrom,
+                    org.jivesoftware.smack.packet.Message.Type.chat);
+            ack.addExtension(receipt);
+
+            if (storageId > 0) {
+                // hold on to message center
+                getIdleHandler().hold();
+                // will mark this message as confirmed
+                Map<String, Long> waitingReceipt = getWaitingReceiptList();
+                synchronized (waitingReceipt) {
+                    waitingReceipt.put(ack.getStanzaId(), storageId);
+                }
+            }
+            sendPacket(ack);
+        }
+    }
+
     @Override
     public void processPacket(Stanza packet) {
         Map<String, Long> waitingReceipt = getWaitingReceiptList();
@@ -153,10 +183,8 @@ class MessageListener extends MessageCenterPacketListener {
                 if (msgId == null)
                     msgId = MessageUtils.messageId();
 
-                String body = m.getBody();
-
                 // create message
-                CompositeMessage msg = new CompositeMessage(
+                final CompositeMessage msg = new CompositeMessage(
                         getContext(),
                         msgId,
                         serverTimestamp,
@@ -165,141 +193,24 @@ class MessageListener extends MessageCenterPacketListener {
                         Coder.SECURITY_CLEARTEXT
                     );
 
-                PacketExtension _encrypted = m.getExtension(E2EEncryption.ELEMENT_NAME, E2EEncryption.NAMESPACE);
-
-                if (_encrypted != null && _encrypted instanceof E2EEncryption) {
-                    E2EEncryption mEnc = (E2EEncryption) _encrypted;
-                    byte[] encryptedData = mEnc.getData();
-
-                    // encrypted message
-                    msg.setEncrypted(true);
-                    msg.setSecurityFlags(Coder.SECURITY_BASIC);
-
-                    if (encryptedData != null) {
-
-                        // decrypt message
-                        try {
-                            MessageUtils.decryptMessage(getContext(),
-                                    getServer(), msg, encryptedData);
-                        }
-
-                        catch (Exception exc) {
-                            Log.e(MessageCenterService.TAG, "decryption failed", exc);
-
-                            // raw component for encrypted data
-                            // reuse security flags
-                            msg.clearComponents();
-                            msg.addComponent(new RawComponent(encryptedData, true, msg.getSecurityFlags()));
+                boolean ackRequest = m.hasExtension(DeliveryReceiptRequest.ELEMENT, DeliveryReceipt.NAMESPACE);
+                IncomingMessageBuffer.OnStoredListener listener =
+                    ackRequest ? new ReceiptSender(from) : null;
+
+                // decryption and previews are done in the background
+                if (m.hasExtension(E2EEncryption.ELEMENT_NAME, E2EEncryption.NAMESPACE) ||
+                        m.hasExtension(BitsOfBinary.ELEMENT_NAME, BitsOfBinary.NAMESPACE)) {
+                    final org.jivesoftware.smack.packet.Message stanza = m;
+                    decodeIncoming(msg, new Runnable() {
+                        public void run() {
+                            decodeMessage(stanza, msg);
                         }
-
-                    }
+                    }, listener);
                 }
-
                 else {
-
-                    // use message body
-                    if (body != null)
-                        msg.addComponent(new TextComponent(body));
-
-                }
-
-                // TODO duplicated code (MessageUtils#decryptMessage)
-
-                // out of band data
-                PacketExtension _media = m.getExtension(OutOfBandData.ELEMENT_NAME, OutOfBandData.NAMESPACE);
-                if (_media != null && _media instanceof OutOfBandData) {
-                    File previewFile = null;
-
-                    OutOfBandData media = (OutOfBandData) _media;
-                    String mime = media.getMime();
-                    String fetchUrl = media.getUrl();
-                    long length = media.getLength();
-                    boolean encrypted = media.isEncrypted();
-
-                    // bits-of-binary for preview
-                    PacketExtension _preview = m.getExtension(BitsOfBinary.ELEMENT_NAME, BitsOfBinary.NAMESPACE);
-                    if (_preview != null && _preview instanceof BitsOfBinary) {
-                        BitsOfBinary preview = (BitsOfBinary) _preview;
-                        String previewMime = preview.getType();
-                        if (previewMime == null)
-                            previewMime = MediaStorage.THUMBNAIL_MIME_NETWORK;
-
-                        String filename = null;
-
-                        if (ImageComponent.supportsMimeType(mime)) {
-                            filename = ImageComponent.buildMediaFilename(msgId, previewMime);
-                        }
-
-                        else if (VCardComponent.supportsMimeType(mime)) {
-                            filename = VCardComponent.buildMediaFilename(msgId, previewMime);
-                        }
-
-                        try {
-                            if (filename != null) previewFile =
-                                MediaStorage.writeInternalMedia(getContext(),
-                                    filename, preview.getContents());
-                        }
-                        catch (IOException e) {
-                            Log.w(MessageCenterService.TAG, "error storing thumbnail", e);
-                        }
-                    }
-
-                    MessageComponent<?> attachment = null;
-
-                    if (ImageComponent.supportsMimeType(mime)) {
-                        // cleartext only for now
-                        attachment = new ImageComponent(mime, previewFile, null, fetchUrl, length,
-                            encrypted, encrypted ? Coder.SECURITY_BASIC : Coder.SECURITY_CLEARTEXT);
-                    }
-
-                    else if (VCardComponent.supportsMimeType(mime)) {
-                        // cleartext only for now
-                        attachment = new VCardComponent(previewFile, null, fetchUrl, length,
-                            encrypted, encrypted ? Coder.SECURITY_BASIC : Coder.SECURITY_CLEARTEXT);
-                    }
-
-                    else if (AudioComponent.supportsMimeType(mime)) {
-                        attachment = new AudioComponent(mime, null, fetchUrl, length,
-                            encrypted, encrypted ? Coder.SECURITY_BASIC : Coder.SECURITY_CLEARTEXT);
-                    }
-
-                    // TODO other types
-
-                    if (attachment != null)
-                        msg.addComponent(attachment);
-
-                    // add a dummy body if none was found
-                    /*
-                    if (body == null) {
-                        msg.addComponent(new TextComponent(CompositeMessage
-                            .getSampleTextContent((Class<? extends MessageComponent<?>>)
-                                attachment.getClass(), mime)));
-                    }
-                    */
-
-                }
-
-                if (msg != null) {
-
-                    Uri msgUri = incoming(msg);
-
-                    if (m.hasExtension(DeliveryReceiptRequest.ELEMENT, DeliveryReceipt.NAMESPACE)) {
-                        // send ack :)
-                        DeliveryReceipt receipt = new DeliveryReceipt(msgId);
-                        org.jivesoftware.smack.packet.Message ack =
-                            new org.jivesoftware.smack.packet.Message(from,
-                                org.jivesoftware.smack.packet.Message.Type.chat);
-                        ack.addExtension(receipt);
-
-                        if (msgUri != null) {
-                            // hold on to message center
-                            getIdleHandler().hold();
-                            // will mark this message as confirmed
-                            long storageId = ContentUris.parseId(msgUri);
-                            waitingReceipt.put(ack.getStanzaId(), storageId);
-                        }
-                        sendPacket(ack);
-                    }
+                    decodeMessage(m, msg);
+                    // store the message (with other incoming messages)
+                    decodeIncoming(msg, null, listener);
                 }
 
             }
@@ -338,4 +249,124 @@ class MessageListener extends MessageCenterPacketListener {
             }
         }
     }
+
+    /** Fills in a message with the contents of the stanza (decrypting it if needed). */
+    private void decodeMessage(org.jivesoftware.smack.packet.Message m, CompositeMessage msg) {
+        String msgId = msg.getId();
+        String body = m.getBody();
+
+        PacketExtension _encrypted = m.getExtension(E2EEncryption.ELEMENT_NAME, E2EEncryption.NAMESPACE);
+
+        if (_encrypted != null && _encrypted instanceof E2EEncryption) {
+            E2EEncryption mEnc = (E2EEncryption) _encrypted;
+            byte[] encryptedData = mEnc.getData();
+
+            // encrypted message
+            msg.setEncrypted(true);
+            msg.setSecurityFlags(Coder.SECURITY_BASIC);
+
+            if (encryptedData != null) {
+
+                // decrypt message
+                try {
+                    MessageUtils.decryptMessage(getContext(),
+                            getServer(), msg, encryptedData);
+                }
+
+                catch (Exception exc) {
+                    Log.e(MessageCenterService.TAG, "decryption failed", exc);
+
+                    // raw component for encrypted data
+                    // reuse security flags
+                    msg.clearComponents();
+                    msg.addComponent(new RawComponent(encryptedData, true, msg.getSecurityFlags()));
+                }
+
+            }
+        }
+
+        else {
+
+            // use message body
+            if (body != null)
+                msg.addComponent(new TextComponent(body));
+
+        }
+
+        // TODO duplicated code (MessageUtils#decryptMessage)
+
+        // out of band data
+        PacketExtension _media = m.getExtension(OutOfBandData.ELEMENT_NAME, OutOfBandData.NAMESPACE);
+        if (_media != null && _media instanceof OutOfBandData) {
+            File previewFile = null;
+
+            OutOfBandData media = (OutOfBandData) _media;
+            String mime = media.getMime();
+            String fetchUrl = media.getUrl();
+            long length = media.getLength();
+            boolean encrypted = media.isEncrypted();
+
+            // bits-of-binary for preview
+            PacketExtension _preview = m.getExtension(BitsOfBinary.ELEMENT_NAME, BitsOfBinary.NAMESPACE);
+            if (_preview != null && _preview instanceof BitsOfBinary) {
+                BitsOfBinary preview = (BitsOfBinary) _preview;
+                String previewMime = preview.getType();
+                if (previewMime == null)
+                    previewMime = MediaStorage.THUMBNAIL_MIME_NETWORK;
+
+                String filename = null;
+
+                if (ImageComponent.supportsMimeType(mime)) {
+                    filename = ImageComponent.buildMediaFilename(msgId, previewMime);
+                }
+
+                else if (VCardComponent.supportsMimeType(mime)) {
+                    filename = VCardComponent.buildMediaFilename(msgId, previewMime);
+                }
+
+                try {
+                    if (filename != null) previewFile =
+                        MediaStorage.writeInternalMedia(getContext(),
+                            filename, preview.getContents());
+                }
+                catch (IOException e) {
+                    Log.w(MessageCenterService.TAG, "error storing thumbnail", e);
+                }
+            }
+
+            MessageComponent<?> attachment = null;
+
+            if (ImageComponent.supportsMimeType(mime)) {
+                // cleartext only for now
+                attachment = new ImageComponent(mime, previewFile, null, fetchUrl, length,
+                    encrypted, encrypted ? Coder.SECURITY_BASIC : Coder.SECURITY_CLEARTEXT);
+            }
+
+            else if (VCardComponent.supportsMimeType(mime)) {
+                // cleartext only for now
+                attachment = new VCardComponent(previewFile, null, fetchUrl, length,
+                    encrypted, encrypted ? Coder.SECURITY_BASIC : Coder.SECURITY_CLEARTEXT);
+            }
+
+            else if (AudioComponent.supportsMimeType(mime)) {
+                attachment = new AudioComponent(mime, null, fetchUrl, length,
+                    encrypted, encrypted ? Coder.SECURITY_BASIC : Coder.SECURITY_CLEARTEXT);
+            }
+
+            // TODO other types
+
+            if (attachment != null)
+                msg.addComponent(attachment);
+
+            // add a dummy body if none was found
+            /*
+            if (body == null) {
+                msg.addComponent(new TextComponent(CompositeMessage
+                    .getSampleTextContent((Class<? extends MessageComponent<?>>)
+                        attachment.getClass(), mime)));
+            }
+            */
+
+        }
+    }
 }
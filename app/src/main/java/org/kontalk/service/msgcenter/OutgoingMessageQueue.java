@@ -0,0 +1,205 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.jivesoftware.smack.packet.Message;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.kontalk.util.BackgroundThreadFactory;
+
+
+/**
+ * Prepares outgoing messages in background threads: thumbnails generation,
+ * encryption and signing. Messages to different peers are prepared in
+ * parallel, messages to the same peer are prepared and sent in order.
+ * Prepared messages are sent from the service thread.
+ * @author Daniele Ricci
+ */
+class OutgoingMessageQueue {
+
+    /** Number of worker threads. */
+    private static final int THREADS = 2;
+
+    private final WeakReference<MessageCenterService> mInstance;
+    /** Service thread handler, for sending prepared messages. */
+    private final Handler mHandler;
+    private final ExecutorService mExecutor;
+
+    /** Messages waiting to be prepared, by peer (only while a worker is on it). */
+    private final Map<String, Queue<Task>> mPeers = new HashMap<String, Queue<Task>>();
+
+    /* metrics */
+    private int mDepth;
+    private long mSent;
+    private long mTotalLatency;
+    private long mMaxLatency;
+
+    private final class Task implements Runnable {
+        final String peer;
+        final Bundle data;
+        /** Connection the message was queued for. */
+        final int generation;
+        final long queued;
+
+        Task(String peer, Bundle data, int generation) {
+            this.peer = peer;
+            this.data = data;
+            this.generation = generation;
+            this.queued = SystemClock.elapsedRealtime();
+        }
+
+        @Override
+        public void run() {
+            try {
+                MessageCenterService instance = mInstance.get();
+                final Message m = (instance != null) ? instance.prepareMessage(data) : null;
+
+                // send in the service thread
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        MessageCenterService instance = mInstance.get();
+                        if (instance != null)
+                            instance.sendPreparedMessage(data, m, generation);
+                        sent(queued);
+                    }
+                });
+            }
+            catch (RuntimeException e) {
+                Log.e(MessageCenterService.TAG, "unable to prepare message", e);
+
+                // release the message center in the service thread
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        MessageCenterService instance = mInstance.get();
+                        if (instance != null)
+                            instance.discardPreparedMessage(data, generation);
+                        sent(queued);
+                    }
+                });
+            }
+            finally {
+                next(peer);
+            }
+        }
+    }
+
+    OutgoingMessageQueue(MessageCenterService instance, Handler handler) {
+        mInstance = new WeakReference<MessageCenterService>(instance);
+        mHandler = handler;
+        mExecutor = Executors.newFixedThreadPool(THREADS,
+            new BackgroundThreadFactory("OutgoingMessages"));
+    }
+
+    /**
+     * Queues a message for preparing and sending.
+     * @param generation the current connection generation
+     */
+    public void add(String peer, Bundle data, int generation) {
+        Task task = new Task(peer != null ? peer : "", data, generation);
+
+        synchronized (this) {
+            mDepth++;
+
+            Queue<Task> queue = mPeers.get(task.peer);
+            if (queue != null) {
+                // a worker is already on this peer
+                queue.add(task);
+                return;
+            }
+
+            mPeers.put(task.peer, new LinkedList<Task>());
+        }
+
+        execute(task);
+    }
+
+    /** Schedules the next message for the given peer, if any. */
+    private void next(String peer) {
+        Task task;
+        synchronized (this) {
+            Queue<Task> queue = mPeers.get(peer);
+            task = queue.poll();
+            if (task == null)
+                mPeers.remove(peer);
+        }
+
+        if (task != null)
+            execute(task);
+    }
+
+    private void execute(Task task) {
+        try {
+            mExecutor.execute(task);
+        }
+        catch (RejectedExecutionException e) {
+            // queue has been stopped, message will be sent again later
+            Log.v(MessageCenterService.TAG, "message center stopped, dropping message");
+            synchronized (this) {
+                Queue<Task> dropped = mPeers.remove(task.peer);
+                mDepth -= 1 + (dropped != null ? dropped.size() : 0);
+            }
+        }
+    }
+
+    private synchronized void sent(long queued) {
+        long latency = SystemClock.elapsedRealtime() - queued;
+        mDepth--;
+        mSent++;
+        mTotalLatency += latency;
+        if (latency > mMaxLatency)
+            mMaxLatency = latency;
+
+        Log.v(MessageCenterService.TAG, "message sent in " + latency +
+            " ms, " + mDepth + " messages in queue");
+    }
+
+    /** Returns the number of messages waiting to be sent. */
+    public synchronized int getQueueDepth() {
+        return mDepth;
+    }
+
+    /** Returns the average time between queueing and sending a message in milliseconds. */
+    public synchronized long getAverageLatency() {
+        return mSent > 0 ? mTotalLatency / mSent : 0;
+    }
+
+    /** Returns the maximum time between queueing and sending a message in milliseconds. */
+    public synchronized long getMaxLatency() {
+        return mMaxLatency;
+    }
+
+    /** Stops the worker threads after queued messages have been prepared. */
+    public void quit() {
+        mExecutor.shutdown();
+    }
+
+}
@@ -207,7 +207,7 @@ class PresenceListener extends MessageCenterPacketListener {
                     .build(), values);
 
             // invalidate cache for this user
-            Contact.invalidate(from);
+            Contact.invalidate(getContext(), from);
 
             // insert request into the database
             values.clear();
@@ -245,14 +245,20 @@ class PresenceListener extends MessageCenterPacketListener {
     }
 
     private void handlePresence(Presence p) {
-        updateUsersDatabase(p);
-
-        Intent i = createIntent(getContext(), p);
-        Log.v(MessageCenterService.TAG, "broadcasting presence: " + i);
-        sendBroadcast(i);
+        // users database update and broadcast will be done in batch
+        queuePresence(p);
     }
 
     public static Intent createIntent(Context ctx, Presence p) {
+        return createIntent(ctx, p, -1);
+    }
+
+    /**
+     * Creates a presence broadcast intent.
+     * @param lastSeen the last seen timestamp if already known, -1 to read
+     *                 it from the database if needed
+     */
+    static Intent createIntent(Context ctx, Presence p, long lastSeen) {
         Intent i = new Intent(ACTION_PRESENCE);
         Presence.Type type = p.getType();
         i.putExtra(EXTRA_TYPE, type != null ? type.name() : Presence.Type.available.name());
@@ -270,6 +276,9 @@ class PresenceListener extends MessageCenterPacketListener {
         if (delay != null) {
             timestamp = delay.getStamp().getTime();
         }
+        else if (lastSeen >= 0) {
+            timestamp = lastSeen;
+        }
         else {
             // try last seen from database
             timestamp = UsersProvider.getLastSeen(ctx, XmppStringUtils.parseBareJid(p.getFrom()));
@@ -294,11 +303,13 @@ class PresenceListener extends MessageCenterPacketListener {
         return i;
     }
 
-    private int updateUsersDatabase(Presence p) {
-        String jid = XmppStringUtils.parseBareJid(p.getFrom());
-
+    /**
+     * Returns presence data to be stored in the users database: JID, status,
+     * last seen timestamp and public key fingerprint (if any).
+     */
+    static ContentValues getUsersValues(Presence p) {
         ContentValues values = new ContentValues(4);
-        values.put(Users.REGISTERED, 1);
+        values.put(Users.JID, XmppStringUtils.parseBareJid(p.getFrom()));
 
         // status
         String status = p.getStatus();
@@ -325,8 +336,7 @@ class PresenceListener extends MessageCenterPacketListener {
                 values.put(Users.FINGERPRINT, fingerprint);
         }
 
-        return getContext().getContentResolver().update(Users.CONTENT_URI,
-            values, Users.JID + " = ?", new String[] { jid });
+        return values;
     }
 
 }
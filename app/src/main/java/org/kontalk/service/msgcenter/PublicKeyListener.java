@@ -126,7 +126,7 @@ class PublicKeyListener extends MessageCenterPacketListener {
                                 _publicKey, fingerprint);
 
                             // invalidate cache for this user
-                            Contact.invalidate(from);
+                            Contact.invalidate(getContext(), from);
                         }
                     }
                     catch (Exception e) {
@@ -22,6 +22,7 @@ import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 
 import org.jivesoftware.smack.packet.Presence;
@@ -98,6 +99,8 @@ public class Syncer {
     // FIXME this class should handle most recent/available presence stanzas
     private static final class PresenceBroadcastReceiver extends BroadcastReceiver {
         private List<PresenceItem> response;
+        /** Roster response items by lowercase bare JID. */
+        private Map<String, PresenceItem> responseByJid;
         private final WeakReference<Syncer> notifyTo;
         private final String iq;
         private final List<String> jidList;
@@ -121,28 +124,28 @@ public class Syncer {
                 // consider only presences received *after* roster response
                 if (response != null) {
 
-                    String jid = intent.getStringExtra(MessageCenterService.EXTRA_FROM);
-                    String type = intent.getStringExtra(MessageCenterService.EXTRA_TYPE);
-                    if (type != null) {
-                        // see if bare JID is present in roster response
-                        String compare = XmppStringUtils.parseBareJid(jid);
-                        for (PresenceItem item : response) {
-                            if (XmppStringUtils.parseBareJid(item.from).equalsIgnoreCase(compare)) {
-                                item.status = intent.getStringExtra(MessageCenterService.EXTRA_STATUS);
-                                item.timestamp = intent.getLongExtra(MessageCenterService.EXTRA_STAMP, -1);
+                    // presences may be broadcast in batches
+                    for (Intent presence : MessageCenterService.getPresences(intent)) {
+                        String jid = presence.getStringExtra(MessageCenterService.EXTRA_FROM);
+                        String type = presence.getStringExtra(MessageCenterService.EXTRA_TYPE);
+                        if (type != null) {
+                            // see if bare JID is present in roster response
+                            PresenceItem item = getResponseItem(jid);
+                            if (item != null) {
+                                item.status = presence.getStringExtra(MessageCenterService.EXTRA_STATUS);
+                                item.timestamp = presence.getLongExtra(MessageCenterService.EXTRA_STAMP, -1);
                                 if (!item.presence) {
                                     item.presence = true;
                                     // increment presence count
                                     presenceCount++;
                                 }
-                                break;
                             }
                         }
-
-                        // done with presence data and blocklist
-                        if (rosterCount >= 0 && pubkeyCount == presenceCount && blocklistReceived)
-                            finish();
                     }
+
+                    // done with presence data and blocklist
+                    if (rosterCount >= 0 && pubkeyCount == presenceCount && blocklistReceived)
+                        finish();
                 }
             }
 
@@ -155,10 +158,13 @@ public class Syncer {
                         rosterCount = list.length;
                         // prepare list to be filled in with presence data
                         response = new ArrayList<PresenceItem>(rosterCount);
+                        responseByJid = new HashMap<String, PresenceItem>(rosterCount);
                         for (String jid : list) {
                             PresenceItem p = new PresenceItem();
                             p.from = jid;
                             response.add(p);
+                            responseByJid.put(XmppStringUtils.parseBareJid(jid)
+                                .toLowerCase(Locale.US), p);
                         }
                     }
                     else {
@@ -187,15 +193,12 @@ public class Syncer {
                 if (response != null) {
                     String jid = intent.getStringExtra(MessageCenterService.EXTRA_FROM);
                     // see if bare JID is present in roster response
-                    String compare = XmppStringUtils.parseBareJid(jid);
-                    for (PresenceItem item : response) {
-                        if (XmppStringUtils.parseBareJid(item.from).equalsIgnoreCase(compare)) {
-                            item.publicKey = intent.getByteArrayExtra(MessageCenterService.EXTRA_PUBLIC_KEY);
-
-                            // increment vcard count
-                            pubkeyCount++;
-                            break;
-                        }
+                    PresenceItem item = getResponseItem(jid);
+                    if (item != null) {
+                        item.publicKey = intent.getByteArrayExtra(MessageCenterService.EXTRA_PUBLIC_KEY);
+
+                        // increment vcard count
+                        pubkeyCount++;
                     }
 
                     // done with presence data and blocklist
@@ -210,18 +213,13 @@ public class Syncer {
                 blocklistReceived = true;
 
                 String[] list = intent.getStringArrayExtra(MessageCenterService.EXTRA_BLOCKLIST);
-                if (list != null) {
+                if (list != null && response != null) {
 
                     for (String jid : list) {
                         // see if bare JID is present in roster response
-                        String compare = XmppStringUtils.parseBareJid(jid);
-                        for (PresenceItem item : response) {
-                            if (XmppStringUtils.parseBareJid(item.from).equalsIgnoreCase(compare)) {
-                                item.blocked = true;
-
-                                break;
-                            }
-                        }
+                        PresenceItem item = getResponseItem(jid);
+                        if (item != null)
+                            item.blocked = true;
                     }
 
                 }
@@ -245,6 +243,11 @@ public class Syncer {
             return (rosterCount >= 0) ? response : null;
         }
 
+        private PresenceItem getResponseItem(String jid) {
+            return responseByJid.get(XmppStringUtils.parseBareJid(jid)
+                .toLowerCase(Locale.US));
+        }
+
         private void finish() {
             Syncer w = notifyTo.get();
             if (w != null) {
@@ -521,7 +524,7 @@ public class Syncer {
         try {
             usersProvider.update(uri, null, null, null);
             Log.d(TAG, "users database committed");
-            Contact.invalidate();
+            Contact.invalidate(mContext);
         }
         catch (RemoteException e) {
             Log.e(TAG, "error committing users database - aborting sync", e);
@@ -86,6 +86,7 @@ import android.view.ViewGroup;
 import android.view.WindowManager;
 import android.view.inputmethod.EditorInfo;
 import android.view.inputmethod.InputMethodManager;
+import android.widget.AbsListView;
 import android.widget.AdapterView.AdapterContextMenuInfo;
 import android.widget.EditText;
 import android.widget.ImageButton;
@@ -116,6 +117,7 @@ import org.kontalk.provider.MyMessages.Threads.Conversations;
 import org.kontalk.provider.MyMessages.Threads.Requests;
 import org.kontalk.provider.UsersProvider;
 import org.kontalk.service.DownloadService;
+import org.kontalk.service.TransferScheduler;
 import org.kontalk.service.msgcenter.MessageCenterService;
 import org.kontalk.sync.Syncer;
 import org.kontalk.ui.view.AudioContentView;
@@ -152,6 +154,12 @@ public class ComposeMessageFragment extends ListFragment implements
 
     private static final int MESSAGE_LIST_QUERY_TOKEN = 8720;
     private static final int CONVERSATION_QUERY_TOKEN = 8721;
+    private static final int MESSAGE_PAGE_QUERY_TOKEN = 8722;
+    private static final int MESSAGE_NEWER_QUERY_TOKEN = 8723;
+    private static final int MESSAGE_REFRESH_QUERY_TOKEN = 8724;
+
+    /** Delay for coalescing message changes. */
+    private static final int MESSAGE_CHANGES_DELAY = 100;
 
     private static final int SELECT_ATTACHMENT_OPENABLE = Activity.RESULT_FIRST_USER + 1;
     private static final int SELECT_ATTACHMENT_CONTACT = Activity.RESULT_FIRST_USER + 2;
@@ -170,6 +178,11 @@ public class ComposeMessageFragment extends ListFragment implements
 
     private MessageListQueryHandler mQueryHandler;
     private MessageListAdapter mListAdapter;
+    private final MessageListPager mPager = new MessageListPager();
+    private MessagesObserver mMessagesObserver;
+    private boolean mMessageChangesPending;
+    /** Message to scroll to after loading (from arguments). */
+    private long mScrollToMessage;
     private EditText mTextEntry;
     private View mSendButton;
     private TextView mStatusText;
@@ -209,6 +222,14 @@ public class ComposeMessageFragment extends ListFragment implements
     private BroadcastReceiver mPresenceReceiver;
     private BroadcastReceiver mPrivacyListener;
 
+    /** Contacts might not be loaded yet when the conversation is opened. */
+    private final BroadcastReceiver mContactsChangedReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            onContactsChanged();
+        }
+    };
+
     private boolean mOfflineModeWarned;
     private boolean mComposeSent;
     private boolean mIsTyping;
@@ -263,6 +284,18 @@ public class ComposeMessageFragment extends ListFragment implements
         list.setFastScrollEnabled(true);
         registerForContextMenu(list);
 
+        list.setOnScrollListener(new AbsListView.OnScrollListener() {
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            public void onScroll(AbsListView view, int firstVisibleItem,
+                    int visibleItemCount, int totalItemCount) {
+                // load older messages when reaching the top
+                if (firstVisibleItem == 0 && totalItemCount > 0)
+                    loadOlderMessages();
+            }
+        });
+
         // footer (for tablet presence status)
         mStatusText = (TextView) getView().findViewById(R.id.status_text);
 
@@ -406,8 +439,17 @@ public class ComposeMessageFragment extends ListFragment implements
 
     private final MessageListAdapter.OnContentChangedListener mContentChangedListener = new MessageListAdapter.OnContentChangedListener() {
         public void onContentChanged(MessageListAdapter adapter) {
-            if (isVisible())
-                startQuery(true, false);
+            if (isVisible()) {
+                mPager.changedNewer();
+                scheduleMessageChanges();
+            }
+        }
+    };
+
+    private final Runnable mApplyMessageChanges = new Runnable() {
+        public void run() {
+            mMessageChangesPending = false;
+            applyMessageChanges();
         }
     };
 
@@ -752,6 +794,8 @@ public class ComposeMessageFragment extends ListFragment implements
             i.putExtra(CompositeMessage.MSG_ID, msg.getDatabaseId());
             i.putExtra(CompositeMessage.MSG_SENDER, msg.getSender());
             i.putExtra(CompositeMessage.MSG_ENCRYPTED, attachment.getSecurityFlags() != Coder.SECURITY_CLEARTEXT);
+            // user is looking at this message
+            i.putExtra(DownloadService.EXTRA_PRIORITY, TransferScheduler.PRIORITY_HIGH);
             i.setData(Uri.parse(attachment.getFetchUrl()));
             getActivity().startService(i);
         }
@@ -1283,8 +1327,12 @@ public class ComposeMessageFragment extends ListFragment implements
             if (progress)
                 getActivity().setProgressBarIndeterminateVisibility(true);
 
+            // cancel previous operations
+            cancelMessageQueries();
+
+            // most recent messages only, older pages will be loaded on demand
             CompositeMessage.startQuery(mQueryHandler, MESSAGE_LIST_QUERY_TOKEN,
-                    threadId);
+                    null, threadId, null, null, MessageListPager.PAGE_SIZE);
 
             if (reloadConversation)
                 Conversation.startQuery(mQueryHandler,
@@ -1295,6 +1343,104 @@ public class ComposeMessageFragment extends ListFragment implements
         }
     }
 
+    private void cancelMessageQueries() {
+        mQueryHandler.cancelOperation(MESSAGE_LIST_QUERY_TOKEN);
+        mQueryHandler.cancelOperation(MESSAGE_PAGE_QUERY_TOKEN);
+        mQueryHandler.cancelOperation(MESSAGE_NEWER_QUERY_TOKEN);
+        mQueryHandler.cancelOperation(MESSAGE_REFRESH_QUERY_TOKEN);
+        mHandler.removeCallbacks(mApplyMessageChanges);
+        mMessageChangesPending = false;
+        mPager.clearChanges();
+    }
+
+    /** Requests the page before the oldest loaded message. */
+    private void loadOlderMessages() {
+        if (threadId > 0 && mPager.canLoadOlder()) {
+            mPager.setLoadingOlder(true);
+            CompositeMessage.startQuery(mQueryHandler, MESSAGE_PAGE_QUERY_TOKEN,
+                mPager.getOldestId(), threadId, Conversations.SELECTION_OLDER,
+                mPager.getOlderArgs(), MessageListPager.PAGE_SIZE);
+        }
+    }
+
+    /** Reloads all the loaded messages. */
+    private void reloadMessages() {
+        CompositeMessage.startQuery(mQueryHandler, MESSAGE_REFRESH_QUERY_TOKEN,
+            mPager.getOldestId(), threadId, Conversations.SELECTION_FROM,
+            mPager.getWindowArgs(), 0);
+    }
+
+    private void scheduleMessageChanges() {
+        if (!mMessageChangesPending) {
+            mMessageChangesPending = true;
+            mHandler.postDelayed(mApplyMessageChanges, MESSAGE_CHANGES_DELAY);
+        }
+    }
+
+    /** Requeries only what changed since the messages were loaded. */
+    private void applyMessageChanges() {
+        if (threadId <= 0 || mPager.isEmpty()) {
+            mPager.clearChanges();
+            return;
+        }
+
+        if (mPager.takeChangedAll()) {
+            // reloading the whole window will include new messages too
+            mPager.clearChanges();
+            reloadMessages();
+            return;
+        }
+
+        for (MessageListPager.Page page : mPager.takeChangedPages()) {
+            String[] args = page.getRangeArgs();
+            if (args != null)
+                CompositeMessage.startQuery(mQueryHandler, MESSAGE_REFRESH_QUERY_TOKEN,
+                    page, threadId, Conversations.SELECTION_RANGE, args, 0);
+        }
+
+        if (mPager.takeChangedNewer())
+            CompositeMessage.startQuery(mQueryHandler, MESSAGE_NEWER_QUERY_TOKEN,
+                mPager.getMaxId(), threadId, Conversations.SELECTION_NEWER,
+                mPager.getNewerArgs(), 0);
+    }
+
+    /** Gives the loaded pages to the list adapter. */
+    private void updateListCursor() {
+        mListAdapter.changeCursor(mPager.getCursor());
+        mPager.closeDiscarded();
+    }
+
+    /** Scrolls to the message requested in the arguments, loading older pages if needed. */
+    private void scrollToMessage() {
+        if (mScrollToMessage > 0) {
+            int position = mPager.getPosition(mScrollToMessage);
+            if (position >= 0) {
+                mScrollToMessage = 0;
+                if (position > 0)
+                    getListView().setSelection(position);
+            }
+            else if (mPager.canLoadOlder()) {
+                loadOlderMessages();
+            }
+            else {
+                // message not found
+                mScrollToMessage = 0;
+            }
+        }
+    }
+
+    /** Returns true if the conversation should be closed because it's empty. */
+    private boolean isEmptyConversation(int count) {
+        return count == 0
+            && (mConversation == null ||
+                // no draft
+                (mConversation.getDraft() == null &&
+                // no subscription request
+                mConversation.getRequestStatus() != Threads.REQUEST_WAITING &&
+                // no text in compose entry
+                mTextEntry.getText().length() == 0));
+    }
+
     private void loadConversationMetadata(Uri uri) {
         threadId = ContentUris.parseId(uri);
         mConversation = Conversation.loadFromId(getActivity(), threadId);
@@ -1850,7 +1996,7 @@ public class ComposeMessageFragment extends ListFragment implements
                         Users.HASH + "=?", new String[] { userId });
                     // time to invalidate cache
                     // TODO this should be done by cursor notification
-                    Contact.invalidate(userId);
+                    Contact.invalidate(context, userId);
                 }
 
                 if (text != null) {
@@ -1885,6 +2031,16 @@ public class ComposeMessageFragment extends ListFragment implements
 
                     if (MessageCenterService.ACTION_PRESENCE.equals(action)) {
 
+                        // presences received together: handle only our peer's
+                        if (intent.hasExtra(MessageCenterService.EXTRA_PRESENCES)) {
+                            for (Intent presence : MessageCenterService.getPresences(intent)) {
+                                String from = presence.getStringExtra(MessageCenterService.EXTRA_FROM);
+                                if (from != null && XmppStringUtils.parseBareJid(from).equalsIgnoreCase(mUserJID))
+                                    onReceive(context, presence);
+                            }
+                            return;
+                        }
+
                         // we handle only (un)available presence stanzas
                         String type = intent.getStringExtra(MessageCenterService.EXTRA_TYPE);
 
@@ -2077,6 +2233,45 @@ public class ComposeMessageFragment extends ListFragment implements
         }
     }
 
+    /** Watches for changes to single messages to update only the pages containing them. */
+    private final class MessagesObserver extends ContentObserver {
+        public MessagesObserver(Handler handler) {
+            super(handler);
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            onChange(selfChange, null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            long msgId = -1;
+            if (uri != null) {
+                try {
+                    msgId = ContentUris.parseId(uri);
+                }
+                catch (NumberFormatException e) {
+                    // not a message database id
+                }
+            }
+
+            if (msgId > 0) {
+                // new messages will be notified through the conversation
+                mPager.changed(msgId);
+            }
+            else {
+                /*
+                 * Unknown changes (e.g. batches, or uri not supported by the
+                 * platform): they concern us only if our conversation has
+                 * been notified too.
+                 */
+                mPager.changedUnknown();
+            }
+            scheduleMessageChanges();
+        }
+    }
+
     private final class PeerObserver extends ContentObserver {
         private final Context mContext;
 
@@ -2107,6 +2302,13 @@ public class ComposeMessageFragment extends ListFragment implements
         }
     }
 
+    @Override
+    public void onStart() {
+        super.onStart();
+        mLocalBroadcastManager.registerReceiver(mContactsChangedReceiver,
+            new IntentFilter(Contact.ACTION_CONTACTS_CHANGED));
+    }
+
     @Override
     public void onResume() {
         super.onResume();
@@ -2239,12 +2441,14 @@ public class ComposeMessageFragment extends ListFragment implements
     @Override
     public void onStop() {
         super.onStop();
+        mLocalBroadcastManager.unregisterReceiver(mContactsChangedReceiver);
         unregisterPeerObserver();
         if (mListAdapter != null)
             mListAdapter.changeCursor(null);
+        mPager.close();
 
         // be sure to cancel all queries
-        mQueryHandler.cancelOperation(MESSAGE_LIST_QUERY_TOKEN);
+        cancelMessageQueries();
         mQueryHandler.cancelOperation(CONVERSATION_QUERY_TOKEN);
     }
 
@@ -2264,11 +2468,23 @@ public class ComposeMessageFragment extends ListFragment implements
     private void pauseContentListener() {
         if (mListAdapter != null)
             mListAdapter.setOnContentChangedListener(null);
+
+        if (mMessagesObserver != null) {
+            getActivity().getContentResolver()
+                .unregisterContentObserver(mMessagesObserver);
+            mMessagesObserver = null;
+        }
     }
 
     private void resumeContentListener() {
         if (mListAdapter != null)
             mListAdapter.setOnContentChangedListener(mContentChangedListener);
+
+        if (mMessagesObserver == null) {
+            mMessagesObserver = new MessagesObserver(mHandler);
+            getActivity().getContentResolver().registerContentObserver(
+                Messages.CONTENT_URI, true, mMessagesObserver);
+        }
     }
 
     public final boolean isFinishing() {
@@ -2276,6 +2492,27 @@ public class ComposeMessageFragment extends ListFragment implements
                 .isFinishing())) || isRemoving();
     }
 
+    /** Looks up the contact again and updates everything showing it. */
+    private void onContactsChanged() {
+        if (mListAdapter != null)
+            mListAdapter.onContactsChanged();
+
+        if (mConversation == null)
+            return;
+
+        mConversation.loadContact();
+        Contact contact = mConversation.getContact();
+        if (contact != null) {
+            mUserName = contact.getName();
+            mUserPhone = contact.getNumber();
+
+            // set title only if we are autonomous
+            setActivityTitle(mArguments != null ? mUserName : null, null, contact);
+        }
+
+        updateUI();
+    }
+
     private void updateUI() {
         Contact contact = (mConversation != null) ? mConversation
                 .getContact() : null;
@@ -2334,6 +2571,7 @@ public class ComposeMessageFragment extends ListFragment implements
                 Log.e(TAG, "query aborted or error!");
                 unregisterPeerObserver();
                 mListAdapter.changeCursor(null);
+                mPager.close();
                 return;
             }
 
@@ -2341,45 +2579,24 @@ public class ComposeMessageFragment extends ListFragment implements
                 case MESSAGE_LIST_QUERY_TOKEN:
 
                     // no messages to show - exit
-                    if (cursor.getCount() == 0
-                            && (mConversation == null ||
-                                // no draft
-                                (mConversation.getDraft() == null &&
-                                // no subscription request
-                                mConversation.getRequestStatus() != Threads.REQUEST_WAITING &&
-                                // no text in compose entry
-                                mTextEntry.getText().length() == 0))) {
+                    if (isEmptyConversation(cursor.getCount())) {
 
                         Log.i(TAG, "no data to view - exit");
+                        cursor.close();
 
                         // close conversation
                         closeConversation();
 
                     }
                     else {
-                        // see if we have to scroll to a specific message
-                        int newSelectionPos = -1;
+                        mPager.reset(cursor);
+                        updateListCursor();
 
+                        // see if we have to scroll to a specific message
                         Bundle args = myArguments();
-                        if (args != null) {
-                            long msgId = args.getLong(ComposeMessage.EXTRA_MESSAGE,
-                                    -1);
-                            if (msgId > 0) {
-
-                                cursor.moveToPosition(-1);
-                                while (cursor.moveToNext()) {
-                                    long curId = cursor.getLong(CompositeMessage.COLUMN_ID);
-                                    if (curId == msgId) {
-                                        newSelectionPos = cursor.getPosition();
-                                        break;
-                                    }
-                                }
-                            }
-                        }
-
-                        mListAdapter.changeCursor(cursor);
-                        if (newSelectionPos > 0)
-                            getListView().setSelection(newSelectionPos);
+                        mScrollToMessage = (args != null) ?
+                            args.getLong(ComposeMessage.EXTRA_MESSAGE, -1) : -1;
+                        scrollToMessage();
 
                         getActivity().setProgressBarIndeterminateVisibility(false);
                         updateUI();
@@ -2387,6 +2604,69 @@ public class ComposeMessageFragment extends ListFragment implements
 
                     break;
 
+                case MESSAGE_PAGE_QUERY_TOKEN: {
+                    // the loaded window changed in the meantime
+                    if ((Long) cookie != mPager.getOldestId()) {
+                        cursor.close();
+                        mPager.setLoadingOlder(false);
+                        break;
+                    }
+
+                    // keep the visible messages where they are
+                    ListView list = getListView();
+                    int first = list.getFirstVisiblePosition();
+                    View child = list.getChildAt(0);
+                    int top = (child != null) ? child.getTop() : 0;
+
+                    int added = mPager.prepend(cursor);
+                    if (added > 0) {
+                        updateListCursor();
+                        list.setSelectionFromTop(first + added, top);
+                    }
+
+                    scrollToMessage();
+                    break;
+                }
+
+                case MESSAGE_NEWER_QUERY_TOKEN:
+                    // messages were reloaded in the meantime - try again
+                    if ((Long) cookie != mPager.getMaxId()) {
+                        cursor.close();
+                        mPager.changedNewer();
+                        scheduleMessageChanges();
+                    }
+                    else {
+                        boolean changed = cursor.getCount() > 0;
+                        if (!mPager.append(cursor))
+                            // new messages are not the most recent ones
+                            reloadMessages();
+                        else if (changed)
+                            updateListCursor();
+                    }
+
+                    break;
+
+                case MESSAGE_REFRESH_QUERY_TOKEN:
+                    if (cookie instanceof MessageListPager.Page) {
+                        if (mPager.replace((MessageListPager.Page) cookie, cursor))
+                            updateListCursor();
+                    }
+                    else if ((Long) cookie == mPager.getOldestId()) {
+                        if (isEmptyConversation(cursor.getCount())) {
+                            cursor.close();
+                            closeConversation();
+                        }
+                        else {
+                            mPager.replaceAll(cursor);
+                            updateListCursor();
+                        }
+                    }
+                    else {
+                        cursor.close();
+                    }
+
+                    break;
+
                 case CONVERSATION_QUERY_TOKEN:
                     if (cursor.moveToFirst()) {
                         mConversation = Conversation.createFromCursor(
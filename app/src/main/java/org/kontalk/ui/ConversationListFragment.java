@@ -28,15 +28,18 @@ import org.kontalk.util.Preferences;
 
 import android.app.AlertDialog;
 import android.content.AsyncQueryHandler;
+import android.content.BroadcastReceiver;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.DialogInterface.OnClickListener;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteException;
 import android.os.Bundle;
 import android.support.v4.app.ListFragment;
+import android.support.v4.content.LocalBroadcastManager;
 import android.text.Html;
 import android.util.Log;
 import android.view.ContextMenu;
@@ -78,6 +81,14 @@ public class ConversationListFragment extends ListFragment {
         }
     };
 
+    /** Refreshes the list when contacts are loaded. */
+    private final BroadcastReceiver mContactsChangedReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            mListAdapter.notifyDataSetChanged();
+        }
+    };
+
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
         return inflater.inflate(R.layout.conversation_list, container, false);
@@ -332,6 +343,8 @@ public class ConversationListFragment extends ListFragment {
     public void onStart() {
         super.onStart();
         startQuery();
+        LocalBroadcastManager.getInstance(getActivity()).registerReceiver(
+            mContactsChangedReceiver, new IntentFilter(Contact.ACTION_CONTACTS_CHANGED));
     }
 
     @Override
@@ -345,6 +358,8 @@ public class ConversationListFragment extends ListFragment {
     @Override
     public void onStop() {
         super.onStop();
+        LocalBroadcastManager.getInstance(getActivity())
+            .unregisterReceiver(mContactsChangedReceiver);
         mListAdapter.changeCursor(null);
     }
 
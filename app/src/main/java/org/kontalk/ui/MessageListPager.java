@@ -0,0 +1,361 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.ui;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.kontalk.message.CompositeMessage;
+import org.kontalk.provider.MyMessages.Threads.Conversations;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.DataSetObserver;
+import android.database.MergeCursor;
+
+
+/**
+ * Messages of a conversation loaded in pages. Pages are loaded using keyset
+ * pagination on (timestamp, _id): the most recent page first, then older
+ * pages on demand. All pages are shown to the list adapter as a single
+ * cursor. Changes are applied by requerying only the pages containing the
+ * modified messages and by appending new messages.
+ * @author Daniele Ricci
+ */
+class MessageListPager {
+
+    /** Number of messages in a page. */
+    public static final int PAGE_SIZE = 30;
+
+    /** Loaded pages, oldest first. */
+    private final List<Page> mPages = new ArrayList<Page>();
+    /** Replaced pages, to be closed after the adapter cursor is changed. */
+    private final List<Cursor> mDiscarded = new ArrayList<Cursor>();
+
+    private boolean mHasOlder;
+    private boolean mLoadingOlder;
+
+    /* pending changes */
+    private final Set<Long> mChangedMessages = new HashSet<Long>();
+    private boolean mChangedNewer;
+    private boolean mChangedAll;
+    private boolean mChangedUnknown;
+
+    /** Replaces all pages with the given (most recent) page. */
+    public void reset(Cursor cursor) {
+        discardAll();
+        mPages.add(new Page(cursor));
+        mHasOlder = cursor.getCount() >= PAGE_SIZE;
+        mLoadingOlder = false;
+        clearChanges();
+    }
+
+    /** Replaces all pages with a single page with the whole loaded window. */
+    public void replaceAll(Cursor window) {
+        discardAll();
+        mPages.add(new Page(window));
+    }
+
+    /**
+     * Adds an older page.
+     * @return the number of messages added
+     */
+    public int prepend(Cursor cursor) {
+        mLoadingOlder = false;
+        int count = cursor.getCount();
+        mHasOlder = count >= PAGE_SIZE;
+        if (count > 0)
+            mPages.add(0, new Page(cursor));
+        else
+            cursor.close();
+        return count;
+    }
+
+    /**
+     * Adds new messages after the most recent page.
+     * @return false if some of the new messages are older than the most
+     * recent loaded message: the cursor is closed and the whole window
+     * must be reloaded.
+     */
+    public boolean append(Cursor cursor) {
+        if (cursor.getCount() == 0) {
+            cursor.close();
+            return true;
+        }
+
+        Page newer = new Page(cursor);
+        Page last = mPages.get(mPages.size() - 1);
+        if (last.ids.size() > 0 && (newer.firstTimestamp < last.lastTimestamp ||
+                (newer.firstTimestamp == last.lastTimestamp && newer.firstId < last.lastId))) {
+            cursor.close();
+            return false;
+        }
+
+        mPages.add(newer);
+        return true;
+    }
+
+    /**
+     * Replaces a page with its updated version.
+     * @return false if the page is not loaded anymore (the new cursor is closed)
+     */
+    public boolean replace(Page page, Cursor updated) {
+        int index = mPages.indexOf(page);
+        if (index < 0) {
+            updated.close();
+            return false;
+        }
+
+        mDiscarded.add(page.cursor);
+        if (updated.getCount() > 0 || mPages.size() == 1)
+            mPages.set(index, new Page(updated));
+        else {
+            mPages.remove(index);
+            updated.close();
+        }
+        return true;
+    }
+
+    /** Returns a cursor over all the loaded messages. */
+    public Cursor getCursor() {
+        if (mPages.isEmpty())
+            return null;
+
+        Cursor[] cursors = new Cursor[mPages.size()];
+        for (int i = 0; i < cursors.length; i++)
+            cursors[i] = new PageCursor(mPages.get(i).cursor);
+        return new MergeCursor(cursors);
+    }
+
+    /** Closes the pages replaced since last call. */
+    public void closeDiscarded() {
+        for (Cursor c : mDiscarded)
+            c.close();
+        mDiscarded.clear();
+    }
+
+    public void close() {
+        discardAll();
+        closeDiscarded();
+        mHasOlder = false;
+        mLoadingOlder = false;
+        clearChanges();
+    }
+
+    private void discardAll() {
+        for (Page page : mPages)
+            mDiscarded.add(page.cursor);
+        mPages.clear();
+    }
+
+    public boolean isEmpty() {
+        return mPages.isEmpty();
+    }
+
+    /** Returns true if an older page can be requested. */
+    public boolean canLoadOlder() {
+        return mHasOlder && !mLoadingOlder && !mPages.isEmpty();
+    }
+
+    public void setLoadingOlder(boolean loading) {
+        mLoadingOlder = loading;
+    }
+
+    /** Returns the position of a message in the merged cursor, -1 if not loaded. */
+    public int getPosition(long msgId) {
+        int offset = 0;
+        for (Page page : mPages) {
+            int index = page.ids.indexOf(msgId);
+            if (index >= 0)
+                return offset + index;
+            offset += page.ids.size();
+        }
+        return -1;
+    }
+
+    /** Returns the database id of the oldest loaded message, 0 if none. */
+    public long getOldestId() {
+        return mPages.isEmpty() ? 0 : mPages.get(0).firstId;
+    }
+
+    /** Returns the highest loaded message database id. */
+    public long getMaxId() {
+        long max = 0;
+        for (Page page : mPages)
+            max = Math.max(max, page.maxId);
+        return max;
+    }
+
+    /** Selection arguments for {@link Conversations#SELECTION_OLDER}. */
+    public String[] getOlderArgs() {
+        Page first = mPages.get(0);
+        return keyArgs(first.firstTimestamp, first.firstId);
+    }
+
+    /** Selection arguments for {@link Conversations#SELECTION_NEWER}. */
+    public String[] getNewerArgs() {
+        return new String[] { String.valueOf(getMaxId()) };
+    }
+
+    /** Selection arguments for {@link Conversations#SELECTION_FROM} (the whole window). */
+    public String[] getWindowArgs() {
+        return getOlderArgs();
+    }
+
+    /** Marks a message as changed. */
+    public void changed(long msgId) {
+        mChangedMessages.add(msgId);
+    }
+
+    /** Marks the conversation as changed (new messages may be available). */
+    public void changedNewer() {
+        mChangedNewer = true;
+    }
+
+    /** Marks all loaded messages as changed. */
+    public void changedAll() {
+        mChangedAll = true;
+    }
+
+    /**
+     * Marks unknown messages as changed, possibly of other conversations.
+     * Loaded messages are reloaded only if the conversation itself has
+     * been changed too (see {@link #changedNewer()}).
+     */
+    public void changedUnknown() {
+        mChangedUnknown = true;
+    }
+
+    /** Returns true if all pages should be reloaded; clears the flag. */
+    public boolean takeChangedAll() {
+        boolean changed = mChangedAll || (mChangedUnknown && mChangedNewer);
+        mChangedAll = false;
+        mChangedUnknown = false;
+        return changed;
+    }
+
+    /** Returns true if new messages should be looked for; clears the flag. */
+    public boolean takeChangedNewer() {
+        boolean changed = mChangedNewer;
+        mChangedNewer = false;
+        return changed;
+    }
+
+    /** Returns the pages containing changed messages; clears pending changes. */
+    public List<Page> takeChangedPages() {
+        List<Page> pages = new ArrayList<Page>();
+        if (mChangedMessages.size() > 0) {
+            for (Page page : mPages) {
+                for (Long id : page.ids) {
+                    if (mChangedMessages.contains(id)) {
+                        pages.add(page);
+                        break;
+                    }
+                }
+            }
+            mChangedMessages.clear();
+        }
+        return pages;
+    }
+
+    public void clearChanges() {
+        mChangedMessages.clear();
+        mChangedNewer = false;
+        mChangedAll = false;
+        mChangedUnknown = false;
+    }
+
+    private static String[] keyArgs(long timestamp, long id) {
+        String ts = String.valueOf(timestamp);
+        return new String[] { ts, ts, String.valueOf(id) };
+    }
+
+    /**
+     * A loaded page. Keys are read once when the page is created, so that
+     * the cursor position is never moved while the adapter is using it.
+     */
+    static final class Page {
+        final Cursor cursor;
+        final List<Long> ids;
+        long firstTimestamp;
+        long firstId;
+        long lastTimestamp;
+        long lastId;
+        long maxId;
+
+        Page(Cursor c) {
+            cursor = c;
+            ids = new ArrayList<Long>(c.getCount());
+            c.moveToPosition(-1);
+            while (c.moveToNext()) {
+                long id = c.getLong(CompositeMessage.COLUMN_ID);
+                long timestamp = c.getLong(CompositeMessage.COLUMN_TIMESTAMP);
+                if (ids.isEmpty()) {
+                    firstId = id;
+                    firstTimestamp = timestamp;
+                }
+                lastId = id;
+                lastTimestamp = timestamp;
+                maxId = Math.max(maxId, id);
+                ids.add(id);
+            }
+        }
+
+        /**
+         * Selection arguments for {@link Conversations#SELECTION_RANGE}.
+         * @return null if the page is empty
+         */
+        String[] getRangeArgs() {
+            if (ids.isEmpty())
+                return null;
+            String from = String.valueOf(firstTimestamp);
+            String to = String.valueOf(lastTimestamp);
+            return new String[] { from, from, String.valueOf(firstId),
+                to, to, String.valueOf(lastId) };
+        }
+    }
+
+    /**
+     * A page as seen by the merged cursor. Pages are shared between
+     * merged cursors, so closing them is up to the pager.
+     */
+    private static final class PageCursor extends CursorWrapper {
+        public PageCursor(Cursor cursor) {
+            super(cursor);
+        }
+
+        @Override
+        public void close() {
+            // pages are closed by the pager
+        }
+
+        @Override
+        public void registerDataSetObserver(DataSetObserver observer) {
+            // pages are never requeried
+        }
+
+        @Override
+        public void unregisterDataSetObserver(DataSetObserver observer) {
+            // pages are never requeried
+        }
+    }
+
+}
@@ -29,11 +29,14 @@ import org.kontalk.util.Preferences;
 import android.app.Activity;
 import android.app.PendingIntent;
 import android.app.PendingIntent.CanceledException;
+import android.content.BroadcastReceiver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.net.Uri;
 import android.os.Bundle;
+import android.support.v4.content.LocalBroadcastManager;
 import android.text.TextUtils;
 import android.util.Log;
 import android.view.View;
@@ -57,6 +60,19 @@ public class QuickReplyActivity extends Activity {
     private String userString;
     private Contact mContact;
 
+    /** Contacts might not be loaded yet when the activity is created. */
+    private final BroadcastReceiver mContactsChangedReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (userId != null) {
+                loadContact();
+                boolean editing = mContentEdit.getVisibility() == View.VISIBLE;
+                // TODO i18n
+                mFrom.setText((editing ? "To: " : "From: ") + userString);
+            }
+        }
+    };
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -70,6 +86,20 @@ public class QuickReplyActivity extends Activity {
         processIntent();
     }
 
+    @Override
+    protected void onStart() {
+        super.onStart();
+        LocalBroadcastManager.getInstance(this).registerReceiver(
+            mContactsChangedReceiver, new IntentFilter(Contact.ACTION_CONTACTS_CHANGED));
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        LocalBroadcastManager.getInstance(this)
+            .unregisterReceiver(mContactsChangedReceiver);
+    }
+
     @Override
     protected void onNewIntent(Intent intent) {
         setIntent(intent);
@@ -81,10 +111,9 @@ public class QuickReplyActivity extends Activity {
         Log.v(TAG, "processing intent: " + intent);
 
         userId = intent.getStringExtra("org.kontalk.quickreply.FROM");
-        mContact = Contact.findByUserId(this, userId);
+        loadContact();
 
         mOpenConv = intent.getParcelableExtra("org.kontalk.quickreply.OPEN_INTENT");
-        userString = (mContact != null) ? mContact.getName() + "<" + mContact.getNumber() + ">" : getString(R.string.peer_unknown);
         // TODO i18n
         mFrom.setText("From: " + userString);
 
@@ -92,6 +121,11 @@ public class QuickReplyActivity extends Activity {
         mContent.setText(content);
     }
 
+    private void loadContact() {
+        mContact = Contact.findByUserId(this, userId);
+        userString = (mContact != null) ? mContact.getName() + "<" + mContact.getNumber() + ">" : getString(R.string.peer_unknown);
+    }
+
     public void reply(View view) {
         if (mContentEdit.getVisibility() == View.VISIBLE) {
             // send reply
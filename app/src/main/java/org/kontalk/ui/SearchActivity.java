@@ -23,18 +23,24 @@ import org.kontalk.R;
 import android.app.SearchManager;
 import android.content.Intent;
 import android.os.Bundle;
+import android.support.v4.view.MenuItemCompat;
 import android.support.v7.app.ActionBarActivity;
+import android.support.v7.widget.SearchView;
+import android.view.Menu;
 import android.view.MenuItem;
 
 
 /**
- * Activity wrapper for {@link SearchFragment}.
+ * Activity wrapper for {@link SearchFragment}. The query can be refined
+ * from the action bar, with results updated while typing.
  * @author Daniele Ricci
  */
-public class SearchActivity extends ActionBarActivity {
+public class SearchActivity extends ActionBarActivity implements SearchView.OnQueryTextListener {
     public static final String TAG = SearchActivity.class.getSimpleName();
 
     private SearchFragment mFragment;
+    private SearchView mSearchView;
+    private String mQuery;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -46,15 +52,62 @@ public class SearchActivity extends ActionBarActivity {
         mFragment = (SearchFragment) getSupportFragmentManager()
                 .findFragmentById(R.id.fragment_search_list);
 
-        Intent intent = getIntent();
+        handleIntent(getIntent());
+    }
+
+    @Override
+    protected void onNewIntent(Intent intent) {
+        super.onNewIntent(intent);
+        setIntent(intent);
+        handleIntent(intent);
+    }
+
+    private void handleIntent(Intent intent) {
         if (Intent.ACTION_SEARCH.equals(intent.getAction())) {
             String query = intent.getStringExtra(SearchManager.QUERY);
-            setTitle(getResources().getString(R.string.title_search, query));
+            setQueryTitle(query);
 
-            mFragment.setQuery(query);
+            mFragment.runQuery(query);
+            if (mSearchView != null)
+                mSearchView.setQuery(query, false);
         }
     }
 
+    private void setQueryTitle(String query) {
+        mQuery = query;
+        setTitle(getResources().getString(R.string.title_search, query));
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.search_menu, menu);
+
+        MenuItem item = menu.findItem(R.id.menu_search);
+        mSearchView = (SearchView) MenuItemCompat.getActionView(item);
+        mSearchView.setQueryHint(getString(R.string.hint_search_full));
+        if (mQuery != null)
+            mSearchView.setQuery(mQuery, false);
+        mSearchView.setOnQueryTextListener(this);
+
+        return true;
+    }
+
+    @Override
+    public boolean onQueryTextChange(String newText) {
+        setQueryTitle(newText);
+        // queries are debounced while typing
+        mFragment.setQuery(newText);
+        return true;
+    }
+
+    @Override
+    public boolean onQueryTextSubmit(String query) {
+        setQueryTitle(query);
+        mFragment.runQuery(query);
+        mSearchView.clearFocus();
+        return true;
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
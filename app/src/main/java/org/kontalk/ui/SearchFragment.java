@@ -18,29 +18,34 @@
 
 package org.kontalk.ui;
 
+import java.util.List;
+
 import org.kontalk.R;
+import org.kontalk.data.MessageSearch;
 import org.kontalk.data.SearchItem;
 import org.kontalk.ui.adapter.SearchListAdapter;
 import org.kontalk.ui.view.SearchListItem;
 
-import android.app.Activity;
 import android.content.Intent;
-import android.database.Cursor;
 import android.os.Bundle;
 import android.support.v4.app.ListFragment;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.ListView;
 
 
 /**
- * A basic search fragment for the entire database.
+ * A basic search fragment for the entire database. Results are loaded in
+ * background a page at a time, while scrolling.
  * @author Daniele Ricci
  */
-public class SearchFragment extends ListFragment {
+public class SearchFragment extends ListFragment
+        implements MessageSearch.Listener, AbsListView.OnScrollListener {
 
-    private Cursor mCursor;
+    private MessageSearch mSearch;
+    /** The query currently shown. */
     private String mQuery;
     private SearchListAdapter mListAdapter;
 
@@ -54,6 +59,19 @@ public class SearchFragment extends ListFragment {
         return view;
     }
 
+    @Override
+    public void onActivityCreated(Bundle savedInstanceState) {
+        super.onActivityCreated(savedInstanceState);
+        getListView().setOnScrollListener(this);
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if (mSearch != null)
+            mSearch.cancel();
+    }
+
     @Override
     public void onListItemClick(ListView l, View v, int position, long id) {
         SearchListItem item = (SearchListItem) v;
@@ -65,18 +83,53 @@ public class SearchFragment extends ListFragment {
         startActivity(i);
     }
 
+    /**
+     * Sets the query to search for. Queries are run in background after
+     * the user has stopped typing for a while; results of previous queries
+     * are discarded.
+     */
     public void setQuery(String query) {
-        mQuery = query;
+        getSearch().setQuery(query);
+    }
 
-        Activity parent = getActivity();
-        if (parent != null) {
-            mCursor = SearchItem.query(parent, mQuery);
-            getActivity().startManagingCursor(mCursor);
+    /** Sets the query to search for and runs it immediately. */
+    public void runQuery(String query) {
+        getSearch().runQuery(query);
+    }
+
+    private MessageSearch getSearch() {
+        if (mSearch == null)
+            mSearch = new MessageSearch(getActivity(), this);
+        return mSearch;
+    }
 
-            mListAdapter = new SearchListAdapter(parent, mCursor);
-            // TODO mListAdapter.setOnContentChangedListener(mContentChangedListener);
+    @Override
+    public void onSearchResults(String query, List<SearchItem> results, boolean first, boolean more) {
+        if (mListAdapter == null) {
+            mListAdapter = new SearchListAdapter(getActivity());
             setListAdapter(mListAdapter);
         }
+
+        if (first) {
+            mQuery = query;
+            mListAdapter.setItems(results);
+            setSelection(0);
+        }
+        else {
+            mListAdapter.addItems(results);
+        }
+    }
+
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+        // load the next page before reaching the end
+        if (mSearch != null && totalItemCount > 0 &&
+                firstVisibleItem + visibleItemCount >= totalItemCount - visibleItemCount)
+            mSearch.loadMore();
+    }
+
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
     }
 
 }
@@ -23,10 +23,12 @@ import java.util.regex.Pattern;
 import org.kontalk.R;
 import org.kontalk.data.Contact;
 import org.kontalk.message.CompositeMessage;
+import org.kontalk.message.TextComponent;
 import org.kontalk.provider.MyMessages.Messages;
 import org.kontalk.ui.view.AudioPlayerControl;
 import org.kontalk.ui.ComposeMessage;
 import org.kontalk.ui.view.MessageListItem;
+import org.kontalk.ui.view.TextContentCache;
 
 import android.content.Context;
 import android.database.Cursor;
@@ -42,6 +44,9 @@ public class MessageListAdapter extends CursorAdapter {
 
     private static final String TAG = ComposeMessage.TAG;
 
+    /** Rows after the bound one whose text is formatted in background. */
+    private static final int PREFETCH_ROWS = 5;
+
     private final LayoutInflater mFactory;
     private final Pattern mHighlight;
     private OnContentChangedListener mOnContentChangedListener;
@@ -49,6 +54,9 @@ public class MessageListAdapter extends CursorAdapter {
     private Contact mContact;
     private AudioPlayerControl mAudioPlayerControl;
 
+    /** Last bound position, used for guessing the scrolling direction. */
+    private int mLastPosition = -1;
+
     public MessageListAdapter(Context context, Cursor cursor, Pattern highlight, ListView list, AudioPlayerControl audioPlayerControl) {
         super(context, cursor, false);
         mFactory = LayoutInflater.from(context);
@@ -83,6 +91,39 @@ public class MessageListAdapter extends CursorAdapter {
         }
 
         headerView.bind(context, msg, mContact, mHighlight, previous, mAudioPlayerControl);
+
+        int position = cursor.getPosition();
+        int direction = (position >= mLastPosition) ? 1 : -1;
+        mLastPosition = position;
+        prefetch(context, cursor, position, direction);
+    }
+
+    /** Formats in background the text of the next rows in the scrolling direction. */
+    private void prefetch(Context context, Cursor cursor, int position, int direction) {
+        TextContentCache cache = TextContentCache.getInstance(context);
+
+        for (int i = 1; i <= PREFETCH_ROWS; i++) {
+            if (!cursor.moveToPosition(position + i * direction))
+                break;
+
+            long id = cursor.getLong(CompositeMessage.COLUMN_ID);
+            if (cursor.getShort(CompositeMessage.COLUMN_ENCRYPTED) > 0 ||
+                    cache.contains(id, mHighlight))
+                continue;
+
+            String mime = cursor.getString(CompositeMessage.COLUMN_BODY_MIME);
+            byte[] body = cursor.getBlob(CompositeMessage.COLUMN_BODY_CONTENT);
+            if (body != null && TextComponent.supportsMimeType(mime))
+                cache.prefetch(id, new String(body), mHighlight);
+        }
+
+        cursor.moveToPosition(position);
+    }
+
+    /** Looks up the contact again and rebinds all rows, e.g. after contacts have been loaded. */
+    public void onContactsChanged() {
+        mContact = null;
+        notifyDataSetChanged();
     }
 
     @Override
@@ -18,62 +18,85 @@
 
 package org.kontalk.ui.adapter;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.kontalk.R;
 import org.kontalk.data.SearchItem;
 import org.kontalk.ui.SearchActivity;
 import org.kontalk.ui.view.SearchListItem;
 
 import android.content.Context;
-import android.database.Cursor;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.CursorAdapter;
+import android.widget.BaseAdapter;
 
 
-public class SearchListAdapter extends CursorAdapter {
+/**
+ * Adapter for search results, which are added a page at a time.
+ * @author Daniele Ricci
+ */
+public class SearchListAdapter extends BaseAdapter {
 
     private static final String TAG = SearchActivity.TAG;
 
     private final LayoutInflater mFactory;
-    private OnContentChangedListener mOnContentChangedListener;
+    private final List<SearchItem> mItems = new ArrayList<SearchItem>();
 
-    public SearchListAdapter(Context context, Cursor cursor) {
-        super(context, cursor, false);
+    public SearchListAdapter(Context context) {
         mFactory = LayoutInflater.from(context);
     }
 
-    @Override
-    public void bindView(View view, Context context, Cursor cursor) {
-        if (!(view instanceof SearchListItem)) {
-            Log.e(TAG, "Unexpected bound view: " + view);
-            return;
-        }
+    /** Replaces all results with the given ones. */
+    public void setItems(List<SearchItem> items) {
+        mItems.clear();
+        addItems(items);
+    }
 
-        SearchListItem headerView = (SearchListItem) view;
-        SearchItem found = SearchItem.fromCursor(context, cursor);
-        headerView.bind(context, found);
+    /** Appends a page of results. */
+    public void addItems(List<SearchItem> items) {
+        mItems.addAll(items);
+        notifyDataSetChanged();
     }
 
     @Override
-    public View newView(Context context, Cursor cursor, ViewGroup parent) {
-        return mFactory.inflate(R.layout.search_list_item, parent, false);
+    public int getCount() {
+        return mItems.size();
     }
 
-    public interface OnContentChangedListener {
-        void onContentChanged(SearchListAdapter adapter);
+    @Override
+    public SearchItem getItem(int position) {
+        return mItems.get(position);
     }
 
-    public void setOnContentChangedListener(OnContentChangedListener l) {
-        mOnContentChangedListener = l;
+    @Override
+    public long getItemId(int position) {
+        return mItems.get(position).getMessageId();
     }
 
     @Override
-    protected void onContentChanged() {
-        Cursor c = getCursor();
-        if (c != null && !c.isClosed() && mOnContentChangedListener != null) {
-            mOnContentChangedListener.onContentChanged(this);
+    public boolean hasStableIds() {
+        return true;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        View view = (convertView != null) ? convertView :
+            mFactory.inflate(R.layout.search_list_item, parent, false);
+
+        if (!(view instanceof SearchListItem)) {
+            Log.e(TAG, "Unexpected bound view: " + view);
+            return view;
         }
+
+        SearchItem found = mItems.get(position);
+        // results are grouped by thread: show the contact only once
+        boolean first = position == 0 ||
+            mItems.get(position - 1).getThreadId() != found.getThreadId();
+
+        ((SearchListItem) view).bind(parent.getContext(), found, first);
+        return view;
     }
 }
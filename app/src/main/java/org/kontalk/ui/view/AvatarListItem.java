@@ -34,6 +34,8 @@ public abstract class AvatarListItem extends RelativeLayout implements ContactCa
     protected QuickContactBadge mAvatarView;
 
     private Handler mHandler;
+    /** Contact whose avatar is being loaded. */
+    private Contact mAvatarContact;
 
     static protected Drawable sDefaultContactImage;
 
@@ -67,12 +69,15 @@ public abstract class AvatarListItem extends RelativeLayout implements ContactCa
     }
 
     protected void loadAvatar(Contact contact) {
+        unloadAvatar();
+
         if (contact != null) {
             // we mark this with the contact's hash code for the async avatar
             mAvatarView.setTag(contact.hashCode());
             mAvatarView.assignContactUri(contact.getUri());
             mAvatarView.setImageDrawable(sDefaultContactImage);
             // laod avatar asynchronously
+            mAvatarContact = contact;
             contact.getAvatarAsync(getContext(), this);
         }
         else {
@@ -81,6 +86,14 @@ public abstract class AvatarListItem extends RelativeLayout implements ContactCa
         }
     }
 
+    /** Cancels loading of the avatar, e.g. when the view is recycled. */
+    protected void unloadAvatar() {
+        if (mAvatarContact != null) {
+            mAvatarContact.cancelAvatarAsync(getContext(), this);
+            mAvatarContact = null;
+        }
+    }
+
     @Override
     public void avatarLoaded(final Contact contact, final Drawable avatar) {
         if (avatar != null) {
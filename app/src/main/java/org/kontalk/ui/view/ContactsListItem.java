@@ -72,6 +72,7 @@ public class ContactsListItem extends AvatarListItem {
 
     public final void unbind() {
         mContact = null;
+        unloadAvatar();
         /*
         mAvatarView.setImageDrawable(null);
         BitmapDrawable d = (BitmapDrawable) mAvatarView.getDrawable();
@@ -208,6 +208,7 @@ public class ConversationListItem extends AvatarListItem implements Checkable {
 
     public final void unbind() {
         // TODO unbind (contact?)
+        unloadAvatar();
     }
 
     public Conversation getConversation() {
@@ -28,7 +28,9 @@ import android.widget.ImageView;
 import org.kontalk.R;
 import org.kontalk.data.Contact;
 import org.kontalk.message.ImageComponent;
+import org.kontalk.util.ThumbnailCache;
 
+import java.io.File;
 import java.util.regex.Pattern;
 
 
@@ -37,9 +39,13 @@ import java.util.regex.Pattern;
  * @author Daniele Ricci
  */
 public class ImageContentView extends ImageView
-        implements MessageContentView<ImageComponent> {
+        implements MessageContentView<ImageComponent>, ThumbnailCache.Callback {
 
     private ImageComponent mComponent;
+    /** Thumbnail being shown, to be released to the cache. */
+    private Bitmap mBitmap;
+    /** Pending thumbnail request. */
+    private ThumbnailCache.Request mRequest;
 
     public ImageContentView(Context context) {
         super(context);
@@ -59,14 +65,35 @@ public class ImageContentView extends ImageView
         // prepend some text for the ImageSpan
         //String placeholder = CompositeMessage.getSampleTextContent(component.getContent().getMime());
 
-        Bitmap bitmap = mComponent.getBitmap();
-        if (bitmap != null)
-            setImageBitmap(bitmap);
+        File previewFile = mComponent.getPreviewFile();
+        if (previewFile != null) {
+            ThumbnailCache cache = ThumbnailCache.getInstance();
+            Bitmap bitmap = cache.acquire(previewFile);
+            if (bitmap != null)
+                setThumbnail(bitmap);
+            else
+                mRequest = cache.load(getContext(), previewFile,
+                    mComponent.getLocalUri(), this);
+        }
 
         // TODO else: maybe some placeholder like Image: image/jpeg
 
     }
 
+    @Override
+    public void onThumbnailLoaded(File previewFile, Bitmap bitmap) {
+        mRequest = null;
+        setThumbnail(bitmap);
+    }
+
+    private void setThumbnail(Bitmap bitmap) {
+        if (mBitmap != null)
+            ThumbnailCache.getInstance().release(mBitmap);
+
+        mBitmap = bitmap;
+        setImageBitmap(bitmap);
+    }
+
     public void unbind() {
         clear();
     }
@@ -83,7 +110,13 @@ public class ImageContentView extends ImageView
 
     private void clear() {
         mComponent = null;
-        setImageBitmap(null);
+
+        if (mRequest != null) {
+            mRequest.cancel();
+            mRequest = null;
+        }
+
+        setThumbnail(null);
     }
 
     public static ImageContentView create(LayoutInflater inflater, ViewGroup parent) {
@@ -54,18 +54,30 @@ public class SearchListItem extends RelativeLayout {
         }
     }
 
-    public final void bind(Context context, final SearchItem found) {
+    /**
+     * Binds a search result.
+     * @param showContact false to hide the contact, e.g. when the previous
+     *                    result is from the same conversation
+     */
+    public final void bind(Context context, final SearchItem found, boolean showContact) {
         mFound = found;
 
-        final Contact contact = found.getContact();
-        String name;
-        if (contact != null)
-            name = contact.getName() + " <" + contact.getNumber() + ">";
-        else
-            name = found.getUserId();
+        if (showContact) {
+            final Contact contact = found.getContact();
+            String name;
+            if (contact != null)
+                name = contact.getName() + " <" + contact.getNumber() + ">";
+            else
+                name = found.getUserId();
 
-        mText1.setText(name);
-        mText2.setText(found.getText());
+            mText1.setText(name);
+            mText1.setVisibility(VISIBLE);
+        }
+        else {
+            mText1.setVisibility(GONE);
+        }
+
+        mText2.setText(found.getSnippet());
     }
 
     public final void unbind() {
@@ -0,0 +1,179 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.ui.view;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import android.content.Context;
+import android.os.Build;
+import android.support.v4.util.LruCache;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.SpannedString;
+import android.text.style.BackgroundColorSpan;
+import android.text.util.Linkify;
+
+import org.kontalk.R;
+import org.kontalk.util.BackgroundThreadFactory;
+
+
+/**
+ * Cache of formatted text message content (highlighting and links), by
+ * message database ID and highlight pattern. Entries can be prepared in
+ * background for messages about to be shown. Every entry keeps the text
+ * it was formatted from, so it's discarded if the message content changes.
+ * @author Daniele Ricci
+ */
+public final class TextContentCache {
+
+    private static final int MAX_ENTRIES = 200;
+
+    /**
+     * Maximum affordable size of a text message to make complex stuff
+     * (e.g. emoji, linkify, etc.)
+     */
+    private static final int MAX_AFFORDABLE_SIZE = 10240;   // 10 KB
+
+    /** Formatted content of a message. */
+    static final class Entry {
+        final String text;
+        final Spanned formatted;
+        final boolean linksFound;
+
+        Entry(String text, Spanned formatted, boolean linksFound) {
+            this.text = text;
+            this.formatted = formatted;
+            this.linksFound = linksFound;
+        }
+    }
+
+    private static TextContentCache sInstance;
+
+    private final LruCache<String, Entry> mCache = new LruCache<String, Entry>(MAX_ENTRIES);
+    /** Keys being formatted in background. */
+    private final Set<String> mPending = new HashSet<String>();
+    private final ExecutorService mExecutor = Executors
+        .newSingleThreadExecutor(new BackgroundThreadFactory("TextContent"));
+
+    private final int mHighlightColor;
+
+    private TextContentCache(Context context) {
+        mHighlightColor = context.getResources().getColor(R.color.highlight_color);
+    }
+
+    public static synchronized TextContentCache getInstance(Context context) {
+        if (sInstance == null)
+            sInstance = new TextContentCache(context.getApplicationContext());
+        return sInstance;
+    }
+
+    /** Returns true if content for the given message is cached or being formatted. */
+    public boolean contains(long databaseId, Pattern highlight) {
+        String key = key(databaseId, highlight);
+        if (mCache.get(key) != null)
+            return true;
+
+        synchronized (mPending) {
+            return mPending.contains(key);
+        }
+    }
+
+    /** Formats the given message content in background, if not cached already. */
+    public void prefetch(final long databaseId, final String text, final Pattern highlight) {
+        final String key = key(databaseId, highlight);
+        if (get(key, text) != null)
+            return;
+
+        synchronized (mPending) {
+            if (!mPending.add(key))
+                return;
+        }
+
+        mExecutor.execute(new Runnable() {
+            public void run() {
+                try {
+                    if (get(key, text) == null)
+                        mCache.put(key, format(text, highlight));
+                }
+                finally {
+                    synchronized (mPending) {
+                        mPending.remove(key);
+                    }
+                }
+            }
+        });
+    }
+
+    /** Returns the formatted content of a message, formatting it if needed. */
+    Entry obtain(long databaseId, String text, Pattern highlight) {
+        String key = key(databaseId, highlight);
+        Entry entry = get(key, text);
+        if (entry == null) {
+            entry = format(text, highlight);
+            mCache.put(key, entry);
+        }
+
+        return entry;
+    }
+
+    private Entry get(String key, String text) {
+        Entry entry = mCache.get(key);
+        return (entry != null && entry.text.equals(text)) ? entry : null;
+    }
+
+    private Entry format(String text, Pattern highlight) {
+        SpannableStringBuilder buf = new SpannableStringBuilder(text);
+
+        if (highlight != null) {
+            Matcher m = highlight.matcher(text);
+            while (m.find())
+                buf.setSpan(new BackgroundColorSpan(mHighlightColor), m.start(), m.end(), 0);
+        }
+
+        // linkify!
+        boolean linksFound = false;
+        if (buf.length() < MAX_AFFORDABLE_SIZE)
+            linksFound = Linkify.addLinks(buf, Linkify.ALL);
+
+        /*
+         * workaround for bugs:
+         * http://code.google.com/p/android/issues/detail?id=17343
+         * http://code.google.com/p/android/issues/detail?id=22493
+         * applies from Honeycomb to JB 4.2.2 afaik
+         */
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB &&
+                Build.VERSION.SDK_INT <= Build.VERSION_CODES.JELLY_BEAN_MR1)
+            // from http://stackoverflow.com/a/12303155/1045199
+            buf.append("\u200b"); // was: \u2060
+
+        // entries are shared, make them immutable
+        return new Entry(text, new SpannedString(buf), linksFound);
+    }
+
+    private static String key(long databaseId, Pattern highlight) {
+        return (highlight != null) ? databaseId + ":" + highlight.pattern() :
+            String.valueOf(databaseId);
+    }
+
+}
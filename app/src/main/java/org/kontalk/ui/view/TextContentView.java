@@ -20,10 +20,7 @@ package org.kontalk.ui.view;
 
 import android.content.Context;
 import android.text.Layout;
-import android.text.SpannableStringBuilder;
 import android.text.method.LinkMovementMethod;
-import android.text.style.BackgroundColorSpan;
-import android.text.util.Linkify;
 import android.util.AttributeSet;
 import android.view.LayoutInflater;
 import android.view.ViewGroup;
@@ -33,7 +30,6 @@ import org.kontalk.data.Contact;
 import org.kontalk.message.TextComponent;
 import org.kontalk.util.Preferences;
 
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import com.rockerhieu.emojicon.EmojiconTextView;
@@ -58,35 +54,19 @@ public class TextContentView extends EmojiconTextView
     /** Used for pooling. */
     protected TextContentView next;
 
-
-    /**
-     * Maximum affordable size of a text message to make complex stuff
-     * (e.g. emoji, linkify, etc.)
-     */
-    private static final int MAX_AFFORDABLE_SIZE = 10240;   // 10 KB
-
     private TextComponent mComponent;
     private boolean mEncryptionPlaceholder;
-    private BackgroundColorSpan mHighlightColorSpan;  // set in ctor
 
     public TextContentView(Context context) {
         super(context);
-        init(context);
     }
 
     public TextContentView(Context context, AttributeSet attrs) {
         super(context, attrs);
-        init(context);
     }
 
     public TextContentView(Context context, AttributeSet attrs, int defStyle) {
         super(context, attrs, defStyle);
-        init(context);
-    }
-
-    private void init(Context context) {
-        int color = context.getResources().getColor(R.color.highlight_color);
-        mHighlightColorSpan = new BackgroundColorSpan(color);
     }
 
     /*
@@ -123,7 +103,10 @@ public class TextContentView extends EmojiconTextView
         mComponent = component;
         Context context = getContext();
 
-        SpannableStringBuilder formattedMessage = formatMessage(contact, highlight);
+        // highlighting and links are cached
+        TextContentCache.Entry formattedMessage = TextContentCache.getInstance(context)
+            .obtain(databaseId, component.getContent(), highlight);
+
         String size = Preferences.getFontSize(context);
         int sizeId;
         if (size.equals("small"))
@@ -135,28 +118,12 @@ public class TextContentView extends EmojiconTextView
         setTextAppearance(context, sizeId);
         //setEmojiconSize((int) getTextSize());
 
-        // linkify!
-        boolean linksFound = false;
-        if (formattedMessage.length() < MAX_AFFORDABLE_SIZE)
-            linksFound = Linkify.addLinks(formattedMessage, Linkify.ALL);
-
-        /*
-         * workaround for bugs:
-         * http://code.google.com/p/android/issues/detail?id=17343
-         * http://code.google.com/p/android/issues/detail?id=22493
-         * applies from Honeycomb to JB 4.2.2 afaik
-         */
-        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.HONEYCOMB &&
-                android.os.Build.VERSION.SDK_INT <= android.os.Build.VERSION_CODES.JELLY_BEAN_MR1)
-            // from http://stackoverflow.com/a/12303155/1045199
-            formattedMessage.append("\u200b"); // was: \u2060
-
-        if (linksFound)
+        if (formattedMessage.linksFound)
             setMovementMethod(LinkMovementMethod.getInstance());
         else
             setMovementMethod(null);
 
-        setText(formattedMessage);
+        setText(formattedMessage.formatted);
     }
 
     public void unbind() {
@@ -177,22 +144,6 @@ public class TextContentView extends EmojiconTextView
         return mEncryptionPlaceholder;
     }
 
-    private SpannableStringBuilder formatMessage(final Contact contact, final Pattern highlight) {
-        SpannableStringBuilder buf;
-
-        String textContent = mComponent.getContent();
-
-        buf = new SpannableStringBuilder(textContent);
-
-        if (highlight != null) {
-            Matcher m = highlight.matcher(buf.toString());
-            while (m.find())
-                buf.setSpan(mHighlightColorSpan, m.start(), m.end(), 0);
-        }
-
-        return buf;
-    }
-
     private void clear() {
         mComponent = null;
     }
@@ -27,6 +27,7 @@ import java.security.PrivateKey;
 import java.security.cert.X509Certificate;
 import java.util.List;
 
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpException;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
@@ -36,32 +37,26 @@ import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpRequestBase;
-import org.apache.http.client.params.ClientPNames;
 import org.apache.http.client.utils.URLEncodedUtils;
-import org.apache.http.conn.ClientConnectionManager;
-import org.apache.http.conn.scheme.PlainSocketFactory;
-import org.apache.http.conn.scheme.Scheme;
-import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.entity.ByteArrayEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.SingleClientConnManager;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
 import org.apache.http.util.EntityUtils;
 
 import android.content.Context;
 import android.content.res.AssetFileDescriptor;
 import android.net.Uri;
 import android.os.Environment;
+import android.util.Log;
 
 import org.kontalk.Kontalk;
-import org.kontalk.client.ClientHTTPConnection;
 import org.kontalk.client.EndpointServer;
+import org.kontalk.client.HttpClientPool;
 import org.kontalk.crypto.Coder;
 import org.kontalk.crypto.PersonalKey;
 import org.kontalk.provider.UsersProvider;
 import org.kontalk.service.ProgressListener;
 import org.kontalk.util.Preferences;
+import org.kontalk.util.ProgressEncryptingStreamEntity;
 import org.kontalk.util.ProgressInputStreamEntity;
 
 
@@ -82,7 +77,6 @@ public class KontalkBoxUploadConnection implements UploadConnection {
     protected final Context mContext;
 
     protected HttpRequestBase currentRequest;
-    protected HttpClient mConnection;
 
     private final PrivateKey mPrivateKey;
     private final X509Certificate mCertificate;
@@ -117,18 +111,36 @@ public class KontalkBoxUploadConnection implements UploadConnection {
 
             inMessage = mContext.getContentResolver().openInputStream(uri);
 
-            boolean encrypted = false;
+            Coder coder = null;
             // check if we have to encrypt the message
             if (encrypt) {
                 PersonalKey key = ((Kontalk)mContext.getApplicationContext()).getPersonalKey();
                 EndpointServer server = Preferences.getEndpointServer(mContext);
-                Coder coder = UsersProvider.getEncryptCoder(mContext, server, key, new String[] { to });
-                if (coder != null) {
+                coder = UsersProvider.getEncryptCoder(mContext, server, key, new String[] { to });
+            }
+
+            if (coder != null) {
+                // encrypt while uploading
+                currentRequest = prepareMessage(mime, new ProgressEncryptingStreamEntity
+                    (inMessage, coder, mime, this, listener), true);
+                // let the server refuse the chunked request before we send the body
+                HttpProtocolParams.setUseExpectContinue(currentRequest.getParams(), true);
+                response = execute(currentRequest);
+
+                // server doesn't accept chunked requests (or the expectation)
+                int status = response.getStatusLine().getStatusCode();
+                if (status == HttpStatus.SC_LENGTH_REQUIRED || status == HttpStatus.SC_EXPECTATION_FAILED) {
+                    Log.w(TAG, "chunked upload not supported, encrypting to temporary file");
+                    response.getEntity().consumeContent();
+                    inMessage.close();
+
+                    inMessage = mContext.getContentResolver().openInputStream(uri);
+
                     // create a temporary file to store encrypted data
                     File temp = File.createTempFile("media", null, mContext.getCacheDir());
                     FileOutputStream out = new FileOutputStream(temp);
 
-                    coder.encryptFile(inMessage, out);
+                    coder.encryptFile(inMessage, out, mime);
                     // close original file and encrypted file
                     inMessage.close();
                     out.close();
@@ -136,18 +148,23 @@ public class KontalkBoxUploadConnection implements UploadConnection {
                     // open the encrypted file
                     inMessage = new FileInputStream(temp);
                     inLength = temp.length();
-                    encrypted = true;
 
                     // delete the encrypted file
                     // it will stay until all streams are closed
                     temp.delete();
+
+                    currentRequest = prepareMessage(mime, new ProgressInputStreamEntity
+                        (inMessage, inLength, this, listener), true);
+                    response = execute(currentRequest);
                 }
             }
+            else {
+                // http request!
+                currentRequest = prepareMessage(mime, new ProgressInputStreamEntity
+                    (inMessage, inLength, this, listener), false);
+                response = execute(currentRequest);
+            }
 
-            // http request!
-            currentRequest = prepareMessage(listener,
-                mime, inMessage, inLength, encrypted);
-            response = execute(currentRequest);
             if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK)
                 throw new HttpException(response.getStatusLine().getReasonPhrase());
 
@@ -206,12 +223,11 @@ public class KontalkBoxUploadConnection implements UploadConnection {
     }
 
     /** A message posting method. */
-    private HttpRequestBase prepareMessage(ProgressListener listener,
-        String mime, InputStream data, long length, boolean encrypted)
+    private HttpRequestBase prepareMessage(String mime, HttpEntity entity, boolean encrypted)
             throws IOException {
 
         HttpPost req = (HttpPost) prepare(null, mime, null, true);
-        req.setEntity(new ProgressInputStreamEntity(data, length, this, listener));
+        req.setEntity(entity);
 
         if (encrypted)
             req.addHeader(HEADER_MESSAGE_FLAGS, "encrypted");
@@ -230,33 +246,9 @@ public class KontalkBoxUploadConnection implements UploadConnection {
     private HttpResponse execute(HttpRequestBase request) throws IOException {
         // execute!
         try {
-            if (mConnection == null) {
-                SchemeRegistry registry = new SchemeRegistry();
-                try {
-                    registry.register(new Scheme("http",  PlainSocketFactory.getSocketFactory(), 80));
-
-                    boolean acceptAnyCertificate = Preferences.getAcceptAnyCertificate(mContext);
-                    registry.register(new Scheme("https", ClientHTTPConnection
-                        .setupSSLSocketFactory(mContext, mPrivateKey, mCertificate, acceptAnyCertificate), 443));
-                }
-                catch (Exception e) {
-                    IOException ie = new IOException("unable to create keystore");
-                    ie.initCause(e);
-                    throw ie;
-                }
-
-                HttpParams params = new BasicHttpParams();
-                // handle redirects :)
-                params.setBooleanParameter(ClientPNames.HANDLE_REDIRECTS, true);
-                // HttpClient bug caused by Lighttpd
-                params.setBooleanParameter("http.protocol.expect-continue", false);
-
-                // create connection manager
-                ClientConnectionManager connMgr = new SingleClientConnManager(params, registry);
-
-                mConnection = new DefaultHttpClient(connMgr, params);
-            }
-            return mConnection.execute(request);
+            HttpClient client = HttpClientPool.getClient(mContext,
+                request.getURI().toString(), mPrivateKey, mCertificate);
+            return client.execute(request);
         }
         catch (ClientProtocolException e) {
             IOException ie = new IOException("client protocol error");
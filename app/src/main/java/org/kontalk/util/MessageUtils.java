@@ -578,7 +578,7 @@ public final class MessageUtils {
 
             String contentText;
 
-            if (XMPPUtils.XML_XMPP_TYPE.equalsIgnoreCase(mimeFound.toString())) {
+            if (Coder.XML_XMPP_TYPE.equalsIgnoreCase(mimeFound.toString())) {
                 m = XMPPUtils.parseMessageStanza(clearText.toString());
                 contentText = m.getBody();
             }
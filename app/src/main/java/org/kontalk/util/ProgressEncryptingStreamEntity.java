@@ -0,0 +1,109 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+
+import org.kontalk.crypto.Coder;
+import org.kontalk.service.ProgressListener;
+import org.kontalk.upload.UploadConnection;
+
+
+/**
+ * An entity encrypting its content while it's being sent. Content length
+ * is not known in advance, so the entity is sent chunked. Progress is
+ * reported on the cleartext data read, to be compared with the original
+ * file length.
+ * @author Daniele Ricci
+ */
+public class ProgressEncryptingStreamEntity extends ProgressInputStreamEntity {
+    private final InputStream mInput;
+    private final Coder mCoder;
+    private final String mMime;
+
+    public ProgressEncryptingStreamEntity(InputStream instream, Coder coder, String mime,
+            final UploadConnection conn, final ProgressListener listener) {
+        super(instream, -1, conn, listener);
+        mInput = instream;
+        mCoder = coder;
+        mMime = mime;
+        setChunked(true);
+    }
+
+    @Override
+    public void writeTo(final OutputStream outstream) throws IOException {
+        mListener.start(mConn);
+        try {
+            mCoder.encryptFile(new CountingInputStream(mInput, mConn, mListener), outstream, mMime);
+        }
+        catch (GeneralSecurityException e) {
+            // network errors are wrapped by the coder
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+
+            IOException ie = new IOException("encryption error");
+            ie.initCause(e);
+            throw ie;
+        }
+        finally {
+            mInput.close();
+        }
+    }
+
+    private static final class CountingInputStream extends FilterInputStream {
+
+        private final UploadConnection conn;
+        private final ProgressListener listener;
+        private long transferred;
+
+        public CountingInputStream(InputStream in, UploadConnection conn,
+            ProgressListener listener) {
+            super(in);
+            this.listener = listener;
+            this.conn = conn;
+            this.transferred = 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0)
+                publishProgress(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int count = in.read(b, off, len);
+            if (count > 0)
+                publishProgress(count);
+            return count;
+        }
+
+        private void publishProgress(long add) {
+            this.transferred += add;
+            this.listener.progress(conn, this.transferred);
+        }
+    }
+
+}
@@ -19,31 +19,71 @@
 package org.kontalk.util;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.security.GeneralSecurityException;
+import java.util.LinkedList;
+import java.util.List;
 
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.kontalk.crypto.Coder;
+import org.kontalk.crypto.DecryptException;
 import org.kontalk.service.DownloadListener;
 
+import android.util.Log;
+
 
 public class ProgressOutputStreamEntity implements HttpEntity {
+    private static final String TAG = ProgressOutputStreamEntity.class.getSimpleName();
 
     private final HttpEntity mParent;
     private final String mUrl;
     private final File mFile;
     private final DownloadListener mListener;
+    private final Coder mDecoder;
+
+    /** Bytes already received in a previous download. */
+    private long mOffset;
+    /** Where to keep the encrypted data received, for resuming. */
+    private File mPartial;
 
     public ProgressOutputStreamEntity(HttpEntity parent,
             String url, File file, final DownloadListener listener) {
+        this(parent, url, file, null, listener);
+    }
+
+    /**
+     * Creates an entity that decrypts its content while it's being received.
+     * @param decoder the coder for decrypting the content, null to write it as is
+     */
+    public ProgressOutputStreamEntity(HttpEntity parent,
+            String url, File file, Coder decoder, final DownloadListener listener) {
         mParent = parent;
         mUrl = url;
         mFile = file;
+        mDecoder = decoder;
         mListener = listener;
     }
 
+    /**
+     * Sets this entity as the remaining part of an interrupted download.
+     * @param offset bytes already received (the content starts from there)
+     * @param partial when decrypting, the file where the encrypted data
+     *                received so far is kept; null if the download can't
+     *                be resumed
+     */
+    public void setResume(long offset, File partial) {
+        mOffset = offset;
+        mPartial = partial;
+    }
+
     @Override
     public void consumeContent() throws IOException {
         mParent.consumeContent();
@@ -84,10 +124,47 @@ public class ProgressOutputStreamEntity implements HttpEntity {
         return mParent.isStreaming();
     }
 
+    /**
+     * Writes the content to the given stream, decrypting it if needed.
+     * Decryption and verification failures are thrown as an
+     * {@link IOException} caused by the {@link DecryptException}.
+     */
     @Override
     public void writeTo(OutputStream outstream) throws IOException {
-        mListener.start(mUrl, mFile, mParent.getContentLength());
-        mParent.writeTo(new CountingOutputStream(outstream, mUrl, mFile, mListener));
+        long length = mParent.getContentLength();
+        mListener.start(mUrl, mFile, length >= 0 ? mOffset + length : length);
+
+        if (mDecoder != null) {
+            InputStream in = new CountingInputStream(mParent.getContent(), mOffset, mUrl, mFile, mListener);
+            if (mPartial != null) {
+                // keep encrypted data for resuming
+                in = new TeeInputStream(in, new FileOutputStream(mPartial, mOffset > 0));
+                // decrypt data received in the previous download first
+                if (mOffset > 0)
+                    in = new SequenceInputStream(new FileInputStream(mPartial), in);
+            }
+
+            try {
+                List<DecryptException> errors = new LinkedList<DecryptException>();
+                mDecoder.decryptFile(in, true, outstream, errors);
+
+                // TODO process errors
+                for (DecryptException e : errors)
+                    Log.w(TAG, "error decrypting " + mUrl, e);
+            }
+            catch (GeneralSecurityException e) {
+                IOException ie = new IOException("decryption failed");
+                ie.initCause(e);
+                throw ie;
+            }
+            finally {
+                in.close();
+            }
+        }
+        else {
+            mParent.writeTo(new CountingOutputStream(outstream, mOffset, mUrl, mFile, mListener));
+        }
+
         Header mime = mParent.getContentType();
         mListener.completed(mUrl, mime != null ? mime.getValue() : null, mFile);
     }
@@ -98,13 +175,13 @@ public class ProgressOutputStreamEntity implements HttpEntity {
         private final File file;
         private long transferred;
 
-        public CountingOutputStream(final OutputStream out,
+        public CountingOutputStream(final OutputStream out, long offset,
                 final String url, final File file, final DownloadListener listener) {
             super(out);
             this.url = url;
             this.file = file;
             this.listener = listener;
-            this.transferred = 0;
+            this.transferred = offset;
         }
 
         @Override
@@ -131,4 +208,77 @@ public class ProgressOutputStreamEntity implements HttpEntity {
         }
     }
 
+    private static final class CountingInputStream extends FilterInputStream {
+        private final DownloadListener listener;
+        private final String url;
+        private final File file;
+        private long transferred;
+
+        public CountingInputStream(final InputStream in, long offset,
+                final String url, final File file, final DownloadListener listener) {
+            super(in);
+            this.url = url;
+            this.file = file;
+            this.listener = listener;
+            this.transferred = offset;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0)
+                publishProgress(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int count = in.read(b, off, len);
+            if (count > 0)
+                publishProgress(count);
+            return count;
+        }
+
+        private void publishProgress(long add) {
+            this.transferred += add;
+            this.listener.progress(url, file, this.transferred);
+        }
+    }
+
+    /** Copies all data read to an output stream. */
+    private static final class TeeInputStream extends FilterInputStream {
+        private final OutputStream copy;
+
+        public TeeInputStream(final InputStream in, final OutputStream copy) {
+            super(in);
+            this.copy = copy;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0)
+                copy.write(b);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int count = in.read(b, off, len);
+            if (count > 0)
+                copy.write(b, off, count);
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                in.close();
+            }
+            finally {
+                copy.close();
+            }
+        }
+    }
+
 }
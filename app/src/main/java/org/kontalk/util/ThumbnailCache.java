@@ -0,0 +1,334 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.SoftReference;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+
+/**
+ * Memory-bounded cache for message thumbnails, keyed by preview file path.
+ * Thumbnails are decoded by a background pool; requests can be cancelled
+ * when the view showing them is recycled. On Honeycomb and later, memory
+ * of evicted thumbnails not shown anymore is reused for decoding new ones.
+ * Thumbnails given to callers are marked as in use and must be
+ * {@link #release}d when not shown anymore, so their memory is not reused
+ * under them.
+ * @author Daniele Ricci
+ */
+public final class ThumbnailCache {
+    private static final String TAG = ThumbnailCache.class.getSimpleName();
+
+    /** Number of decoding threads. */
+    private static final int DECODE_THREADS = 2;
+    /** Fraction of the heap used by the cache. */
+    private static final int MEMORY_FRACTION = 16;
+    /** Maximum number of bitmaps kept for reuse. */
+    private static final int MAX_REUSABLE = 8;
+
+    /** Receives a loaded thumbnail on the main thread. The thumbnail must be released. */
+    public interface Callback {
+        void onThumbnailLoaded(File previewFile, Bitmap bitmap);
+    }
+
+    /** A pending thumbnail request. */
+    public static final class Request {
+        private Future<?> mFuture;
+        private volatile boolean mCancelled;
+
+        private Request() {
+        }
+
+        /** Cancels the request. The callback won't be called after this. */
+        public void cancel() {
+            mCancelled = true;
+            if (mFuture != null)
+                mFuture.cancel(false);
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+    }
+
+    private static ThumbnailCache sInstance;
+
+    private final LruCache<String, Bitmap> mCache;
+    /** Reference count of bitmaps being shown. */
+    private final Map<Bitmap, Integer> mInUse = new IdentityHashMap<Bitmap, Integer>();
+    /** Bitmaps evicted while being shown, to be reused once released. */
+    private final Map<Bitmap, Boolean> mEvictedInUse = new IdentityHashMap<Bitmap, Boolean>();
+    /** Evicted bitmaps available for reuse. */
+    private final LinkedList<SoftReference<Bitmap>> mReusable = new LinkedList<SoftReference<Bitmap>>();
+
+    private final ThreadPoolExecutor mExecutor;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    @TargetApi(Build.VERSION_CODES.GINGERBREAD)
+    private ThumbnailCache() {
+        int maxSize = (int) (Runtime.getRuntime().maxMemory() / MEMORY_FRACTION);
+        mCache = new LruCache<String, Bitmap>(maxSize) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getRowBytes() * value.getHeight();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+                evicted(oldValue);
+            }
+        };
+
+        mExecutor = new ThreadPoolExecutor(DECODE_THREADS, DECODE_THREADS,
+            10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new BackgroundThreadFactory("Thumbnails"));
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD)
+            mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    public static synchronized ThumbnailCache getInstance() {
+        if (sInstance == null)
+            sInstance = new ThumbnailCache();
+        return sInstance;
+    }
+
+    /**
+     * Returns the cached thumbnail for a preview file, or null if not loaded
+     * yet. The thumbnail must be released.
+     */
+    public synchronized Bitmap acquire(File previewFile) {
+        Bitmap bitmap = mCache.get(previewFile.getAbsolutePath());
+        if (bitmap != null)
+            acquire(bitmap);
+        return bitmap;
+    }
+
+    /**
+     * Loads a thumbnail in background. If the preview file can't be read,
+     * a new thumbnail is generated from the local media, if available.
+     * @return the request, to be cancelled if the thumbnail is not needed anymore
+     */
+    public Request load(Context context, final File previewFile, final Uri localUri,
+            final Callback callback) {
+        final Context appContext = context.getApplicationContext();
+        final Request request = new Request();
+
+        request.mFuture = mExecutor.submit(new Runnable() {
+            public void run() {
+                if (request.isCancelled())
+                    return;
+
+                final Bitmap bitmap = loadThumbnail(appContext, previewFile, localUri);
+                if (bitmap == null)
+                    return;
+
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        if (request.isCancelled())
+                            release(bitmap);
+                        else
+                            callback.onThumbnailLoaded(previewFile, bitmap);
+                    }
+                });
+            }
+        });
+
+        return request;
+    }
+
+    private synchronized void acquire(Bitmap bitmap) {
+        Integer count = mInUse.get(bitmap);
+        mInUse.put(bitmap, count != null ? count + 1 : 1);
+    }
+
+    /** Releases a thumbnail not being shown anymore. */
+    public synchronized void release(Bitmap bitmap) {
+        Integer count = mInUse.get(bitmap);
+        if (count == null)
+            return;
+
+        if (count > 1) {
+            mInUse.put(bitmap, count - 1);
+        }
+        else {
+            mInUse.remove(bitmap);
+            if (mEvictedInUse.remove(bitmap) != null)
+                addReusable(bitmap);
+        }
+    }
+
+    private synchronized void evicted(Bitmap bitmap) {
+        if (mInUse.containsKey(bitmap))
+            mEvictedInUse.put(bitmap, Boolean.TRUE);
+        else
+            addReusable(bitmap);
+    }
+
+    private void addReusable(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB || !bitmap.isMutable())
+            return;
+
+        mReusable.addFirst(new SoftReference<Bitmap>(bitmap));
+        if (mReusable.size() > MAX_REUSABLE)
+            mReusable.removeLast();
+    }
+
+    /** Takes a reusable bitmap suitable for decoding an image with the given options. */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private synchronized Bitmap takeReusable(BitmapFactory.Options options) {
+        int width = options.outWidth;
+        int height = options.outHeight;
+
+        Iterator<SoftReference<Bitmap>> it = mReusable.iterator();
+        while (it.hasNext()) {
+            Bitmap candidate = it.next().get();
+            if (candidate == null || candidate.isRecycled()) {
+                it.remove();
+                continue;
+            }
+
+            boolean fits;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                // RGB_565 is 2 bytes per pixel
+                fits = candidate.getAllocationByteCount() >= width * height * 2;
+            }
+            else {
+                // same size required before KitKat
+                fits = candidate.getWidth() == width && candidate.getHeight() == height;
+            }
+
+            if (fits) {
+                it.remove();
+                return candidate;
+            }
+        }
+
+        return null;
+    }
+
+    /** Loads a thumbnail and marks it as in use. */
+    private Bitmap loadThumbnail(Context context, File previewFile, Uri localUri) {
+        // another request might have loaded it already
+        Bitmap bitmap = acquire(previewFile);
+        if (bitmap != null)
+            return bitmap;
+
+        try {
+            bitmap = decode(previewFile);
+        }
+        catch (IOException e) {
+            Log.w(TAG, "unable to load thumbnail, generating one");
+
+            /*
+             * unable to load preview - generate thumbnail
+             * Of course a thumbnail can be generated only if the image has
+             * already been downloaded.
+             */
+            if (localUri != null) {
+                try {
+                    // FIXME using a false file extension
+                    MediaStorage.cacheThumbnail(context, localUri, previewFile, false);
+                    bitmap = decode(previewFile);
+                }
+                catch (Exception e1) {
+                    Log.e(TAG, "unable to generate thumbnail", e1);
+                }
+            }
+        }
+
+        if (bitmap != null) {
+            synchronized (this) {
+                acquire(bitmap);
+                mCache.put(previewFile.getAbsolutePath(), bitmap);
+            }
+        }
+
+        return bitmap;
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private Bitmap decode(File file) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            options.inMutable = true;
+
+            // read size for finding a reusable bitmap
+            options.inJustDecodeBounds = true;
+            decode(file, options);
+            options.inJustDecodeBounds = false;
+
+            options.inBitmap = takeReusable(options);
+        }
+
+        Bitmap bitmap;
+        try {
+            bitmap = decode(file, options);
+        }
+        catch (IllegalArgumentException e) {
+            // bitmap could not be reused
+            options.inBitmap = null;
+            bitmap = decode(file, options);
+        }
+
+        if (bitmap == null)
+            throw new IOException("unable to decode " + file);
+
+        return bitmap;
+    }
+
+    private static Bitmap decode(File file, BitmapFactory.Options options) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return BitmapFactory.decodeStream(in, null, options);
+        }
+        finally {
+            try {
+                in.close();
+            }
+            catch (IOException e) {
+                // ignored
+            }
+        }
+    }
+
+}
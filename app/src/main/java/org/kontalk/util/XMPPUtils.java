@@ -38,8 +38,6 @@ import org.kontalk.client.EndpointServer;
  */
 public class XMPPUtils {
 
-    public static final String XML_XMPP_TYPE = "application/xmpp+xml";
-
     private XMPPUtils() {}
 
     private static XmlPullParserFactory _xmlFactory;
@@ -0,0 +1,134 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.crypto;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.spongycastle.openpgp.PGPException;
+
+
+/**
+ * Benchmarks for attachments: encryption of outgoing files and decryption
+ * of downloaded ones, streaming like the app does.
+ * @author Daniele Ricci
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+public class AttachmentBenchmark {
+
+    /** Attachment size in megabytes. */
+    @Param({ "1", "10", "50" })
+    public int size;
+
+    /** An already compressed type (random data) and a compressible one. */
+    @Param({ "image/jpeg", "text/plain" })
+    public String mime;
+
+    private Coder mEncoder;
+    private Coder mDecoder;
+
+    private byte[] mData;
+    private byte[] mEncrypted;
+
+    @Setup
+    public void setup() throws GeneralSecurityException, PGPException {
+        BenchmarkKeys keys = BenchmarkKeys.generate();
+        mEncoder = new PGPCoder(keys.createSenderSession());
+        mDecoder = new PGPCoder(keys.createRecipientSession());
+
+        mData = generateData(size * 1024 * 1024, mime.startsWith("text/"));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(mData.length + 4096);
+        mEncoder.encryptFile(new ByteArrayInputStream(mData), out, mime);
+        mEncrypted = out.toByteArray();
+
+        // check that what we measure actually works
+        out = new ByteArrayOutputStream(mData.length);
+        List<DecryptException> errors = new ArrayList<DecryptException>();
+        mDecoder.decryptFile(new ByteArrayInputStream(mEncrypted), true, out, errors);
+        if (!Arrays.equals(mData, out.toByteArray()) || !errors.isEmpty())
+            throw new IllegalStateException("decryption failed: " + errors);
+    }
+
+    private static byte[] generateData(int length, boolean text) {
+        Random random = new Random(length);
+        byte[] data = new byte[length];
+        if (text) {
+            for (int i = 0; i < length; i++)
+                data[i] = (byte) (random.nextInt(6) == 0 ? ' ' : 'a' + random.nextInt(26));
+        }
+        else {
+            random.nextBytes(data);
+        }
+        return data;
+    }
+
+    @Benchmark
+    public long encrypt() throws GeneralSecurityException {
+        CountingOutputStream out = new CountingOutputStream();
+        mEncoder.encryptFile(new ByteArrayInputStream(mData), out, mime);
+        return out.count;
+    }
+
+    @Benchmark
+    public long decrypt() throws GeneralSecurityException {
+        CountingOutputStream out = new CountingOutputStream();
+        mDecoder.decryptFile(new ByteArrayInputStream(mEncrypted), true, out, null);
+        return out.count;
+    }
+
+    /** Discards data, like writing to a file would do for our purposes. */
+    private static final class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+}
@@ -0,0 +1,201 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.crypto;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Compares benchmark results with stored baselines. Both are JMH results
+ * in CSV format. Scores and normalized allocation rates worse than the
+ * baseline by more than a tolerance are reported as regressions, and
+ * make the check fail.
+ * Usage: BaselineCheck baselines.csv results.csv [tolerance-percent]
+ * @author Daniele Ricci
+ */
+public final class BaselineCheck {
+
+    /** Default tolerance, in percent. */
+    private static final double DEFAULT_TOLERANCE = 10;
+
+    /** Secondary result of the GC profiler: allocated bytes per operation. */
+    private static final String ALLOC_RATE_NORM = "gc.alloc.rate.norm";
+
+    private static final String PARAM_PREFIX = "Param: ";
+
+    private BaselineCheck() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: BaselineCheck <baselines.csv> <results.csv> [tolerance-percent]");
+            System.exit(2);
+        }
+
+        File baselinesFile = new File(args[0]);
+        if (!baselinesFile.isFile()) {
+            System.out.println("No baselines found in " + baselinesFile + ", nothing to check.");
+            return;
+        }
+
+        double tolerance = (args.length > 2 ? Double.parseDouble(args[2]) : DEFAULT_TOLERANCE) / 100;
+
+        Map<String, Result> baselines = load(baselinesFile);
+        Map<String, Result> results = load(new File(args[1]));
+
+        int regressions = 0;
+        for (Map.Entry<String, Result> e : results.entrySet()) {
+            Result result = e.getValue();
+            Result baseline = baselines.get(e.getKey());
+            if (baseline == null) {
+                System.out.println("NEW   " + e.getKey() + ": " + result);
+                continue;
+            }
+
+            // positive means worse
+            double change = (result.score - baseline.score) / baseline.score;
+            if (result.higherIsBetter)
+                change = -change;
+
+            boolean regressed = change > tolerance;
+            if (regressed)
+                regressions++;
+
+            System.out.println(String.format("%s  %s: %s (baseline %s, %+.1f%%)",
+                regressed ? "WORSE" : "OK   ", e.getKey(), result, baseline,
+                (result.score - baseline.score) * 100 / baseline.score));
+        }
+
+        if (regressions > 0) {
+            System.out.println(regressions + " results worse than the baselines by more than " +
+                Math.round(tolerance * 100) + "%");
+            System.exit(1);
+        }
+    }
+
+    /** Loads the results to be checked from a JMH CSV file, by benchmark and parameters. */
+    private static Map<String, Result> load(File file) throws IOException {
+        Map<String, Result> results = new LinkedHashMap<String, Result>();
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line = reader.readLine();
+            if (line == null)
+                return results;
+
+            List<String> header = parseLine(line);
+            int benchmarkIndex = header.indexOf("Benchmark");
+            int modeIndex = header.indexOf("Mode");
+            int scoreIndex = header.indexOf("Score");
+            int unitIndex = header.indexOf("Unit");
+            if (benchmarkIndex < 0 || modeIndex < 0 || scoreIndex < 0 || unitIndex < 0)
+                throw new IOException("not a JMH results file: " + file);
+
+            while ((line = reader.readLine()) != null) {
+                List<String> values = parseLine(line);
+                if (values.size() < header.size())
+                    continue;
+
+                String benchmark = values.get(benchmarkIndex);
+                boolean secondary = benchmark.indexOf(':') > 0;
+                // other secondary results depend on throughput
+                if (secondary && !benchmark.endsWith(ALLOC_RATE_NORM))
+                    continue;
+
+                StringBuilder key = new StringBuilder(benchmark);
+                for (int i = 0; i < header.size(); i++) {
+                    String name = header.get(i);
+                    if (name.startsWith(PARAM_PREFIX) && values.get(i).length() > 0)
+                        key.append(' ')
+                            .append(name.substring(PARAM_PREFIX.length()))
+                            .append('=')
+                            .append(values.get(i));
+                }
+
+                // JMH might use the decimal separator of the default locale
+                double score = Double.parseDouble(values.get(scoreIndex).replace(',', '.'));
+                boolean higherIsBetter = !secondary && "thrpt".equals(values.get(modeIndex));
+
+                results.put(key.toString(), new Result(score, values.get(unitIndex), higherIsBetter));
+            }
+        }
+        finally {
+            reader.close();
+        }
+
+        return results;
+    }
+
+    /** Splits a CSV line, handling quoted values. */
+    private static List<String> parseLine(String line) {
+        List<String> values = new ArrayList<String>();
+        StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                // a doubled quote inside a quoted value is a literal quote
+                if (quoted && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    value.append(c);
+                    i++;
+                }
+                else {
+                    quoted = !quoted;
+                }
+            }
+            else if (c == ',' && !quoted) {
+                values.add(value.toString());
+                value.setLength(0);
+            }
+            else {
+                value.append(c);
+            }
+        }
+        values.add(value.toString());
+
+        return values;
+    }
+
+    private static final class Result {
+        final double score;
+        final String unit;
+        final boolean higherIsBetter;
+
+        Result(double score, String unit, boolean higherIsBetter) {
+            this.score = score;
+            this.unit = unit;
+            this.higherIsBetter = higherIsBetter;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.3f %s", score, unit);
+        }
+    }
+
+}
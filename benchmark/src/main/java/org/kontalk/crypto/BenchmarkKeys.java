@@ -0,0 +1,89 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.crypto;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.Date;
+
+import org.spongycastle.crypto.generators.RSAKeyPairGenerator;
+import org.spongycastle.crypto.params.RSAKeyGenerationParameters;
+import org.spongycastle.openpgp.PGPException;
+import org.spongycastle.openpgp.PGPKeyPair;
+import org.spongycastle.openpgp.PGPPublicKey;
+import org.spongycastle.openpgp.operator.bc.BcPGPKeyPair;
+
+
+/**
+ * Test keys for benchmarks, generated like the keys of the app, and the
+ * crypto sessions using them.
+ * @author Daniele Ricci
+ */
+final class BenchmarkKeys {
+
+    /** Same as keys generated by the app. */
+    private static final int RSA_KEY_LENGTH = 2048;
+    private static final BigInteger RSA_PUBLIC_EXPONENT = BigInteger.valueOf(0x10001);
+    private static final int RSA_CERTAINTY = 12;
+
+    private static final String NETWORK = "benchmark.kontalk.net";
+
+    /** Key of the user sending messages. */
+    final PGPKeyPair sender;
+    /** Key of the user receiving messages. */
+    final PGPKeyPair recipient;
+
+    final String senderId;
+    final String recipientId;
+
+    private BenchmarkKeys(PGPKeyPair sender, PGPKeyPair recipient) {
+        this.sender = sender;
+        this.recipient = recipient;
+        senderId = "sender@" + NETWORK;
+        recipientId = "recipient@" + NETWORK;
+    }
+
+    /** Generates a new sender and recipient key pair. This takes a while. */
+    static BenchmarkKeys generate() throws PGPException {
+        SecureRandom random = new SecureRandom();
+        return new BenchmarkKeys(generateKeyPair(random), generateKeyPair(random));
+    }
+
+    /** Creates the session of the sender, encrypting for the recipient. */
+    CryptoSession createSenderSession() {
+        return new CryptoSession(sender, senderId,
+            new PGPPublicKey[] { recipient.getPublicKey() },
+            new String[] { recipientId });
+    }
+
+    /** Creates the session of the recipient, verifying the sender. */
+    CryptoSession createRecipientSession() {
+        return new CryptoSession(recipient, recipientId,
+            new PGPPublicKey[] { sender.getPublicKey() },
+            new String[] { senderId });
+    }
+
+    private static PGPKeyPair generateKeyPair(SecureRandom random) throws PGPException {
+        RSAKeyPairGenerator gen = new RSAKeyPairGenerator();
+        gen.init(new RSAKeyGenerationParameters(RSA_PUBLIC_EXPONENT,
+            random, RSA_KEY_LENGTH, RSA_CERTAINTY));
+        return new BcPGPKeyPair(PGPPublicKey.RSA_GENERAL, gen.generateKeyPair(), new Date());
+    }
+
+}
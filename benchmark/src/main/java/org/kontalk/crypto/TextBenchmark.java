@@ -0,0 +1,162 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.crypto;
+
+import java.security.GeneralSecurityException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.spongycastle.openpgp.PGPException;
+import org.spongycastle.openpgp.PGPSignature;
+import org.spongycastle.openpgp.PGPSignatureGenerator;
+
+import org.kontalk.message.TextComponent;
+import org.kontalk.util.CPIMMessage;
+
+
+/**
+ * Benchmarks for text messages: Message/CPIM framing, signing and
+ * encryption of outgoing messages, and the reverse for incoming ones.
+ * @author Daniele Ricci
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class TextBenchmark {
+
+    /** Message length in characters: a chat line, a paragraph, a long paste. */
+    @Param({ "64", "1024", "16384" })
+    public int length;
+
+    private CryptoSession mSenderSession;
+    private CryptoSession mRecipientSession;
+    private Coder mEncoder;
+    private Coder mDecoder;
+
+    private String mText;
+    private String mFramed;
+    private byte[] mPlainText;
+    private PGPSignature mSignature;
+    private byte[] mEncrypted;
+
+    @Setup
+    public void setup() throws GeneralSecurityException, PGPException {
+        BenchmarkKeys keys = BenchmarkKeys.generate();
+        mSenderSession = keys.createSenderSession();
+        mRecipientSession = keys.createRecipientSession();
+        mEncoder = new PGPCoder(mSenderSession);
+        mDecoder = new PGPCoder(mRecipientSession);
+
+        mText = generateText(length);
+        mPlainText = frame();
+        mFramed = new String(mPlainText);
+        mSignature = sign();
+        mEncrypted = encrypt();
+
+        // check that what we measure actually works
+        if (!verify())
+            throw new IllegalStateException("signature verification failed");
+
+        List<DecryptException> errors = new ArrayList<DecryptException>();
+        if (!mText.equals(decrypt(errors)))
+            throw new IllegalStateException("decryption failed: " + errors);
+
+        // Message/CPIM header checks are up to the app, the signature must be valid
+        for (DecryptException e : errors) {
+            if (e.getCode() == DecryptException.DECRYPT_EXCEPTION_VERIFICATION_FAILED)
+                throw new IllegalStateException("decryption failed: " + errors);
+        }
+    }
+
+    /** Generates some text with words of random length. */
+    private static String generateText(int length) {
+        Random random = new Random(length);
+        StringBuilder text = new StringBuilder(length);
+        while (text.length() < length) {
+            if (text.length() > 0 && random.nextInt(6) == 0)
+                text.append(' ');
+            else
+                text.append((char) ('a' + random.nextInt(26)));
+        }
+        return text.toString();
+    }
+
+    private String decrypt(List<DecryptException> errors) throws GeneralSecurityException {
+        StringBuilder out = new StringBuilder(length);
+        mDecoder.decryptText(mEncrypted, true, out, null, errors);
+        return out.toString();
+    }
+
+    /** Frames a message in Message/CPIM, as done before encrypting. */
+    @Benchmark
+    public byte[] frame() {
+        return new CPIMMessage(mSenderSession.getUserId(), mSenderSession.getRecipients(),
+            new Date(), TextComponent.MIME_TYPE, mText).toByteArray();
+    }
+
+    @Benchmark
+    public CPIMMessage parse() throws ParseException {
+        return CPIMMessage.parse(mFramed);
+    }
+
+    @Benchmark
+    public PGPSignature sign() throws PGPException {
+        PGPSignatureGenerator sigGen = mSenderSession.createSignatureGenerator();
+        sigGen.update(mPlainText);
+        return sigGen.generate();
+    }
+
+    @Benchmark
+    public boolean verify() throws PGPException {
+        mSignature.init(mRecipientSession.getVerifier(), mRecipientSession.getSenderKey());
+        mSignature.update(mPlainText);
+        return mSignature.verify();
+    }
+
+    /** Frames, signs, compresses and encrypts a message. */
+    @Benchmark
+    public byte[] encrypt() throws GeneralSecurityException {
+        return mEncoder.encryptText(mText);
+    }
+
+    /** Decrypts, decompresses, verifies and parses a message. */
+    @Benchmark
+    public String decrypt() throws GeneralSecurityException {
+        return decrypt(null);
+    }
+
+}